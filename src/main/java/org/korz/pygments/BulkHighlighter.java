@@ -0,0 +1,549 @@
+package org.korz.pygments;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Highlights every file in a directory tree.
+ * <p>
+ * The lexer for each file is chosen by its filename, files are highlighted in
+ * parallel on a work-stealing pool, and each result is written to the same
+ * relative path in the output directory with an extra extension. A manifest
+ * of content hashes is kept in the output directory so that files which have
+ * not changed since the last run are skipped without even looking up their
+ * lexer. Outputs of files that were in the manifest but have since been
+ * deleted are deleted too.
+ * <pre><code>
+ * BulkHighlighter.Stats stats = BulkHighlighter
+ *     .newHighlighter(Paths.get("src"), Paths.get("html"))
+ *     .setFormatterName("html")
+ *     .build()
+ *     .run();
+ * </code></pre>
+ * It can also be run from the command line; run {@link #main} without
+ * arguments for usage.
+ * @see Lexer#forFile
+ */
+public class BulkHighlighter {
+    /**
+     * The name of the manifest file in the output directory.
+     */
+    public static final String MANIFEST = ".pygments-manifest";
+
+    /**
+     * Constructs a bulk highlighter.
+     */
+    public static class Builder {
+        private final Path source;
+        private final Path output;
+        private String formatterName = "html";
+        private final Map<String, Object> formatterOptions = new HashMap<>();
+        private Lexer.Engine engine = Lexer.Engine.PYTHON;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private String extension;
+
+        private Builder(Path source, Path output) {
+            this.source = source;
+            this.output = output;
+        }
+
+        /**
+         * Sets the formatter name.
+         * <p>
+         * The default is html.
+         * @param formatterName The name or alias of the formatter.
+         * @return This builder for method chaining.
+         */
+        public Builder setFormatterName(String formatterName) {
+            this.formatterName = formatterName;
+            return this;
+        }
+
+        /**
+         * Sets a formatter option.
+         * @param name The option name.
+         * @param value The option value.
+         * @return This builder for method chaining.
+         */
+        public Builder setFormatterOption(String name, Object value) {
+            formatterOptions.put(name, value);
+            return this;
+        }
+
+        /**
+         * Sets the preferred lexing engine.
+         * @param engine The engine.
+         * @return This builder for method chaining.
+         * @see Lexer.Builder#setEngine
+         */
+        public Builder setEngine(Lexer.Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Sets the number of worker threads.
+         * <p>
+         * The default is the number of available processors.
+         * @param threads The number of threads.
+         * @return This builder for method chaining.
+         */
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the extension appended to output filenames.
+         * <p>
+         * The default is a dot followed by the formatter name, e.g. ".html".
+         * @param extension The extension, including the dot.
+         * @return This builder for method chaining.
+         */
+        public Builder setExtension(String extension) {
+            this.extension = extension;
+            return this;
+        }
+
+        /**
+         * Creates a new BulkHighlighter instance.
+         * @return A new instance.
+         * @throws IllegalArgumentException If threads is not positive.
+         * @throws ClassNotFoundException If the formatter cannot be created.
+         */
+        public BulkHighlighter build() {
+            if (threads < 1) {
+                throw new IllegalArgumentException(
+                    "threads must be positive: " + threads);
+            }
+            return new BulkHighlighter(this);
+        }
+    }
+
+    /**
+     * Creates a new BulkHighlighter builder.
+     * @param source The directory to highlight.
+     * @param output The directory to write results to. It will be created
+     *               if it does not exist.
+     * @return A new builder.
+     */
+    public static Builder newHighlighter(Path source, Path output) {
+        return new Builder(source, output);
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Stats {
+        private final int highlighted;
+        private final int unchanged;
+        private final int skipped;
+        private final int failed;
+        private final int deleted;
+        private final long bytes;
+        private final long nanos;
+
+        Stats(int highlighted,
+              int unchanged,
+              int skipped,
+              int failed,
+              int deleted,
+              long bytes,
+              long nanos) {
+            this.highlighted = highlighted;
+            this.unchanged = unchanged;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.deleted = deleted;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the number of files that were highlighted.
+         * @return The number of files.
+         */
+        public int getHighlighted() {
+            return highlighted;
+        }
+
+        /**
+         * Returns the number of files that were skipped because they have
+         * not changed since the last run.
+         * @return The number of files.
+         */
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Returns the number of files that were skipped because no lexer
+         * matches their filename.
+         * @return The number of files.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the number of files that could not be highlighted.
+         * @return The number of files.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of outputs that were deleted because their
+         * files no longer exist.
+         * @return The number of outputs.
+         */
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Returns the total size of the highlighted files.
+         * @return The size in bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the wall-clock duration of the run.
+         * @return The duration in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format(
+                Locale.ROOT,
+                "%d highlighted, %d unchanged, %d skipped, %d failed, "
+                    + "%d deleted in %.2f s (%.1f files/s, %.1f KiB/s)",
+                highlighted, unchanged, skipped, failed, deleted, seconds,
+                highlighted / seconds, bytes / 1024.0 / seconds);
+        }
+    }
+
+    private final Path source;
+    private final Path output;
+    private final Formatter formatter;
+    private final Lexer.Engine engine;
+    private final int threads;
+    private final String extension;
+
+    private BulkHighlighter(Builder builder) {
+        this.source = builder.source;
+        this.output = builder.output;
+        this.formatter = Formatter.byName(builder.formatterName)
+            .setOptions(builder.formatterOptions)
+            .build();
+        this.engine = builder.engine;
+        this.threads = builder.threads;
+        this.extension = builder.extension != null
+            ? builder.extension
+            : "." + builder.formatterName;
+    }
+
+    /**
+     * Highlights all files that have changed since the last run.
+     * <p>
+     * Failures of individual files are reported to stderr and counted, but
+     * do not stop the run.
+     * @return The outcome.
+     * @throws IOException If the directories or the manifest cannot be
+     *                     accessed.
+     */
+    public Stats run() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(output);
+        Path manifestPath = output.resolve(MANIFEST);
+        Map<String, String> previous = readManifest(manifestPath);
+        Map<String, String> manifest = new ConcurrentHashMap<>();
+
+        List<Path> files;
+        Path absoluteOutput = output.toAbsolutePath().normalize();
+        try (Stream<Path> paths = Files.walk(source)) {
+            files = paths
+                .filter(Files::isRegularFile)
+                .filter(p -> !p.toAbsolutePath().normalize()
+                         .startsWith(absoluteOutput))
+                .collect(Collectors.toList());
+        }
+
+        AtomicInteger highlighted = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        List<Callable<Void>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(() -> {
+                String name = relativeName(file);
+                try {
+                    byte[] content = Files.readAllBytes(file);
+                    // only files that had a lexer are in the manifest
+                    String hash = hash(content);
+                    Path target = output.resolve(name + extension);
+                    if (hash.equals(previous.get(name))
+                            && Files.exists(target)) {
+                        manifest.put(name, hash);
+                        unchanged.incrementAndGet();
+                        return null;
+                    }
+                    Lexer lexer;
+                    try {
+                        lexer = Lexer.forFile(file.getFileName().toString())
+                            .setEngine(engine)
+                            .build();
+                    }
+                    catch (ClassNotFoundException e) {
+                        skipped.incrementAndGet();
+                        return null;
+                    }
+                    manifest.put(name, hash);
+                    String text = new String(content, StandardCharsets.UTF_8);
+                    String result = formatter.format(lexer.lexAll(text));
+                    if (target.getParent() != null) {
+                        Files.createDirectories(target.getParent());
+                    }
+                    Files.write(target,
+                                formatter.encode(result,
+                                                 StandardCharsets.UTF_8));
+                    highlighted.incrementAndGet();
+                    bytes.addAndGet(content.length);
+                }
+                catch (IOException | RuntimeException e) {
+                    manifest.remove(name);
+                    failed.incrementAndGet();
+                    System.err.println("Failed to highlight " + file + ": "
+                                       + e);
+                }
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        catch (ExecutionException e) {
+            // tasks catch their own exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        Set<String> names = new HashSet<>();
+        for (Path file : files) {
+            names.add(relativeName(file));
+        }
+        int deleted = 0;
+        for (String name : previous.keySet()) {
+            Path target = output.resolve(name + extension).toAbsolutePath()
+                .normalize();
+            // a manifest that was edited by hand must not delete anything
+            // outside the output directory
+            if (!names.contains(name) && target.startsWith(absoluteOutput)
+                    && Files.deleteIfExists(target)) {
+                ++deleted;
+            }
+        }
+
+        writeManifest(manifestPath, manifest);
+        return new Stats(highlighted.get(),
+                         unchanged.get(),
+                         skipped.get(),
+                         failed.get(),
+                         deleted,
+                         bytes.get(),
+                         System.nanoTime() - start);
+    }
+
+    private String relativeName(Path file) {
+        List<String> parts = new ArrayList<>();
+        for (Path part : source.relativize(file)) {
+            parts.add(part.toString());
+        }
+        return String.join("/", parts);
+    }
+
+    // covers the configuration too, so that changing it invalidates outputs;
+    // the lexer depends only on the filename, which is the manifest key
+    private String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update((engine + "\n" + formatter.getConfigKey() + "\n")
+                      .getBytes(StandardCharsets.UTF_8));
+        digest.update(content);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // one "hash  path" line per file, like sha256sum
+    private static Map<String, String> readManifest(Path path)
+            throws IOException {
+        Map<String, String> manifest = new HashMap<>();
+        if (!Files.exists(path)) {
+            return manifest;
+        }
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            int sep = line.indexOf("  ");
+            if (sep > 0) {
+                manifest.put(line.substring(sep + 2), line.substring(0, sep));
+            }
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(Path path, Map<String, String> manifest)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(
+                tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e
+                    : new TreeMap<>(manifest).entrySet()) {
+                out.write(e.getValue() + "  " + e.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void usage() {
+        System.err.println(
+            "Usage: BulkHighlighter [options] <source dir> <output dir>\n"
+            + "Options:\n"
+            + "  --formatter NAME     formatter name (default html)\n"
+            + "  --option NAME=VALUE  formatter option, may be repeated\n"
+            + "  --engine ENGINE      python (default) or java\n"
+            + "  --threads N          worker threads (default: CPUs)\n"
+            + "  --extension EXT      output extension (default .NAME)");
+        System.exit(2);
+    }
+
+    /**
+     * Highlights a directory tree and prints statistics.
+     * <p>
+     * Exits with status 1 if any file failed.
+     * @param args The options, source directory and output directory.
+     * @throws IOException If the directories cannot be accessed.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<>();
+        String formatterName = "html";
+        Map<String, Object> options = new HashMap<>();
+        Lexer.Engine engine = Lexer.Engine.PYTHON;
+        Integer threads = null;
+        String extension = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    paths.add(arg);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    usage();
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--formatter":
+                        formatterName = value;
+                        break;
+                    case "--option":
+                        int eq = value.indexOf('=');
+                        if (eq < 0) {
+                            usage();
+                        }
+                        options.put(value.substring(0, eq),
+                                    value.substring(eq + 1));
+                        break;
+                    case "--engine":
+                        engine = Lexer.Engine.valueOf(
+                            value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--extension":
+                        extension = value;
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            usage();
+        }
+        if (paths.size() != 2) {
+            usage();
+        }
+
+        Builder builder = newHighlighter(Paths.get(paths.get(0)),
+                                         Paths.get(paths.get(1)))
+            .setFormatterName(formatterName)
+            .setEngine(engine)
+            .setExtension(extension);
+        for (Map.Entry<String, Object> option : options.entrySet()) {
+            builder.setFormatterOption(option.getKey(), option.getValue());
+        }
+        if (threads != null) {
+            builder.setThreads(threads);
+        }
+        Stats stats = builder.build().run();
+        System.out.println(stats);
+        if (stats.getFailed() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -16,4 +16,12 @@ public class ClassNotFoundException extends RuntimeException {
     public ClassNotFoundException(PyException cause) {
         super(PythonUtil.getMessage(cause), cause);
     }
+
+    /**
+     * Creates a new exception for a lookup that is known to fail.
+     * @param message The message.
+     */
+    ClassNotFoundException(String message) {
+        super(message);
+    }
 }
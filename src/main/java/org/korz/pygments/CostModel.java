@@ -0,0 +1,152 @@
+package org.korz.pygments;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Observed highlighting cost per execution strategy.
+ * <p>
+ * For each strategy, the model fits the time of a call as a fixed overhead
+ * plus a cost per char to the calls it has observed. Older observations are
+ * decayed, so the model follows changes such as JIT warm-up. Adaptive
+ * contexts with the same lexer and formatter configuration share a model.
+ * <p>
+ * Instances are thread-safe.
+ * @see PygmentsContext.Builder#setAdaptive
+ * @see PygmentsContext#getCostModel
+ */
+public final class CostModel {
+    // the weight kept by an observation for each newer one
+    private static final double DECAY = 0.95;
+    // models shared by configuration, until there are too many
+    private static final int MAX_SHARED = 1024;
+    private static final Map<String, CostModel> SHARED =
+        new ConcurrentHashMap<>();
+
+    // decayed sums for a least squares fit of nanos against chars
+    private static class Fit {
+        long samples;
+        double weight;
+        double chars;
+        double nanos;
+        double charsSquared;
+        double charsNanos;
+
+        void add(double n, double t) {
+            weight = weight * DECAY + 1;
+            chars = chars * DECAY + n;
+            nanos = nanos * DECAY + t;
+            charsSquared = charsSquared * DECAY + n * n;
+            charsNanos = charsNanos * DECAY + n * t;
+            ++samples;
+        }
+
+        double predict(double n) {
+            if (samples == 0) {
+                return Double.NaN;
+            }
+            double meanChars = chars / weight;
+            double meanNanos = nanos / weight;
+            double variance = charsSquared / weight - meanChars * meanChars;
+            if (variance <= meanChars * meanChars * 1e-6) {
+                // all calls had about the same size, so assume no overhead
+                return meanChars == 0
+                    ? meanNanos
+                    : meanNanos / meanChars * n;
+            }
+            double perChar = (charsNanos / weight - meanChars * meanNanos)
+                / variance;
+            if (perChar < 0) {
+                return meanNanos;
+            }
+            double overhead = Math.max(0, meanNanos - perChar * meanChars);
+            return overhead + perChar * n;
+        }
+    }
+
+    static CostModel forConfig(String configKey) {
+        CostModel model = SHARED.get(configKey);
+        if (model != null) {
+            return model;
+        }
+        if (SHARED.size() >= MAX_SHARED) {
+            return new CostModel();
+        }
+        return SHARED.computeIfAbsent(configKey, k -> new CostModel());
+    }
+
+    private final Map<PygmentsContext.Strategy, Fit> fits =
+        new EnumMap<>(PygmentsContext.Strategy.class);
+
+    CostModel() {
+        for (PygmentsContext.Strategy s : PygmentsContext.Strategy.values()) {
+            fits.put(s, new Fit());
+        }
+    }
+
+    void record(PygmentsContext.Strategy strategy, int chars, long nanos) {
+        Fit fit = fits.get(strategy);
+        synchronized (fit) {
+            fit.add(chars, nanos);
+        }
+    }
+
+    /**
+     * Returns the number of calls observed for a strategy.
+     * @param strategy The strategy.
+     * @return The number of calls.
+     */
+    public long getSamples(PygmentsContext.Strategy strategy) {
+        Fit fit = fits.get(strategy);
+        synchronized (fit) {
+            return fit.samples;
+        }
+    }
+
+    /**
+     * Predicts the time a strategy takes to highlight a text.
+     * @param strategy The strategy.
+     * @param chars The length of the text.
+     * @return The predicted time in nanoseconds, or NaN if no calls have
+     *         been observed for the strategy.
+     */
+    public double predictNanos(PygmentsContext.Strategy strategy, int chars) {
+        Fit fit = fits.get(strategy);
+        synchronized (fit) {
+            return fit.predict(chars);
+        }
+    }
+
+    /**
+     * Returns the recent average throughput of a strategy.
+     * @param strategy The strategy.
+     * @return The throughput in chars per second, or NaN if no calls have
+     *         been observed for the strategy.
+     */
+    public double getCharsPerSecond(PygmentsContext.Strategy strategy) {
+        Fit fit = fits.get(strategy);
+        synchronized (fit) {
+            return fit.samples == 0 || fit.nanos == 0
+                ? Double.NaN
+                : fit.chars / fit.nanos * 1e9;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CostModel(");
+        for (PygmentsContext.Strategy s : PygmentsContext.Strategy.values()) {
+            if (sb.charAt(sb.length() - 1) != '(') {
+                sb.append(", ");
+            }
+            sb.append(s)
+                .append('=')
+                .append(getSamples(s))
+                .append(" calls at ")
+                .append(Math.round(getCharsPerSecond(s)))
+                .append(" chars/s");
+        }
+        return sb.append(')').toString();
+    }
+}
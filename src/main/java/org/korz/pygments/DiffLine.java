@@ -0,0 +1,165 @@
+package org.korz.pygments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A line of a highlighted unified diff.
+ * @see PygmentsContext#highlightDiff
+ */
+public final class DiffLine {
+    /**
+     * The kind of diff line.
+     */
+    public enum Type {
+        /**
+         * A line outside of hunks, e.g. a file header, or a
+         * <code>\ No newline at end of file</code> marker.
+         */
+        HEADER,
+        /**
+         * A hunk header, e.g. <code>@@ -1,3 +1,4 @@</code>.
+         */
+        HUNK,
+        /**
+         * A line present in both versions.
+         */
+        CONTEXT,
+        /**
+         * A line only present in the old version.
+         */
+        REMOVED,
+        /**
+         * A line only present in the new version.
+         */
+        ADDED
+    }
+
+    private static final Pattern HUNK_HEADER = Pattern.compile(
+        "@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+    private final Type type;
+    private final int oldLine;
+    private final int newLine;
+    private final String text;
+    private final String highlighted;
+
+    DiffLine(Type type,
+             int oldLine,
+             int newLine,
+             String text,
+             String highlighted) {
+        this.type = type;
+        this.oldLine = oldLine;
+        this.newLine = newLine;
+        this.text = text;
+        this.highlighted = highlighted;
+    }
+
+    private static int count(Matcher m, int group) {
+        return m.group(group) == null ? 1 : Integer.parseInt(m.group(group));
+    }
+
+    /**
+     * Splits a unified diff into lines, numbering the lines of each hunk.
+     */
+    static List<DiffLine> parse(String diff) {
+        List<DiffLine> lines = new ArrayList<>();
+        int oldLine = 0;
+        int newLine = 0;
+        int oldLeft = 0;
+        int newLeft = 0;
+        int start = 0;
+        while (start < diff.length()) {
+            int end = diff.indexOf('\n', start);
+            if (end < 0) {
+                end = diff.length();
+            }
+            String line = diff.substring(start, end);
+            start = end + 1;
+            char prefix = line.isEmpty() ? ' ' : line.charAt(0);
+            String content = line.isEmpty() ? line : line.substring(1);
+            Matcher m = HUNK_HEADER.matcher(line);
+            if (oldLeft == 0 && newLeft == 0 && m.matches()) {
+                oldLine = Integer.parseInt(m.group(1));
+                oldLeft = count(m, 2);
+                newLine = Integer.parseInt(m.group(3));
+                newLeft = count(m, 4);
+                lines.add(new DiffLine(Type.HUNK, 0, 0, line, null));
+            }
+            else if (prefix == ' ' && oldLeft > 0 && newLeft > 0) {
+                lines.add(new DiffLine(Type.CONTEXT, oldLine++, newLine++,
+                                       content, null));
+                --oldLeft;
+                --newLeft;
+            }
+            else if (prefix == '-' && oldLeft > 0) {
+                lines.add(new DiffLine(Type.REMOVED, oldLine++, 0,
+                                       content, null));
+                --oldLeft;
+            }
+            else if (prefix == '+' && newLeft > 0) {
+                lines.add(new DiffLine(Type.ADDED, 0, newLine++,
+                                       content, null));
+                --newLeft;
+            }
+            else {
+                lines.add(new DiffLine(Type.HEADER, 0, 0, line, null));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the kind of line.
+     * @return The line type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the line number in the old version.
+     * @return The line number, counting from 1, or 0 if the line is not in
+     *         the old version.
+     */
+    public int getOldLine() {
+        return oldLine;
+    }
+
+    /**
+     * Returns the line number in the new version.
+     * @return The line number, counting from 1, or 0 if the line is not in
+     *         the new version.
+     */
+    public int getNewLine() {
+        return newLine;
+    }
+
+    /**
+     * Returns the text of the line.
+     * @return The line without its <code>' '</code>, <code>'-'</code> or
+     *         <code>'+'</code> prefix for context, removed and added lines,
+     *         or the whole line otherwise.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the highlighted line.
+     * @return A self-contained fragment of the line, as returned by
+     *         {@link Formatter#formatLines(Iterable, int, int)}, or null for
+     *         headers.
+     */
+    public String getHighlighted() {
+        return highlighted;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + oldLine + "," + newLine + "," + text + ")";
+    }
+}
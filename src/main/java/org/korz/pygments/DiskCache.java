@@ -0,0 +1,430 @@
+package org.korz.pygments;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of highlighted text backed by memory-mapped files.
+ * <p>
+ * Entries are keyed by a hash of the highlighting configuration and the input
+ * text, so a cache directory may be shared by any number of PygmentsContext
+ * instances. Because the cache survives restarts, a restarted process can
+ * serve previously highlighted text without running Pygments at all.
+ * <pre><code>
+ * DiskCache cache = DiskCache.newCache(Paths.get("/var/cache/pygments"))
+ *     .setMaxSize(1L &lt;&lt; 30)
+ *     .build();
+ * PygmentsContext p = PygmentsContext.newContext()
+ *     .setLexerName("c")
+ *     .setFormatterName("html")
+ *     .setCache(cache)
+ *     .build();
+ * </code></pre>
+ * Entries are appended to fixed-size segment files. Each record is
+ * checksummed and its length is written last, so a record that was only
+ * partially written when the process died is detected and discarded when the
+ * cache is reopened. When the cache grows beyond its maximum size, the oldest
+ * segment is deleted in its entirety.
+ * <p>
+ * Instances are thread-safe. A cache directory can only be opened by one
+ * DiskCache instance at a time.
+ * @see PygmentsContext.Builder#setCache
+ */
+public class DiskCache implements Closeable {
+    /**
+     * Constructs a disk cache.
+     */
+    public static class Builder {
+        private final Path directory;
+        private long maxSize = 256L << 20;
+        private int segmentSize = 16 << 20;
+
+        private Builder(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Sets the maximum total size of all segment files.
+         * <p>
+         * The default is 256 MiB.
+         * @param maxSize The maximum size in bytes.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Sets the size of each segment file.
+         * <p>
+         * This is also the upper bound on the size of a single entry. The
+         * default is 16 MiB.
+         * @param segmentSize The segment size in bytes.
+         * @return This builder for method chaining.
+         */
+        public Builder setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Opens the cache, recovering any existing entries.
+         * @return A new instance.
+         * @throws IllegalArgumentException If the sizes are invalid.
+         * @throws IllegalStateException If the directory is already in use.
+         * @throws UncheckedIOException If the directory cannot be opened.
+         */
+        public DiskCache build() {
+            if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE
+                    + KEY_SIZE) {
+                throw new IllegalArgumentException(
+                    "segmentSize is too small: " + segmentSize);
+            }
+            if (maxSize < segmentSize) {
+                throw new IllegalArgumentException(
+                    "maxSize is smaller than segmentSize: " + maxSize);
+            }
+            try {
+                return new DiskCache(directory, maxSize, segmentSize);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(
+                    "Cannot open cache: " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new DiskCache builder.
+     * @param directory The directory to store segment files in. It will be
+     *                  created if it does not exist.
+     * @return A new builder.
+     */
+    public static Builder newCache(Path directory) {
+        return new Builder(directory);
+    }
+
+    private static final int SEGMENT_MAGIC = 0x50594331; // PYC1
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 32;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int position = SEGMENT_HEADER_SIZE;
+
+        Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<ByteBuffer, Location> index = new HashMap<>();
+    private boolean closed;
+
+    private DiskCache(Path directory, long maxSize, int segmentSize)
+            throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve("lock"),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // already locked by this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException(
+                "Cache directory is in use: " + directory);
+        }
+        this.lock = lock;
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(
+                        0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+                catch (NumberFormatException e) {
+                    // not ours, ignore it
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            recover(openSegment(id));
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(
+            String.format("%016d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = segmentPath(id);
+        try (FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(id, path, buffer);
+            segments.addLast(segment);
+            return segment;
+        }
+    }
+
+    // Rebuilds the index from a segment and finds its end.
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(0) != SEGMENT_MAGIC) {
+            // new or corrupt segment, start from scratch
+            clear(buffer, 0);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            return;
+        }
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            int offset = position + RECORD_HEADER_SIZE;
+            if (length < KEY_SIZE || length > segmentSize - offset
+                    || buffer.getInt(position + 4)
+                        != checksum(buffer, offset, length)) {
+                // torn write, discard it and everything after it
+                clear(buffer, position);
+                break;
+            }
+            byte[] key = new byte[KEY_SIZE];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(key);
+            index.put(ByteBuffer.wrap(key),
+                      new Location(segment, offset + KEY_SIZE,
+                                   length - KEY_SIZE));
+            position = offset + length;
+        }
+        segment.position = position;
+    }
+
+    private static void clear(ByteBuffer buffer, int from) {
+        byte[] zeros = new byte[4096];
+        ByteBuffer view = buffer.duplicate();
+        view.position(from);
+        while (view.hasRemaining()) {
+            view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer key(String config, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(config.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up a cached result.
+     * @param config The highlighting configuration.
+     * @param text The input text.
+     * @return The cached result, or null if there is none.
+     */
+    public String get(String config, String text) {
+        ByteBuffer key = key(config, text);
+        synchronized (this) {
+            checkOpen();
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            byte[] value = new byte[location.length];
+            ByteBuffer view = location.segment.buffer.duplicate();
+            view.position(location.offset);
+            view.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Adds a result to the cache.
+     * <p>
+     * Results larger than a segment are silently not cached.
+     * @param config The highlighting configuration.
+     * @param text The input text.
+     * @param result The highlighted text.
+     * @throws UncheckedIOException If a new segment cannot be created.
+     */
+    public void put(String config, String text, String result) {
+        ByteBuffer key = key(config, text);
+        byte[] value = result.getBytes(StandardCharsets.UTF_8);
+        int length = KEY_SIZE + value.length;
+        if (length > segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE) {
+            return;
+        }
+        synchronized (this) {
+            checkOpen();
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.position + RECORD_HEADER_SIZE
+                    + length > segmentSize) {
+                segment = newSegment(segment == null ? 0 : segment.id + 1);
+            }
+
+            // write the payload first and the length last, so that the
+            // record is only visible once it is complete
+            int position = segment.position;
+            int offset = position + RECORD_HEADER_SIZE;
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset);
+            view.put(key.duplicate());
+            view.put(value);
+            segment.buffer.putInt(position + 4,
+                                  checksum(segment.buffer, offset, length));
+            segment.buffer.putInt(position, length);
+            segment.position = offset + length;
+
+            index.put(key, new Location(segment, offset + KEY_SIZE,
+                                        value.length));
+        }
+    }
+
+    private Segment newSegment(long id) {
+        while (!segments.isEmpty()
+                && (segments.size() + 1L) * segmentSize > maxSize) {
+            evict(segments.removeFirst());
+        }
+        try {
+            // segment ids are never reused, so the new file is all zeros
+            Segment segment = openSegment(id);
+            segment.buffer.putInt(0, SEGMENT_MAGIC);
+            return segment;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(
+                "Cannot create cache segment: " + segmentPath(id), e);
+        }
+    }
+
+    private void evict(Segment segment) {
+        Iterator<Location> locations = index.values().iterator();
+        while (locations.hasNext()) {
+            if (locations.next().segment == segment) {
+                locations.remove();
+            }
+        }
+        try {
+            Files.deleteIfExists(segment.path);
+        }
+        catch (IOException e) {
+            // it will be reused or evicted again after a restart
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Cache is closed");
+        }
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * @return The number of entries.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Flushes all segments to disk and releases the cache directory.
+     * @throws IOException If the directory lock cannot be released.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        index.clear();
+        lock.release();
+        lockChannel.close();
+    }
+}
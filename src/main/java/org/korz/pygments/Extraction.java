@@ -0,0 +1,214 @@
+package org.korz.pygments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Tokens of selected types, extracted while lexing.
+ * <p>
+ * This is meant for indexing, e.g. collecting the identifiers and comments
+ * of a file for code search while also highlighting it for display, without
+ * lexing twice:
+ * <pre><code>
+ * Extraction e = context.highlightAndExtract(
+ *     text, Arrays.asList("Name", "Comment"));
+ * String html = e.getHighlighted();
+ * for (int i = 0; i &lt; e.size(); ++i) {
+ *     index(e.getType(i), e.getValue(i), e.getStart(i));
+ * }
+ * </code></pre>
+ * Types are selected with the Pygments token hierarchy: selecting
+ * <code>Name</code> (or <code>Token.Name</code>) extracts
+ * <code>Name.Function</code>, <code>Name.Class</code>, etc. as well.
+ * <code>String</code> and <code>Number</code> are short for
+ * <code>Literal.String</code> and <code>Literal.Number</code>, like in
+ * <code>pygments.token</code>.
+ * <p>
+ * Each token is stored as a type id and two offsets into the lexed text.
+ * Instances are immutable and thread-safe.
+ * @see Lexer#extract
+ * @see PygmentsContext#highlightAndExtract
+ * @see <a href="http://pygments.org/docs/tokens/">
+ *      Pygments: Builtin Tokens</a>
+ */
+public class Extraction {
+    private final List<String> types;
+    private final int[] typeIds;
+    private final int[] starts;
+    private final int[] ends;
+    private final String text;
+    private final String highlighted;
+
+    private Extraction(List<String> types,
+                       int[] typeIds,
+                       int[] starts,
+                       int[] ends,
+                       String text,
+                       String highlighted) {
+        this.types = types;
+        this.typeIds = typeIds;
+        this.starts = starts;
+        this.ends = ends;
+        this.text = text;
+        this.highlighted = highlighted;
+    }
+
+    /**
+     * Extracts the tokens of the selected types from a token list.
+     * @param tokens The lexed tokens.
+     * @param selected The selected type names.
+     * @param highlighted The highlighted text, or null.
+     */
+    static Extraction select(TokenList tokens,
+                             Collection<String> selected,
+                             String highlighted) {
+        List<String> prefixes = new ArrayList<>(selected.size());
+        for (String type : selected) {
+            prefixes.add(normalize(type));
+        }
+        List<String> types = tokens.getTypes();
+        boolean[] matches = new boolean[types.size()];
+        for (int t = 0; t < matches.length; ++t) {
+            String type = types.get(t);
+            for (String prefix : prefixes) {
+                if (TokenList.isSubtype(type, prefix)) {
+                    matches[t] = true;
+                    break;
+                }
+            }
+        }
+
+        int size = 0;
+        int[] typeIds = new int[16];
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        for (int i = 0; i < tokens.size(); ++i) {
+            int typeId = tokens.getTypeId(i);
+            if (!matches[typeId]) {
+                continue;
+            }
+            if (size == typeIds.length) {
+                typeIds = Arrays.copyOf(typeIds, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            typeIds[size] = typeId;
+            starts[size] = tokens.getStart(i);
+            ends[size] = tokens.getEnd(i);
+            ++size;
+        }
+        return new Extraction(types,
+                              Arrays.copyOf(typeIds, size),
+                              Arrays.copyOf(starts, size),
+                              Arrays.copyOf(ends, size),
+                              tokens.getText(),
+                              highlighted);
+    }
+
+    // the full name of a type, e.g. Token.Literal.String for String
+    private static String normalize(String type) {
+        if (type.equals("Token")) {
+            return type;
+        }
+        if (type.startsWith("Token.")) {
+            type = type.substring("Token.".length());
+        }
+        for (String literal : new String[] {"String", "Number"}) {
+            if (type.equals(literal) || type.startsWith(literal + ".")) {
+                type = "Literal." + type;
+            }
+        }
+        return "Token." + type;
+    }
+
+    /**
+     * Returns the number of extracted tokens.
+     * @return The number of tokens.
+     */
+    public int size() {
+        return typeIds.length;
+    }
+
+    /**
+     * Returns the token type table.
+     * <p>
+     * This contains all types seen while lexing, not only selected ones.
+     * @return The token type names, indexed by type id.
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    /**
+     * Returns the type id of an extracted token.
+     * @param i The index of the extracted token.
+     * @return An index into {@link #getTypes}.
+     */
+    public int getTypeId(int i) {
+        return typeIds[i];
+    }
+
+    /**
+     * Returns the type name of an extracted token.
+     * @param i The index of the extracted token.
+     * @return The token type name.
+     */
+    public String getType(int i) {
+        return types.get(typeIds[i]);
+    }
+
+    /**
+     * Returns the offset of the first character of an extracted token.
+     * @param i The index of the extracted token.
+     * @return The offset into {@link #getText}.
+     */
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * Returns the offset after the last character of an extracted token.
+     * @param i The index of the extracted token.
+     * @return The offset into {@link #getText}.
+     */
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Returns the text of an extracted token.
+     * @param i The index of the extracted token.
+     * @return The token text.
+     */
+    public String getValue(int i) {
+        return text.substring(starts[i], ends[i]);
+    }
+
+    /**
+     * Returns the lexed text that the offsets refer to.
+     * <p>
+     * This may differ from the text originally given to the lexer, since
+     * lexers may normalize newlines, expand tabs, etc.
+     * @return The lexed text.
+     * @see TokenList#getText
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the highlighted text, if it was produced in the same pass.
+     * @return The highlighted text, or null if only tokens were extracted.
+     * @see PygmentsContext#highlightAndExtract
+     */
+    public String getHighlighted() {
+        return highlighted;
+    }
+
+    @Override
+    public String toString() {
+        return "Extraction(" + size() + " tokens)";
+    }
+}
@@ -0,0 +1,63 @@
+package org.korz.pygments;
+
+import org.python.core.Py;
+import org.python.core.PyObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The filename patterns of all lexers, matched in Java.
+ * <p>
+ * This lets {@link Lexer#forFile} reject filenames that no lexer can match
+ * without calling into Python. Filenames that match a pattern still go
+ * through Pygments, which picks the best of the matching lexers.
+ */
+class FilenamePatterns {
+    // null if the patterns cannot be matched in Java
+    private static class Loaded {
+        static final List<Pattern> PATTERNS = load();
+
+        private static List<Pattern> load() {
+            PyObject regexes = PythonHelpers.lexerFilenamePatterns();
+            if (regexes == Py.None) {
+                return null;
+            }
+            List<Pattern> patterns = new ArrayList<>();
+            try {
+                for (PyObject regex : regexes.asIterable()) {
+                    patterns.add(PythonRegex.compile(
+                        PythonUtil.toJava(String.class, regex), ""));
+                }
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+            return Collections.unmodifiableList(patterns);
+        }
+    }
+
+    /**
+     * Returns whether any lexer might match a filename.
+     * @param file The filename, possibly with directories.
+     * @return False if no lexer matches the filename.
+     */
+    static boolean mayMatch(String file) {
+        List<Pattern> patterns = Loaded.PATTERNS;
+        if (patterns == null) {
+            return true;
+        }
+        // posixpath.basename
+        String name = file.substring(file.lastIndexOf('/') + 1);
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).lookingAt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FilenamePatterns() {}
+}
@@ -0,0 +1,77 @@
+package org.korz.pygments;
+
+/**
+ * Interfaces for push-based streams with backpressure.
+ * <p>
+ * These mirror <code>java.util.concurrent.Flow</code> and the Reactive
+ * Streams specification, which this library cannot use directly because it
+ * targets Java 8. The methods and their contracts are the same, so on
+ * Java 9 and later a thin wrapper per interface adapts one to the other.
+ * Publishers in this library follow the Reactive Streams rules: signals are
+ * never concurrent, nothing is sent beyond the requested demand, and a
+ * non-positive request is reported through <code>onError</code>.
+ * @see PygmentsContext#publish
+ * @see Lexer#publish
+ */
+public final class Flow {
+    /**
+     * A producer of items that are sent to subscribers on demand.
+     * @param <T> The item type.
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+        /**
+         * Adds a subscriber, which is then sent
+         * {@link Subscriber#onSubscribe}.
+         * @param subscriber The subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     * @param <T> The item type.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called before any other method with the new subscription.
+         * @param subscription The subscription, used to request items.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item.
+         * @param item The item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the stream fails. No further methods are called.
+         * @param throwable The failure.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when all items were sent. No further methods are called.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Adds demand for up to n more items.
+         * @param n The number of items, which must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stops sending items. Items may still arrive for a short while.
+         */
+        void cancel();
+    }
+
+    private Flow() {}
+}
@@ -2,8 +2,13 @@ package org.korz.pygments;
 
 import org.python.core.PyObject;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * Renders Pygments tokens into highlighted text.
@@ -33,13 +38,24 @@ import java.util.Map;
  *      Pygments: Available Formatters</a>
  */
 public class Formatter {
+    private static final NegativeCache MISSES = new NegativeCache(4096);
+
     /**
      * Constructs a formatter.
      */
     public static abstract class Builder {
         protected final Map<String, Object> options = new HashMap<>();
 
-        protected Builder() {}
+        // describes the lookup for the negative cache, or null
+        private final String missKey;
+
+        protected Builder() {
+            this(null);
+        }
+
+        Builder(String missKey) {
+            this.missKey = missKey;
+        }
 
         /**
          * Creates a new Formatter instance.
@@ -48,6 +64,26 @@ public class Formatter {
          */
         public abstract Formatter build();
 
+        /**
+         * Creates a new Formatter instance if a formatter is found.
+         * <p>
+         * Failed lookups by name are remembered, so asking again for a
+         * formatter that does not exist is cheap and does not create an
+         * exception.
+         * @return A new instance, or empty if no formatter is found.
+         */
+        public Optional<Formatter> tryBuild() {
+            if (missKey != null && MISSES.contains(missKey)) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(build());
+            }
+            catch (ClassNotFoundException e) {
+                return Optional.empty();
+            }
+        }
+
         /**
          * Sets a formatter option.
          * @param name The option name.
@@ -86,10 +122,12 @@ public class Formatter {
      *      pygments.formatters.get_formatter_by_name</a>
      */
     public static Builder byName(String name) {
-        return new Builder() {
+        return new Builder("name:" + name) {
             @Override
             public Formatter build() {
-                return new Formatter(Pygments.getFormatter(name, options));
+                return new Formatter(MISSES.lookup(
+                    "name:" + name,
+                    () -> Pygments.getFormatter(name, options)));
             }
         };
     }
@@ -104,19 +142,37 @@ public class Formatter {
      *      pygments.formatters.get_formatter_for_filename</a>
      */
     public static Builder forFile(String file) {
+        // misses are not cached, since filenames are often unique
         return new Builder() {
             @Override
             public Formatter build() {
-                return new Formatter(
-                    Pygments.getFormatterForFile(file, options));
+                return new Formatter(Pygments.getFormatterForFile(file,
+                                                                  options));
             }
         };
     }
 
     private final PyObject delegate;
+    private final String encoding;
+    // computed once, since options cannot change after creation
+    private volatile String configKey;
 
     private Formatter(PyObject delegate) {
         this.delegate = delegate;
+        this.encoding = PythonUtil.get(String.class, delegate, "encoding");
+    }
+
+    PyObject getDelegate() {
+        return delegate;
+    }
+
+    String getConfigKey() {
+        String key = configKey;
+        if (key == null) {
+            key = PythonHelpers.configKey(delegate);
+            configKey = key;
+        }
+        return key;
     }
 
     /**
@@ -127,6 +183,90 @@ public class Formatter {
         return PythonUtil.get(String.class, delegate, "name");
     }
 
+    /**
+     * Returns the output encoding of this Formatter.
+     * <p>
+     * If a formatter has an encoding, set by the <code>encoding</code> or
+     * <code>outencoding</code> option, Pygments encodes its output to
+     * bytes. Methods that return a String then return one char per byte;
+     * use {@link PygmentsContext#highlight(byte[], Charset)} to get the
+     * bytes themselves.
+     * @return The Python name of the encoding, or null if this Formatter
+     *         outputs text.
+     * @see <a href="http://pygments.org/docs/unicode/">
+     *      Pygments: Unicode and Encodings</a>
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Encodes output of this Formatter.
+     * <p>
+     * Output that Pygments already encoded is returned one byte per char,
+     * other output is encoded with the given charset.
+     */
+    byte[] encode(String output, Charset charset) {
+        if (encoding != null) {
+            return output.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return output.getBytes(charset);
+    }
+
+    /**
+     * Returns the style definitions for this Formatter's output.
+     * <p>
+     * This is equivalent to <code>getStyleDefs(null)</code>.
+     * @return The style definitions, e.g. CSS for the HTML formatter.
+     * @see #getStyleDefs(String)
+     */
+    public String getStyleDefs() {
+        return getStyleDefs(null);
+    }
+
+    /**
+     * Returns the style definitions for this Formatter's output.
+     * <p>
+     * The definitions are generated in Python once per formatter
+     * configuration and selector, and cached after that for all Formatter
+     * instances with the same options.
+     * @param selector A selector to prefix each rule with, or null for the
+     *                 formatter's default (for the HTML formatter, the
+     *                 <code>cssclass</code> option if it was set, or no
+     *                 prefix otherwise).
+     * @return The style definitions, e.g. CSS for the HTML formatter.
+     * @see <a href="http://pygments.org/docs/formatterdevelopment/#formatting-with-style-definitions">
+     *      Pygments: Formatting with style definitions</a>
+     */
+    public String getStyleDefs(String selector) {
+        return styleDefs(selector).getCss();
+    }
+
+    /**
+     * Returns the style definitions as gzipped UTF-8.
+     * <p>
+     * The definitions are compressed once and cached like
+     * {@link #getStyleDefs(String)}, so they can be served with
+     * <code>Content-Encoding: gzip</code> without compressing each time.
+     * @param selector A selector to prefix each rule with, or null for the
+     *                 formatter's default.
+     * @return A new copy of the gzipped style definitions.
+     */
+    public byte[] getStyleDefsGzip(String selector) {
+        return styleDefs(selector).getGzipped();
+    }
+
+    private StyleDefs styleDefs(String selector) {
+        return StyleDefs.get(getConfigKey(), selector, () -> {
+            PyObject getStyleDefs = PythonUtil.get(delegate,
+                                                   "get_style_defs");
+            return selector == null
+                ? PythonUtil.call(String.class, getStyleDefs)
+                : PythonUtil.call(String.class, getStyleDefs,
+                                  Collections.singletonList(selector));
+        });
+    }
+
     /**
      * Renders a Pygments token sequence.
      * @param tokens Pygments tokens
@@ -134,6 +274,88 @@ public class Formatter {
      * @see Lexer#lex
      */
     public String format(Iterable<?> tokens) {
+        if (tokens instanceof TokenList) {
+            return format((TokenList) tokens);
+        }
+        if (tokens instanceof TokenArena) {
+            return format((TokenArena) tokens);
+        }
         return Pygments.format(tokens, delegate);
     }
+
+    /**
+     * Renders a lexed token list.
+     * <p>
+     * The whole token list is passed to Python in a single call, so the same
+     * token list can be rendered by multiple formatters without lexing again.
+     * @param tokens The tokens.
+     * @return Highlighted text.
+     * @see Lexer#lexAll
+     */
+    public String format(TokenList tokens) {
+        return PythonHelpers.formatTokens(tokens, delegate);
+    }
+
+    /**
+     * Renders tokens stored off the heap.
+     * <p>
+     * The tokens are passed to Python one chunk at a time, so only a chunk
+     * of them is copied onto the heap at once.
+     * @param tokens The tokens.
+     * @return Highlighted text.
+     * @throws IllegalStateException If the arena is closed.
+     * @see Lexer#lexArena
+     */
+    public String format(TokenArena tokens) {
+        return PythonHelpers.formatTokens(tokens, delegate);
+    }
+
+    /**
+     * Renders a Pygments token sequence into one fragment per line.
+     * <p>
+     * This is equivalent to
+     * <code>formatLines(tokens, 0, Integer.MAX_VALUE)</code>.
+     * @param tokens Pygments tokens.
+     * @return The fragment for each line.
+     * @see #formatLines(Iterable, int, int)
+     */
+    public List<String> formatLines(Iterable<?> tokens) {
+        return formatLines(tokens, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Renders a range of lines into one fragment per line.
+     * <p>
+     * Each HTML fragment opens and closes its own spans and ends with the
+     * line separator, so any subset of lines can be rendered on its own.
+     * The wrapping the HTML formatter puts around its whole output, e.g.
+     * the <code>div</code>, <code>pre</code> and line numbers, is left out.
+     * Other formatters render each line as if it were the whole input.
+     * <p>
+     * Only the lines in the range are rendered, and tokens after the range
+     * are not consumed, so a lazily lexed sequence stops lexing there.
+     * @param tokens Pygments tokens.
+     * @param fromLine The first line, counting from 0.
+     * @param toLine The line after the last line.
+     * @return The fragment for each line in the range, or fewer if the
+     *         tokens end first.
+     * @throws IllegalArgumentException If the range is invalid.
+     */
+    public List<String> formatLines(Iterable<?> tokens,
+                                    int fromLine,
+                                    int toLine) {
+        if (fromLine < 0 || toLine < fromLine) {
+            throw new IllegalArgumentException(
+                "Invalid line range: " + fromLine + " to " + toLine);
+        }
+        if (tokens instanceof TokenList) {
+            return PythonHelpers.formatLines((TokenList) tokens, delegate,
+                                             fromLine, toLine);
+        }
+        if (tokens instanceof TokenArena) {
+            return PythonHelpers.formatLines((TokenArena) tokens, delegate,
+                                             fromLine, toLine);
+        }
+        return PythonHelpers.formatLines(tokens, delegate, fromLine, toLine);
+    }
 }
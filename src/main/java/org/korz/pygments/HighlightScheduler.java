@@ -0,0 +1,448 @@
+package org.korz.pygments;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Runs highlighting work with admission control and per-tenant fairness.
+ * <p>
+ * Work is submitted on behalf of a tenant, e.g. a customer or a service, and
+ * queued per tenant. A fixed number of worker threads take work from the
+ * queues using start-time fair queuing weighted by input size, so a tenant
+ * that submits a few huge files cannot starve one that submits many small
+ * ones. Each tenant can be given a weight to receive a larger share of the
+ * capacity, which can also be used to model priorities.
+ * <pre><code>
+ * HighlightScheduler scheduler = HighlightScheduler.newScheduler()
+ *     .setConcurrency(4)
+ *     .setMaxQueueDelay(500, TimeUnit.MILLISECONDS)
+ *     .setTenantWeight("interactive", 4)
+ *     .build();
+ * String html = scheduler.highlight("interactive", context, text);
+ * </code></pre>
+ * New work is rejected immediately with a RejectedExecutionException,
+ * rather than queued, when the queue is full or when the queued work is
+ * estimated to take longer than the configured latency budget. The estimate
+ * is based on the measured throughput of completed work.
+ * <p>
+ * Instances are thread-safe.
+ * @see PygmentsContext
+ */
+public class HighlightScheduler implements Closeable {
+    /**
+     * Constructs a scheduler.
+     */
+    public static class Builder {
+        private int concurrency = Runtime.getRuntime().availableProcessors();
+        private int maxTenantConcurrency;
+        private int maxQueueSize = 1024;
+        private long maxQueueDelayNanos;
+        private final Map<String, Double> weights = new HashMap<>();
+
+        private Builder() {}
+
+        /**
+         * Sets the number of worker threads.
+         * <p>
+         * The default is the number of available processors.
+         * @param concurrency The number of threads.
+         * @return This builder for method chaining.
+         */
+        public Builder setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of tasks of a single tenant that may run at
+         * the same time.
+         * <p>
+         * The default is the concurrency, i.e. no per-tenant limit.
+         * @param maxTenantConcurrency The maximum number of tasks.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxTenantConcurrency(int maxTenantConcurrency) {
+            this.maxTenantConcurrency = maxTenantConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of queued tasks across all tenants.
+         * <p>
+         * The default is 1024.
+         * @param maxQueueSize The maximum number of tasks.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * Sets the latency budget for queued work.
+         * <p>
+         * New work is rejected if the work already queued is estimated to
+         * take longer than this to start. The default is 0, which disables
+         * the check.
+         * @param maxQueueDelay The latency budget.
+         * @param unit The unit of the latency budget.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxQueueDelay(long maxQueueDelay, TimeUnit unit) {
+            this.maxQueueDelayNanos = unit.toNanos(maxQueueDelay);
+            return this;
+        }
+
+        /**
+         * Sets the weight of a tenant.
+         * <p>
+         * A tenant with twice the weight of another receives twice its share
+         * of the capacity when both have work queued. The default weight is
+         * 1.
+         * @param tenant The tenant.
+         * @param weight The weight.
+         * @return This builder for method chaining.
+         */
+        public Builder setTenantWeight(String tenant, double weight) {
+            weights.put(tenant, weight);
+            return this;
+        }
+
+        /**
+         * Creates a new HighlightScheduler instance and starts its workers.
+         * @return A new instance.
+         * @throws IllegalArgumentException If the settings are invalid.
+         */
+        public HighlightScheduler build() {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException(
+                    "concurrency must be positive: " + concurrency);
+            }
+            if (maxTenantConcurrency < 0) {
+                throw new IllegalArgumentException(
+                    "maxTenantConcurrency must not be negative: "
+                    + maxTenantConcurrency);
+            }
+            if (maxQueueSize < 1) {
+                throw new IllegalArgumentException(
+                    "maxQueueSize must be positive: " + maxQueueSize);
+            }
+            for (Map.Entry<String, Double> weight : weights.entrySet()) {
+                if (!(weight.getValue() > 0)) {
+                    throw new IllegalArgumentException(
+                        "Weight must be positive: " + weight);
+                }
+            }
+            return new HighlightScheduler(this);
+        }
+    }
+
+    /**
+     * Creates a new HighlightScheduler builder.
+     * @return A new builder.
+     */
+    public static Builder newScheduler() {
+        return new Builder();
+    }
+
+    // smoothing factor for the throughput estimate
+    private static final double ALPHA = 0.2;
+
+    private static class Task<T> {
+        final Tenant tenant;
+        final long cost;
+        final double start;
+        // breaks ties between equal start times in submission order
+        final long sequence;
+        final Supplier<T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Tenant tenant,
+             long cost,
+             double start,
+             long sequence,
+             Supplier<T> work) {
+            this.tenant = tenant;
+            this.cost = cost;
+            this.start = start;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        boolean before(Task<?> other) {
+            return start < other.start
+                || (start == other.start && sequence < other.sequence);
+        }
+
+        void run() {
+            try {
+                result.complete(work.get());
+            }
+            catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Tenant {
+        final String name;
+        final double weight;
+        final Deque<Task<?>> queue = new ArrayDeque<>();
+        // virtual finish time of the last task queued
+        double finish;
+        int running;
+
+        Tenant(String name, double weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private final int maxTenantConcurrency;
+    private final int maxQueueSize;
+    private final long maxQueueDelayNanos;
+    private final int concurrency;
+    private final Map<String, Double> weights;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // all guarded by lock
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private int queueSize;
+    private long queuedCost;
+    // 0 until the first task completes
+    private double nanosPerCost;
+    private boolean closed;
+
+    private HighlightScheduler(Builder builder) {
+        this.concurrency = builder.concurrency;
+        this.maxTenantConcurrency = builder.maxTenantConcurrency == 0
+            ? builder.concurrency
+            : builder.maxTenantConcurrency;
+        this.maxQueueSize = builder.maxQueueSize;
+        this.maxQueueDelayNanos = builder.maxQueueDelayNanos;
+        this.weights = new HashMap<>(builder.weights);
+        for (int i = 0; i < concurrency; ++i) {
+            Thread worker = new Thread(this::work,
+                                       "pygments-scheduler-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Submits work on behalf of a tenant.
+     * @param <T> The result type.
+     * @param tenant The tenant.
+     * @param cost The relative cost of the work, e.g. the input size.
+     * @param work The work.
+     * @return The result.
+     * @throws RejectedExecutionException If the work is rejected because
+     *                                    the scheduler is overloaded or
+     *                                    closed.
+     */
+    public <T> CompletableFuture<T> submit(String tenant,
+                                           long cost,
+                                           Supplier<T> work) {
+        if (cost < 0) {
+            throw new IllegalArgumentException(
+                "cost must not be negative: " + cost);
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RejectedExecutionException("Scheduler is closed");
+            }
+            if (queueSize >= maxQueueSize) {
+                throw new RejectedExecutionException(
+                    "Queue is full: " + queueSize + " tasks");
+            }
+            if (maxQueueDelayNanos > 0 && queueSize > 0) {
+                double delay = queuedCost * nanosPerCost / concurrency;
+                if (delay > maxQueueDelayNanos) {
+                    throw new RejectedExecutionException(String.format(
+                        "Estimated queue delay %.1f ms exceeds budget",
+                        delay / 1e6));
+                }
+            }
+            Tenant t = tenants.computeIfAbsent(tenant, name -> new Tenant(
+                name, weights.getOrDefault(name, 1.0)));
+            // start-time fair queuing
+            double start = Math.max(virtualTime, t.finish);
+            t.finish = start + Math.max(cost, 1) / t.weight;
+            Task<T> task = new Task<>(t, cost, start, sequence++, work);
+            t.queue.add(task);
+            ++queueSize;
+            queuedCost += cost;
+            changed.signalAll();
+            return task.result;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Submits highlighting work on behalf of a tenant.
+     * <p>
+     * The cost of the work is the length of the text.
+     * @param tenant The tenant.
+     * @param context The context to highlight with.
+     * @param text The text to highlight.
+     * @return The highlighted text.
+     * @throws RejectedExecutionException If the work is rejected because
+     *                                    the scheduler is overloaded or
+     *                                    closed.
+     */
+    public CompletableFuture<String> submit(String tenant,
+                                            PygmentsContext context,
+                                            String text) {
+        return submit(tenant, text.length(), () -> context.highlight(text));
+    }
+
+    /**
+     * Highlights text on behalf of a tenant and waits for the result.
+     * @param tenant The tenant.
+     * @param context The context to highlight with.
+     * @param text The text to highlight.
+     * @return The highlighted text.
+     * @throws RejectedExecutionException If the work is rejected because
+     *                                    the scheduler is overloaded or
+     *                                    closed.
+     */
+    public String highlight(String tenant,
+                            PygmentsContext context,
+                            String text) {
+        try {
+            return submit(tenant, context, text).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of queued tasks, excluding running tasks.
+     * @return The number of tasks.
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queueSize;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers.
+     * <p>
+     * Running tasks are allowed to finish. Queued tasks are cancelled.
+     */
+    @Override
+    public void close() {
+        List<Task<?>> cancelled = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Tenant t : tenants.values()) {
+                cancelled.addAll(t.queue);
+                t.queue.clear();
+            }
+            queueSize = 0;
+            queuedCost = 0;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Task<?> task : cancelled) {
+            task.result.completeExceptionally(
+                new CancellationException("Scheduler is closed"));
+        }
+    }
+
+    // the queued task with the earliest start time among eligible tenants
+    private Task<?> next() {
+        Tenant best = null;
+        for (Tenant t : tenants.values()) {
+            if (!t.queue.isEmpty() && t.running < maxTenantConcurrency
+                    && (best == null
+                        || t.queue.peek().before(best.queue.peek()))) {
+                best = t;
+            }
+        }
+        return best == null ? null : best.queue.poll();
+    }
+
+    private void work() {
+        while (true) {
+            Task<?> task = null;
+            lock.lock();
+            try {
+                while (!closed) {
+                    task = next();
+                    if (task != null) {
+                        break;
+                    }
+                    changed.awaitUninterruptibly();
+                }
+                if (task == null) {
+                    return;
+                }
+                --queueSize;
+                queuedCost -= task.cost;
+                ++task.tenant.running;
+                virtualTime = Math.max(virtualTime, task.start);
+            }
+            finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            if (!task.result.isDone()) {
+                task.run();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                --task.tenant.running;
+                if (task.cost > 0) {
+                    double sample = (double) elapsed / task.cost;
+                    nanosPerCost = nanosPerCost == 0
+                        ? sample
+                        : ALPHA * sample + (1 - ALPHA) * nanosPerCost;
+                }
+                if (task.tenant.queue.isEmpty() && task.tenant.running == 0
+                        && task.tenant.finish <= virtualTime) {
+                    // its state would be recreated identically
+                    tenants.remove(task.tenant.name);
+                }
+                changed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
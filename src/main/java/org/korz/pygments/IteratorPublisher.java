@@ -0,0 +1,137 @@
+package org.korz.pygments;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the items of an iterator as subscribers request them.
+ * <p>
+ * Each subscriber gets its own iterator, created when it first requests
+ * items. Items are pulled from the iterator and sent on the executor, never
+ * on the thread that calls {@link Flow.Subscription#request}, so a caller
+ * on an event loop is never blocked by lexing or formatting. At most one
+ * task per subscriber runs at a time.
+ */
+class IteratorPublisher<T> implements Flow.Publisher<T> {
+    private final Supplier<? extends Iterator<? extends T>> source;
+    private final Executor executor;
+
+    IteratorPublisher(Supplier<? extends Iterator<? extends T>> source,
+                      Executor executor) {
+        this.source = source;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        subscriber.onSubscribe(new IteratorSubscription(subscriber));
+    }
+
+    private class IteratorSubscription implements Flow.Subscription,
+                                                  Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        // the number of times the drain loop was asked to run
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        // the error for a non-positive request, or null
+        private volatile String invalidRequest;
+        // only used by the drain loop
+        private Iterator<? extends T> iterator;
+        private boolean done;
+
+        IteratorSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = "Requests must be positive: " + n;
+            }
+            else {
+                requested.accumulateAndGet(n, (a, b) -> {
+                    long sum = a + b;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() != 0) {
+                // the running drain loop will go around again
+                return;
+            }
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                done = true;
+                cancelled = true;
+                subscriber.onError(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done || cancelled) {
+                return;
+            }
+            if (invalidRequest != null) {
+                done = true;
+                subscriber.onError(
+                    new IllegalArgumentException(invalidRequest));
+                return;
+            }
+            try {
+                if (iterator == null) {
+                    iterator = source.get();
+                }
+                long demand = requested.get();
+                long sent = 0;
+                while (sent < demand && !cancelled) {
+                    if (!iterator.hasNext()) {
+                        break;
+                    }
+                    subscriber.onNext(iterator.next());
+                    ++sent;
+                }
+                if (!cancelled && !iterator.hasNext()) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-sent);
+                }
+            }
+            catch (RuntimeException e) {
+                done = true;
+                if (!cancelled) {
+                    subscriber.onError(e);
+                }
+            }
+        }
+    }
+}
@@ -2,8 +2,17 @@ package org.korz.pygments;
 
 import org.python.core.PyObject;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Lexes text into Pygments tokens.
@@ -51,13 +60,49 @@ import java.util.Map;
  *      Pygments: Available Lexers</a>
  */
 public class Lexer {
+    /**
+     * The default number of tokens transferred from Python per batch.
+     * @see #tokens(String, int)
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private static final NegativeCache MISSES = new NegativeCache(4096);
+
+    /**
+     * The implementation used to run a lexer.
+     * @see Builder#setEngine
+     */
+    public enum Engine {
+        /**
+         * Runs the lexer in Python. This supports all lexers.
+         */
+        PYTHON,
+        /**
+         * Runs the lexer's regex state machine in Java.
+         * <p>
+         * Only lexers that behave exactly like Pygments' RegexLexer can run
+         * in Java. Their regexes are translated to java.util.regex and their
+         * tokens are identical to the Python engine's.
+         */
+        JAVA,
+    }
+
     /**
      * Constructs a lexer.
      */
     public static abstract class Builder {
         protected final Map<String, Object> options = new HashMap<>();
+        protected Engine engine = Engine.PYTHON;
+        // describes the lookup for the negative cache, or null
+        private final String missKey;
 
-        protected Builder() {}
+        protected Builder() {
+            this(null);
+        }
+
+        Builder(String missKey) {
+            this.missKey = missKey;
+        }
 
         /**
          * Creates a new Lexer instance.
@@ -66,6 +111,27 @@ public class Lexer {
          */
         public abstract Lexer build();
 
+        /**
+         * Creates a new Lexer instance if a lexer is found.
+         * <p>
+         * Failed lookups by name or MIME type are remembered, and filenames
+         * that match no lexer's patterns are rejected in Java, so asking
+         * again for a lexer that does not exist is cheap and does not create
+         * an exception.
+         * @return A new instance, or empty if no lexer is found.
+         */
+        public Optional<Lexer> tryBuild() {
+            if (missKey != null && MISSES.contains(missKey)) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(build());
+            }
+            catch (ClassNotFoundException e) {
+                return Optional.empty();
+            }
+        }
+
         /**
          * Sets a lexer option.
          * @param name The option name.
@@ -92,6 +158,27 @@ public class Lexer {
             }
             return this;
         }
+
+        /**
+         * Sets the preferred lexing engine.
+         * <p>
+         * If the Java engine is requested but the lexer cannot be run in
+         * Java, the Python engine is used instead. Use
+         * {@link Lexer#getEngine} to check which engine was selected.
+         * <p>
+         * The default is {@link Engine#PYTHON}.
+         * <p>
+         * Lexers created with {@link Lexer#byName} and no options can use the
+         * Java engine without starting Python if their tables were exported
+         * into the jar at build time. Python is then only started when it is
+         * needed, e.g. for formatting.
+         * @param engine The engine.
+         * @return This builder for method chaining.
+         */
+        public Builder setEngine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
     }
 
     /**
@@ -104,10 +191,19 @@ public class Lexer {
      *      pygments.lexers.get_lexer_by_name</a>
      */
     public static Builder byName(String name) {
-        return new Builder() {
+        return new Builder("name:" + name) {
             @Override
             public Lexer build() {
-                return new Lexer(Pygments.getLexer(name, options));
+                if (engine == Engine.JAVA && options.isEmpty()) {
+                    LexerTables.Entry entry = LexerTables.find(name);
+                    if (entry != null) {
+                        return new Lexer(entry);
+                    }
+                }
+                return new Lexer(
+                    MISSES.lookup("name:" + name,
+                                  () -> Pygments.getLexer(name, options)),
+                    engine);
             }
         };
     }
@@ -122,10 +218,25 @@ public class Lexer {
      *      pygments.lexers.get_lexer_for_filename</a>
      */
     public static Builder forFile(String file) {
+        // misses are not cached by filename, since names such as uploads are
+        // often unique; the filename patterns reject them instead
         return new Builder() {
             @Override
             public Lexer build() {
-                return new Lexer(Pygments.getLexerForFile(file, options));
+                if (!FilenamePatterns.mayMatch(file)) {
+                    throw new ClassNotFoundException(
+                        "no lexer for filename '" + file + "' found");
+                }
+                return new Lexer(Pygments.getLexerForFile(file, options),
+                                 engine);
+            }
+
+            @Override
+            public Optional<Lexer> tryBuild() {
+                if (!FilenamePatterns.mayMatch(file)) {
+                    return Optional.empty();
+                }
+                return super.tryBuild();
             }
         };
     }
@@ -140,10 +251,14 @@ public class Lexer {
      *      pygments.lexers.get_lexer_for_mimetype</a>
      */
     public static Builder forMime(String mime) {
-        return new Builder() {
+        return new Builder("mime:" + mime) {
             @Override
             public Lexer build() {
-                return new Lexer(Pygments.getLexerForMime(mime, options));
+                return new Lexer(
+                    MISSES.lookup("mime:" + mime,
+                                  () -> Pygments.getLexerForMime(mime,
+                                                                 options)),
+                    engine);
             }
         };
     }
@@ -164,7 +279,8 @@ public class Lexer {
         return new Builder() {
             @Override
             public Lexer build() {
-                return new Lexer(Pygments.guessLexer(text, options));
+                return new Lexer(Pygments.guessLexer(text, options),
+                                 engine);
             }
         };
     }
@@ -181,19 +297,56 @@ public class Lexer {
      *      pygments.lexers.guess_lexer_for_filename</a>
      */
     public static Builder guessForFile(String file, String text) {
+        // not cached like forFile misses, and not prefiltered either, since
+        // guessing also matches the lexers' alias filenames
         return new Builder() {
             @Override
             public Lexer build() {
                 return new Lexer(
-                    Pygments.guessLexerForFile(file, text, options));
+                    Pygments.guessLexerForFile(file, text, options),
+                    engine);
             }
         };
     }
 
-    private final PyObject delegate;
+    // null until needed if created from an exported table
+    private PyObject delegate;
+    private final LexerTables.Entry entry;
+    private final RegexEngine regexEngine;
 
-    private Lexer(PyObject delegate) {
+    private Lexer(PyObject delegate, Engine engine) {
         this.delegate = delegate;
+        this.entry = null;
+        this.regexEngine = engine == Engine.JAVA
+            ? RegexEngine.forLexer(delegate)
+            : null;
+    }
+
+    private Lexer(LexerTables.Entry entry) {
+        this.entry = entry;
+        this.regexEngine = entry.newEngine();
+    }
+
+    /**
+     * Forgets failed lookups, e.g. after the set of loadable lexers changes.
+     */
+    static void clearMisses() {
+        MISSES.clear();
+    }
+
+    synchronized PyObject getDelegate() {
+        if (delegate == null) {
+            delegate = Pygments.getLexer(entry.getAliases().get(0),
+                                         Collections.emptyMap());
+        }
+        return delegate;
+    }
+
+    String getConfigKey() {
+        if (entry != null) {
+            return entry.getConfigKey();
+        }
+        return PythonHelpers.configKey(getDelegate());
     }
 
     /**
@@ -201,16 +354,263 @@ public class Lexer {
      * @return The name of this Lexer.
      */
     public String getName() {
-        return PythonUtil.get(String.class, delegate, "name");
+        if (entry != null) {
+            return entry.getName();
+        }
+        return PythonUtil.get(String.class, getDelegate(), "name");
+    }
+
+    /**
+     * Returns the engine used by this Lexer.
+     * @return The engine.
+     * @see Builder#setEngine
+     */
+    public Engine getEngine() {
+        return regexEngine == null ? Engine.PYTHON : Engine.JAVA;
     }
 
     /**
      * Lexes text into a Pygments token sequence.
+     * <p>
+     * If this Lexer uses the Java engine, the result is a {@link TokenList}.
      * @param text The text.
      * @return Pygments tokens.
      * @see Formatter#format
      */
     public Iterable<?> lex(String text) {
-        return Pygments.lex(text, delegate);
+        if (regexEngine != null) {
+            return regexEngine.lex(text);
+        }
+        return Pygments.lex(text, getDelegate());
+    }
+
+    /**
+     * Lexes a UTF-8 text file into a Pygments token sequence.
+     * <p>
+     * This is equivalent to <code>lex(file, StandardCharsets.UTF_8)</code>.
+     * @param file The file.
+     * @return Pygments tokens.
+     * @throws IOException If the file cannot be read.
+     * @see #lex(Path, Charset)
+     */
+    public Iterable<?> lex(Path file) throws IOException {
+        return lex(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lexes a text file into a Pygments token sequence.
+     * <p>
+     * The file is read through a memory mapping, one bounded window at a
+     * time, and decoded into the text that is lexed. Malformed input is
+     * replaced.
+     * @param file The file.
+     * @param charset The file's encoding.
+     * @return Pygments tokens.
+     * @throws IOException If the file cannot be read.
+     */
+    public Iterable<?> lex(Path file, Charset charset) throws IOException {
+        return lex(MappedText.read(file, charset));
+    }
+
+    /**
+     * Lexes text into a sequence of Java tokens.
+     * <p>
+     * This is equivalent to <code>tokens(text, DEFAULT_BATCH_SIZE)</code>.
+     * @param text The text.
+     * @return Java tokens.
+     * @see #tokens(String, int)
+     */
+    public Iterable<Token> tokens(String text) {
+        return tokens(text, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Lexes text into a sequence of Java tokens.
+     * <p>
+     * With {@link Engine#PYTHON}, unlike {@link #lex}, tokens are collected
+     * in Python and transferred to Java in batches, so the Java/Python
+     * boundary is crossed once per batch rather than once per token. The
+     * text is lexed again each time the returned sequence is iterated.
+     * <p>
+     * With {@link Engine#JAVA}, the text is lexed once, before this method
+     * returns, into a {@link TokenList}, which is what each iteration walks.
+     * The batch size does not apply.
+     * @param text The text.
+     * @param batchSize The maximum number of tokens per batch.
+     * @return Java tokens.
+     * @throws IllegalArgumentException If batchSize is not positive.
+     */
+    public Iterable<Token> tokens(String text, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                "batchSize must be positive: " + batchSize);
+        }
+        if (regexEngine != null) {
+            return regexEngine.lex(text);
+        }
+        return () -> new TokenBatches.TokenIterator(new TokenBatches(
+            PythonHelpers.lexBatches(text, getDelegate(), batchSize)));
+    }
+
+    /**
+     * Lexes text into a stream of Java tokens.
+     * <p>
+     * This is equivalent to
+     * <code>publish(text, ForkJoinPool.commonPool())</code>.
+     * @param text The text.
+     * @return A publisher of Java tokens.
+     * @see #publish(String, Executor)
+     */
+    public Flow.Publisher<Token> publish(String text) {
+        return publish(text, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Lexes text into a stream of Java tokens.
+     * <p>
+     * Each subscriber receives the tokens of {@link #tokens(String)}. They
+     * are lexed as they are requested, a batch at a time with the Python
+     * engine, and lexing runs on the executor, never on the thread that
+     * subscribes or requests.
+     * @param text The text.
+     * @param executor The executor to lex on.
+     * @return A publisher of Java tokens.
+     * @see PygmentsContext#publish
+     */
+    public Flow.Publisher<Token> publish(String text, Executor executor) {
+        return new IteratorPublisher<>(() -> tokens(text).iterator(),
+                                       executor);
+    }
+
+    /**
+     * Lexes text into a token list.
+     * <p>
+     * Tokens are transferred from Python in batches, like {@link #tokens}.
+     * @param text The text.
+     * @return All tokens.
+     * @see Formatter#format(TokenList)
+     */
+    public TokenList lexAll(String text) {
+        if (regexEngine != null) {
+            return regexEngine.lex(text);
+        }
+        return TokenList.collect(new TokenBatches(PythonHelpers.lexBatches(
+            text, getDelegate(), DEFAULT_BATCH_SIZE)));
+    }
+
+    /**
+     * Lexes text and extracts the tokens of selected types.
+     * @param text The text.
+     * @param types The token types to extract, e.g. <code>Name</code> or
+     *              <code>Comment.Single</code>. Subtypes are included.
+     * @return The extracted tokens.
+     * @see Extraction
+     */
+    public Extraction extract(String text, Collection<String> types) {
+        return Extraction.select(lexAll(text), types, null);
+    }
+
+    /**
+     * Lexes text and counts its tokens and lines.
+     * <p>
+     * Only the counts cross the Java/Python boundary, in a single call, and
+     * the Java engine counts tokens as they are matched, so no tokens are
+     * kept. This is much cheaper than counting the result of
+     * {@link #lex(String)} when only statistics are needed.
+     * @param text The text.
+     * @return The counts.
+     * @see TokenStats
+     */
+    public TokenStats stats(String text) {
+        if (regexEngine != null) {
+            TokenStats.Counter counter =
+                new TokenStats.Counter(regexEngine.getTable().types);
+            regexEngine.lex(text, counter);
+            return counter.finish();
+        }
+        return PythonHelpers.tokenStats(text, getDelegate());
+    }
+
+    /**
+     * Counts the tokens and lines of a UTF-8 text file.
+     * <p>
+     * This is equivalent to <code>stats(file, StandardCharsets.UTF_8)</code>.
+     * @param file The file.
+     * @return The counts.
+     * @throws IOException If the file cannot be read.
+     * @see #stats(Path, Charset)
+     */
+    public TokenStats stats(Path file) throws IOException {
+        return stats(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts the tokens and lines of a text file.
+     * <p>
+     * The file is read like {@link #lex(Path, Charset)}.
+     * @param file The file.
+     * @param charset The file's encoding.
+     * @return The counts.
+     * @throws IOException If the file cannot be read.
+     * @see #stats(String)
+     */
+    public TokenStats stats(Path file, Charset charset) throws IOException {
+        return stats(MappedText.read(file, charset));
+    }
+
+    /**
+     * Lexes text into tokens stored off the heap.
+     * <p>
+     * Tokens are transferred from Python in batches, like {@link #tokens},
+     * and written straight into the arena's buffers. The Java engine writes
+     * each token as it is matched. The caller must close the arena.
+     * @param text The text.
+     * @return All tokens.
+     * @see TokenArena
+     */
+    public TokenArena lexArena(String text) {
+        TokenArena.Writer writer = new TokenArena.Writer(text.length());
+        try {
+            if (regexEngine != null) {
+                regexEngine.lex(text, writer);
+                return writer.finish(regexEngine.getTable().types);
+            }
+            TokenBatches batches = new TokenBatches(PythonHelpers.lexBatches(
+                text, getDelegate(), DEFAULT_BATCH_SIZE));
+            while (batches.next()) {
+                writer.addBatch(batches);
+            }
+            return writer.finish(batches.getTypes());
+        }
+        catch (RuntimeException e) {
+            writer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lexes a UTF-8 text file into a token list.
+     * <p>
+     * This is equivalent to <code>lexAll(file, StandardCharsets.UTF_8)</code>.
+     * @param file The file.
+     * @return All tokens.
+     * @throws IOException If the file cannot be read.
+     * @see #lexAll(Path, Charset)
+     */
+    public TokenList lexAll(Path file) throws IOException {
+        return lexAll(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lexes a text file into a token list.
+     * <p>
+     * The file is read like {@link #lex(Path, Charset)}.
+     * @param file The file.
+     * @param charset The file's encoding.
+     * @return All tokens.
+     * @throws IOException If the file cannot be read.
+     */
+    public TokenList lexAll(Path file, Charset charset) throws IOException {
+        return lexAll(MappedText.read(file, charset));
     }
 }
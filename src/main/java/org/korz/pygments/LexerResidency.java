@@ -0,0 +1,185 @@
+package org.korz.pygments;
+
+import org.python.core.PyObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Controls which Pygments lexer modules are loaded and how many stay loaded.
+ * <p>
+ * Pygments imports a lexer's module the first time the lexer is looked up,
+ * and by default the module, its classes and their compiled regexes are
+ * kept for the life of the process. With this class, an application can:
+ * <ul>
+ * <li>restrict lookups to an allow-list of modules, so other lexers are
+ * reported as not found and never loaded;</li>
+ * <li>limit the number of resident modules, unloading the least recently
+ * used ones from <code>sys.modules</code> and the Pygments lexer cache when
+ * a new one is loaded;</li>
+ * <li>inspect the resident modules and what loading them has cost.</li>
+ * </ul>
+ * A module is used whenever a lexer class is looked up in it, e.g. by
+ * {@link Lexer#byName}. Existing {@link Lexer} instances keep working
+ * after their module is unloaded, and keep its classes reachable; the next
+ * lookup loads the module again. Guessing a lexer looks up every allowed
+ * lexer, so it loads every allowed module.
+ * <p>
+ * Modules are named like <code>pygments.lexers.python</code>, or just
+ * <code>python</code>. Lexers of the Java engine that come from exported
+ * tables, and plugin lexers, are not affected.
+ * <p>
+ * The settings apply to the whole process. Tracking starts with the first
+ * call to any method of this class.
+ * @see <a href="http://pygments.org/docs/lexers/">
+ *      Pygments: Available Lexers</a>
+ */
+public final class LexerResidency {
+    private static final String PACKAGE = "pygments.lexers.";
+
+    /**
+     * A snapshot of the resident modules and loading costs.
+     */
+    public static final class Metrics {
+        private final List<String> residentModules;
+        private final long loads;
+        private final long reloads;
+        private final long unloads;
+        private final long loadNanos;
+        private final long reloadNanos;
+
+        Metrics(List<String> residentModules, long[] counts) {
+            this.residentModules =
+                Collections.unmodifiableList(residentModules);
+            this.loads = counts[0];
+            this.reloads = counts[1];
+            this.unloads = counts[2];
+            this.loadNanos = counts[3];
+            this.reloadNanos = counts[4];
+        }
+
+        /**
+         * Returns the resident lexer modules.
+         * @return The module names, least recently used first.
+         */
+        public List<String> getResidentModules() {
+            return residentModules;
+        }
+
+        /**
+         * Returns how many times a lexer module was loaded.
+         * @return The number of loads, including reloads.
+         */
+        public long getLoads() {
+            return loads;
+        }
+
+        /**
+         * Returns how many times an unloaded module was loaded again.
+         * @return The number of reloads.
+         */
+        public long getReloads() {
+            return reloads;
+        }
+
+        /**
+         * Returns how many times a module was unloaded.
+         * @return The number of unloads.
+         */
+        public long getUnloads() {
+            return unloads;
+        }
+
+        /**
+         * Returns the total time spent loading modules.
+         * @return The time in nanoseconds, including reloads.
+         */
+        public long getLoadNanos() {
+            return loadNanos;
+        }
+
+        /**
+         * Returns the total time spent loading unloaded modules again.
+         * @return The time in nanoseconds.
+         */
+        public long getReloadNanos() {
+            return reloadNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "LexerResidency.Metrics(" + residentModules.size()
+                + " resident, " + loads + " loads, " + reloads
+                + " reloads, " + unloads + " unloads)";
+        }
+    }
+
+    private static PyObject manager() {
+        return PythonHelpers.lexerResidency();
+    }
+
+    private static String moduleName(String module) {
+        return module.indexOf('.') < 0 ? PACKAGE + module : module;
+    }
+
+    /**
+     * Restricts lexer lookups to some modules.
+     * <p>
+     * Resident modules that are not allowed are unloaded.
+     * @param modules The allowed modules, or null to allow all.
+     */
+    public static void setAllowedModules(Collection<String> modules) {
+        List<String> names = null;
+        if (modules != null) {
+            names = new ArrayList<>(modules.size());
+            for (String module : modules) {
+                names.add(moduleName(module));
+            }
+        }
+        PythonUtil.call(PythonUtil.get(manager(), "set_allowed"),
+                        Collections.singletonList(names));
+        // lookups that failed may succeed now
+        Lexer.clearMisses();
+    }
+
+    /**
+     * Sets the maximum number of resident lexer modules.
+     * <p>
+     * When loading a module exceeds the limit, the least recently used
+     * modules are unloaded. The limit should be larger than the number of
+     * modules that are looked up concurrently, or a lookup may find its
+     * module unloaded by another thread and fail.
+     * <p>
+     * The default is no limit.
+     * @param maxModules The maximum number of modules.
+     * @throws IllegalArgumentException If the maximum is not positive.
+     */
+    public static void setMaxResidentModules(int maxModules) {
+        if (maxModules < 1) {
+            throw new IllegalArgumentException(
+                "maxModules must be positive: " + maxModules);
+        }
+        PythonUtil.call(PythonUtil.get(manager(), "set_max_resident"),
+                        Collections.singletonList(maxModules));
+    }
+
+    /**
+     * Returns the resident modules and loading costs.
+     * @return A snapshot of the metrics.
+     */
+    public static Metrics getMetrics() {
+        PyObject metrics = PythonUtil.call(
+            PythonUtil.get(manager(), "metrics"));
+        List<String> modules = new ArrayList<>();
+        for (PyObject module : metrics.__getitem__(0).asIterable()) {
+            modules.add(PythonUtil.toJava(String.class, module));
+        }
+        return new Metrics(modules,
+                           PythonUtil.toJava(long[].class,
+                                             metrics.__getitem__(1)));
+    }
+
+    private LexerResidency() {}
+}
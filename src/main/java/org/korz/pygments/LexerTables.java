@@ -0,0 +1,399 @@
+package org.korz.pygments;
+
+import org.python.core.PyDictionary;
+import org.python.core.PyObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Lexer state tables exported at build time.
+ * <p>
+ * The exportLexerTables Gradle task runs {@link #main} to translate every
+ * lexer that the Java engine supports and stores the tables in a resource.
+ * {@link Lexer#byName} uses the resource to create Java engine lexers
+ * without starting Jython or importing Pygments.
+ * <p>
+ * The resource is gzipped and consists of a header (magic, version and
+ * Pygments version) followed by one entry per lexer class. Each entry holds
+ * the lexer's name, aliases, config key and preprocessing options, and its
+ * state table as a length-prefixed block that is only decoded (and its
+ * patterns compiled) the first time the lexer is used.
+ * @see RegexEngine
+ */
+class LexerTables {
+    static final String RESOURCE = "org/korz/pygments/lexer-tables.bin";
+
+    private static final int MAGIC = 0x5059474c; // PYGL
+    private static final int VERSION = 1;
+
+    /**
+     * An exported lexer.
+     */
+    static class Entry {
+        private final String name;
+        private final List<String> aliases;
+        private final String configKey;
+        private final boolean stripnl;
+        private final boolean stripall;
+        private final boolean ensurenl;
+        private final int tabsize;
+        private byte[] encodedTable;
+        private RegexEngine.Table table;
+
+        Entry(String name,
+              List<String> aliases,
+              String configKey,
+              boolean stripnl,
+              boolean stripall,
+              boolean ensurenl,
+              int tabsize,
+              byte[] encodedTable) {
+            this.name = name;
+            this.aliases = aliases;
+            this.configKey = configKey;
+            this.stripnl = stripnl;
+            this.stripall = stripall;
+            this.ensurenl = ensurenl;
+            this.tabsize = tabsize;
+            this.encodedTable = encodedTable;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<String> getAliases() {
+            return aliases;
+        }
+
+        String getConfigKey() {
+            return configKey;
+        }
+
+        /**
+         * Creates an engine, decoding the state table on first use.
+         */
+        synchronized RegexEngine newEngine() {
+            if (table == null) {
+                try {
+                    table = readTable(encodedTable);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(
+                        "Malformed lexer table: " + name, e);
+                }
+                encodedTable = null;
+            }
+            return new RegexEngine(table, stripnl, stripall, ensurenl,
+                                   tabsize);
+        }
+    }
+
+    // loaded on first use
+    private static class Bundled {
+        static final Map<String, Entry> ENTRIES = load();
+
+        private static Map<String, Entry> load() {
+            InputStream in = LexerTables.class.getClassLoader()
+                .getResourceAsStream(RESOURCE);
+            if (in == null) {
+                return Collections.emptyMap();
+            }
+            try {
+                try {
+                    return read(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(
+                    "Failed to load " + RESOURCE, e);
+            }
+        }
+    }
+
+    /**
+     * Finds a bundled lexer by alias.
+     * @param alias The alias, matched case-insensitively like Pygments.
+     * @return The lexer, or null if it was not exported.
+     */
+    static Entry find(String alias) {
+        return Bundled.ENTRIES.get(alias.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads exported lexers.
+     * @return The lexers by lowercase alias.
+     */
+    static Map<String, Entry> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a lexer table file");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported lexer table version: "
+                                  + version);
+        }
+        readString(data); // Pygments version, informational
+
+        Map<String, Entry> entries = new HashMap<>();
+        int count = data.readInt();
+        for (int i = 0; i < count; ++i) {
+            String name = readString(data);
+            List<String> aliases = readStrings(data);
+            Entry entry = new Entry(name,
+                                    aliases,
+                                    readString(data),
+                                    data.readBoolean(),
+                                    data.readBoolean(),
+                                    data.readBoolean(),
+                                    data.readInt(),
+                                    readBytes(data));
+            for (String alias : aliases) {
+                entries.put(alias, entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Exports all lexers that the Java engine supports.
+     * @return The number of exported lexers.
+     */
+    static int write(OutputStream out) throws IOException {
+        PyObject mapping = PythonUtil.get(
+            PythonUtil.importModule("pygments.lexers._mapping"),
+            "lexers", "_mapping", "LEXERS");
+        // sorted by class name for reproducible output
+        Map<String, PyObject> lexers = new TreeMap<>();
+        for (PyObject key : ((PyDictionary) mapping).keys().asIterable()) {
+            lexers.put(PythonUtil.toJava(String.class, key),
+                       mapping.__getitem__(key));
+        }
+
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        DataOutputStream data = new DataOutputStream(gzip);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeString(data, PythonUtil.get(
+            String.class, PythonUtil.importModule("pygments"),
+            "__version__"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(body);
+        int count = 0;
+        for (Map.Entry<String, PyObject> lexer : lexers.entrySet()) {
+            if (writeEntry(entries, lexer.getKey(), lexer.getValue())) {
+                ++count;
+            }
+        }
+        data.writeInt(count);
+        entries.flush();
+        body.writeTo(data);
+        data.flush();
+        gzip.finish();
+        return count;
+    }
+
+    private static boolean writeEntry(DataOutputStream out,
+                                      String className,
+                                      PyObject mapping) throws IOException {
+        List<String> candidates = new ArrayList<>();
+        for (PyObject alias : mapping.__getitem__(2).asIterable()) {
+            candidates.add(PythonUtil.toJava(String.class, alias)
+                           .toLowerCase(Locale.ROOT));
+        }
+        if (candidates.isEmpty()) {
+            return false;
+        }
+        PyObject lexer;
+        try {
+            lexer = Pygments.getLexer(candidates.get(0),
+                                      Collections.emptyMap());
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+        RegexEngine engine = RegexEngine.forLexer(lexer);
+        if (engine == null) {
+            return false;
+        }
+        // only keep aliases that Pygments resolves to this class
+        List<String> aliases = new ArrayList<>();
+        for (String alias : candidates) {
+            PyObject resolved = Pygments.getLexer(alias,
+                                                  Collections.emptyMap());
+            if (className.equals(PythonUtil.get(
+                    String.class, resolved, "__class__", "__name__"))) {
+                aliases.add(alias);
+            }
+        }
+        if (aliases.isEmpty()) {
+            return false;
+        }
+
+        writeString(out, PythonUtil.get(String.class, lexer, "name"));
+        writeStrings(out, aliases);
+        writeString(out, PythonHelpers.configKey(lexer));
+        out.writeBoolean(engine.isStripnl());
+        out.writeBoolean(engine.isStripall());
+        out.writeBoolean(engine.isEnsurenl());
+        out.writeInt(engine.getTabsize());
+        writeBytes(out, writeTable(engine.getTable()));
+        return true;
+    }
+
+    private static byte[] writeTable(RegexEngine.Table table)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeStrings(out, table.types);
+        writeStrings(out, table.stateNames);
+        for (RegexEngine.Rule[] rules : table.states) {
+            out.writeInt(rules.length);
+            for (RegexEngine.Rule rule : rules) {
+                writeString(out, rule.pattern.pattern());
+                out.writeInt(rule.pattern.flags());
+                out.writeInt(rule.type);
+                writeInts(out, rule.groupTypes);
+                writeInts(out, rule.transition);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static RegexEngine.Table readTable(byte[] bytes)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(bytes));
+        List<String> types = readStrings(in);
+        List<String> stateNames = readStrings(in);
+        RegexEngine.Rule[][] states =
+            new RegexEngine.Rule[stateNames.size()][];
+        for (int i = 0; i < states.length; ++i) {
+            states[i] = new RegexEngine.Rule[in.readInt()];
+            for (int j = 0; j < states[i].length; ++j) {
+                Pattern pattern = Pattern.compile(readString(in),
+                                                  in.readInt());
+                states[i][j] = new RegexEngine.Rule(pattern,
+                                                    in.readInt(),
+                                                    readInts(in),
+                                                    readInts(in));
+            }
+        }
+        return new RegexEngine.Table(types, stateNames, states);
+    }
+
+    // DataOutput.writeUTF is limited to 64 KiB, which some patterns exceed
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out,
+                                     List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in)
+            throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; ++i) {
+            strings[i] = readString(in);
+        }
+        return Collections.unmodifiableList(Arrays.asList(strings));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // null is written as -1
+    private static void writeInts(DataOutputStream out, int[] ints)
+            throws IOException {
+        if (ints == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(ints.length);
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        int[] ints = new int[length];
+        for (int i = 0; i < length; ++i) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+
+    /**
+     * Exports all supported lexers to a file.
+     * @param args The output file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: LexerTables <output file>");
+            System.exit(2);
+        }
+        Path path = Paths.get(args[0]);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        int count;
+        try (OutputStream out = Files.newOutputStream(path)) {
+            count = write(out);
+        }
+        System.out.println("Exported " + count + " lexer tables to " + path);
+    }
+
+    private LexerTables() {}
+}
@@ -0,0 +1,116 @@
+package org.korz.pygments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads text files through a memory mapping.
+ * <p>
+ * The file is mapped one bounded window at a time and each window is decoded
+ * in small chunks into a builder sized for the expected text, so the file's
+ * bytes are never copied onto the heap and at most one window is mapped by
+ * a read. Pygments needs the whole text as a single string, so the decoded
+ * chars are still copied once into that String, which Jython then wraps
+ * without copying.
+ * <p>
+ * Java cannot unmap a file explicitly; a window is released by the garbage
+ * collector once the read has moved past it.
+ */
+class MappedText {
+    // the most bytes mapped at once
+    private static final int WINDOW = 8 << 20;
+    // longer than a char in any charset, so that every window but the last
+    // decodes at least one char
+    private static final int MIN_WINDOW = 16;
+    // the chars decoded between appends to the builder
+    private static final int CHUNK = 8 << 10;
+
+    /**
+     * Reads a whole text file.
+     * <p>
+     * Malformed input is replaced, like
+     * <code>new String(bytes, charset)</code>.
+     * @throws IOException If the file cannot be read or is too large.
+     */
+    static String read(Path path, Charset charset) throws IOException {
+        return read(path, charset, WINDOW);
+    }
+
+    /** Reads a whole text file, mapping at most window bytes at once. */
+    static String read(Path path, Charset charset, int window)
+            throws IOException {
+        if (window < MIN_WINDOW) {
+            throw new IllegalArgumentException("window too small: " + window);
+        }
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.READ)) {
+            long size = channel.size();
+            CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            double expected = Math.ceil(size * decoder.averageCharsPerByte());
+            if (expected > Integer.MAX_VALUE - 8) {
+                throw new IOException("File too large: " + path);
+            }
+            if (size == 0) {
+                return "";
+            }
+            StringBuilder text = new StringBuilder((int) expected);
+            CharBuffer chunk = CharBuffer.allocate(CHUNK);
+            long offset = 0;
+            while (true) {
+                long length = Math.min(window, size - offset);
+                boolean last = offset + length == size;
+                ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               offset, length);
+                decode(decoder, bytes, chunk, text, last);
+                if (last) {
+                    break;
+                }
+                // a char split by the end of the window is decoded with the
+                // next one
+                offset += bytes.position();
+            }
+            while (decoder.flush(chunk).isOverflow()) {
+                append(chunk, text);
+            }
+            append(chunk, text);
+            return text.toString();
+        }
+    }
+
+    private static void decode(CharsetDecoder decoder,
+                               ByteBuffer bytes,
+                               CharBuffer chunk,
+                               StringBuilder text,
+                               boolean last) throws IOException {
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chunk, last);
+            if (result.isOverflow()) {
+                append(chunk, text);
+            }
+            else if (result.isUnderflow()) {
+                return;
+            }
+            else {
+                result.throwException();
+            }
+        }
+    }
+
+    private static void append(CharBuffer chunk, StringBuilder text) {
+        chunk.flip();
+        text.append(chunk);
+        chunk.clear();
+    }
+
+    private MappedText() {}
+}
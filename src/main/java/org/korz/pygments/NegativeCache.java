@@ -0,0 +1,71 @@
+package org.korz.pygments;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Remembers failed lexer and formatter lookups.
+ * <p>
+ * A failed lookup raises pygments.util.ClassNotFound in Python, which is
+ * expensive to create and to translate into a Java exception. Misses are
+ * remembered by a key describing the lookup, such as the lexer name, so
+ * that repeating one costs a map lookup. Lookups by filename are not
+ * cached, since filenames are often unique. The least recently used misses are
+ * forgotten once the cache is full.
+ */
+class NegativeCache {
+    private final Map<String, String> misses;
+
+    NegativeCache(int maxSize) {
+        this.misses = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns whether a lookup is known to fail.
+     */
+    synchronized boolean contains(String key) {
+        return misses.get(key) != null;
+    }
+
+    /**
+     * Remembers that a lookup failed.
+     */
+    synchronized void add(String key, String message) {
+        misses.put(key, message);
+    }
+
+    /**
+     * Runs a lookup unless it is known to fail.
+     * @throws ClassNotFoundException If the lookup fails, now or before.
+     */
+    <T> T lookup(String key, Supplier<T> lookup) {
+        String message;
+        synchronized (this) {
+            message = misses.get(key);
+        }
+        if (message != null) {
+            throw new ClassNotFoundException(message);
+        }
+        try {
+            return lookup.get();
+        }
+        catch (ClassNotFoundException e) {
+            add(key, e.getMessage());
+            throw e;
+        }
+    }
+
+    synchronized void clear() {
+        misses.clear();
+    }
+
+    synchronized int size() {
+        return misses.size();
+    }
+}
@@ -1,7 +1,27 @@
 package org.korz.pygments;
 
+import org.python.core.PyObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A Pygments highlighting context.
@@ -63,6 +83,12 @@ public class PygmentsContext {
         private Formatter formatter;
         private String formatterName;
         private final Map<String, Object> formatterOptions = new HashMap<>();
+        private boolean fused;
+        private DiskCache cache;
+        private boolean singleFlight;
+        private TokenFilter tokenFilter;
+        private boolean adaptive;
+        private long fallbackBudgetNanos;
 
         private Builder() {}
 
@@ -136,6 +162,121 @@ public class PygmentsContext {
             return this;
         }
 
+        /**
+         * Sets whether lexing and formatting are fused into a single Python
+         * call.
+         * <p>
+         * When fused, the token stream is produced and consumed entirely
+         * within Python instead of being passed back through Java between
+         * lexing and formatting. The output is identical either way.
+         * <p>
+         * This is disabled by default.
+         * @param fused True to fuse lexing and formatting.
+         * @return This builder for method chaining.
+         * @see <a href="http://pygments.org/docs/api/#pygments.highlight">
+         *      pygments.highlight</a>
+         */
+        public Builder setFused(boolean fused) {
+            this.fused = fused;
+            return this;
+        }
+
+        /**
+         * Sets a persistent cache for highlighted text.
+         * <p>
+         * Results are cached by configuration and input text, so the same
+         * cache may be shared between contexts with different lexers or
+         * formatters.
+         * @param cache The cache, or null to disable caching.
+         * @return This builder for method chaining.
+         */
+        public Builder setCache(DiskCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Adds a filter that transforms the tokens before they are
+         * formatted.
+         * <p>
+         * Filters run in the order they are added. When any filter is set,
+         * the text is always lexed into a {@link TokenList} first, so the
+         * fused setting has no effect. Results are only cached if every
+         * filter has a {@link TokenFilter#getConfigKey configuration key}.
+         * @param filter The filter.
+         * @return This builder for method chaining.
+         * @see TokenFilters
+         */
+        public Builder addTokenFilter(TokenFilter filter) {
+            if (filter == null) {
+                throw new NullPointerException("filter is null");
+            }
+            this.tokenFilter = tokenFilter == null
+                ? filter
+                : tokenFilter.andThen(filter);
+            return this;
+        }
+
+        /**
+         * Sets whether the execution strategy is chosen per call.
+         * <p>
+         * When adaptive, each call to {@link PygmentsContext#highlight}
+         * picks the {@link Strategy} that a {@link CostModel} predicts to be
+         * fastest for the length of the text. The model is fed by the
+         * measured time of every call, and now and then a call tries a
+         * different strategy so that the model stays current. Texts with
+         * lines longer than 20,000 chars, such as minified code, are not
+         * lexed at all but formatted as plain text.
+         * <p>
+         * Results formatted as plain text are not cached, since they depend
+         * on timing. This overrides {@link #setFused}. It is disabled by
+         * default.
+         * @param adaptive True to choose the strategy per call.
+         * @return This builder for method chaining.
+         * @see PygmentsContext#getCostModel
+         * @see #setFallbackBudget
+         */
+        public Builder setAdaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+            return this;
+        }
+
+        /**
+         * Sets the predicted time above which an adaptive context formats
+         * text as plain text instead of lexing it.
+         * <p>
+         * This bounds the cost of huge inputs once the cost model has seen
+         * a few calls. It has no effect unless {@link #setAdaptive} is
+         * enabled.
+         * @param budget The budget, or 0 for no limit.
+         * @param unit The unit of the budget.
+         * @return This builder for method chaining.
+         */
+        public Builder setFallbackBudget(long budget, TimeUnit unit) {
+            this.fallbackBudgetNanos = unit.toNanos(budget);
+            return this;
+        }
+
+        /**
+         * Sets whether concurrent calls with the same text share one
+         * computation.
+         * <p>
+         * When enabled, a call to {@link PygmentsContext#highlight} with a
+         * text that is already being highlighted by this context waits for
+         * that call and returns its result instead of highlighting the text
+         * again. This protects against bursts of identical requests, e.g.
+         * when a popular file is first viewed. Results are not kept after
+         * the call finishes; use {@link #setCache} for that.
+         * <p>
+         * This is disabled by default.
+         * @param singleFlight True to share concurrent identical calls.
+         * @return This builder for method chaining.
+         */
+        public Builder setSingleFlight(boolean singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
         /**
          * Creates a new PygmentsContext instance.
          * @return A new instance.
@@ -143,8 +284,15 @@ public class PygmentsContext {
          *                              selected.
          * @throws ClassNotFoundException If the lexer or formatter cannot be
          *                                created.
+         * @throws IllegalArgumentException If the adaptive settings are
+         *                                  invalid.
          */
         public PygmentsContext build() {
+            if (fallbackBudgetNanos < 0) {
+                throw new IllegalArgumentException(
+                    "fallbackBudget must not be negative: "
+                        + fallbackBudgetNanos);
+            }
             Lexer lexer;
             if (this.lexer != null) {
                 lexer = this.lexer;
@@ -173,10 +321,42 @@ public class PygmentsContext {
                     "Both formatter and formatterName are null");
             }
 
-            return new PygmentsContext(lexer, formatter);
+            return new PygmentsContext(lexer,
+                                       formatter,
+                                       fused,
+                                       cache,
+                                       singleFlight,
+                                       tokenFilter,
+                                       adaptive,
+                                       fallbackBudgetNanos);
         }
     }
 
+    /**
+     * A way of running a highlight call.
+     * @see Builder#setAdaptive
+     */
+    public enum Strategy {
+        /**
+         * Lexes and formats in a single Python call.
+         */
+        FUSED,
+        /**
+         * Formats the lexer's token generator, so tokens stay in Python.
+         */
+        STREAMED,
+        /**
+         * Lexes into a {@link TokenList} and formats that. This is the only
+         * strategy for lexers with the Java engine and for contexts with
+         * token filters.
+         */
+        TOKEN_LIST,
+        /**
+         * Formats the text as a single text token without lexing it.
+         */
+        PLAIN
+    }
+
     /**
      * Creates a new PygmentsContext builder.
      * @return A new builder.
@@ -185,20 +365,619 @@ public class PygmentsContext {
         return new Builder();
     }
 
+    // the approximate size of published chunks, in chars
+    private static final int PUBLISH_CHUNK_SIZE = 8192;
+    // lines longer than this are taken to be minified or generated
+    private static final int MAX_LINE_LENGTH = 20000;
+    // the calls each strategy gets before the model is trusted
+    private static final int MIN_SAMPLES = 3;
+    // one in this many adaptive calls tries another strategy
+    private static final int EXPLORE_INTERVAL = 32;
+    private static final Strategy[] PYTHON_STRATEGIES =
+        {Strategy.FUSED, Strategy.STREAMED, Strategy.TOKEN_LIST};
+    private static final Strategy[] TOKEN_LIST_STRATEGIES =
+        {Strategy.TOKEN_LIST};
+
     private final Lexer lexer;
     private final Formatter formatter;
+    private final boolean fused;
+    private final DiskCache cache;
+    private final String cacheKey;
+    private final SingleFlight<String, String> inFlight;
+    private final TokenFilter tokenFilter;
+    private final CostModel costModel;
+    private final long fallbackBudgetNanos;
+    private final AtomicLong adaptiveCalls = new AtomicLong();
+    private final AtomicLongArray strategyCounts =
+        new AtomicLongArray(Strategy.values().length);
 
-    private PygmentsContext(Lexer lexer, Formatter formatter) {
+    private PygmentsContext(Lexer lexer,
+                            Formatter formatter,
+                            boolean fused,
+                            DiskCache cache,
+                            boolean singleFlight,
+                            TokenFilter tokenFilter,
+                            boolean adaptive,
+                            long fallbackBudgetNanos) {
         this.lexer = lexer;
         this.formatter = formatter;
+        this.fused = fused;
+        // null if the filter cannot describe itself, in which case results
+        // cannot be found again after a restart
+        String configKey = lexer.getConfigKey() + "\n"
+            + formatter.getConfigKey();
+        if (tokenFilter != null) {
+            String filterKey = tokenFilter.getConfigKey();
+            configKey = filterKey == null ? null : configKey + "\n" + filterKey;
+        }
+        this.cache = configKey == null ? null : cache;
+        this.cacheKey = this.cache == null ? null : configKey;
+        this.inFlight = singleFlight ? new SingleFlight<>() : null;
+        this.tokenFilter = tokenFilter;
+        if (!adaptive) {
+            this.costModel = null;
+        }
+        else if (configKey == null) {
+            this.costModel = new CostModel();
+        }
+        else {
+            this.costModel = CostModel.forConfig(configKey);
+        }
+        this.fallbackBudgetNanos = fallbackBudgetNanos;
+    }
+
+    private TokenList lexAll(String text) {
+        TokenList tokens = lexer.lexAll(text);
+        return tokenFilter == null ? tokens : tokenFilter.filter(tokens);
     }
 
     /**
      * Highlights text.
+     * <p>
+     * If the formatter has an encoding, each char of the result is one byte
+     * of the encoded output. Use {@link #highlight(byte[], Charset)} to get
+     * the bytes.
      * @param text The text to highlight.
      * @return The highlighted text.
      */
     public String highlight(String text) {
-        return formatter.format(lexer.lex(text));
+        if (inFlight != null) {
+            return inFlight.run(text, this::highlightCached);
+        }
+        return highlightCached(text);
+    }
+
+    /**
+     * Highlights a UTF-8 text file.
+     * <p>
+     * This is equivalent to
+     * <code>highlight(file, StandardCharsets.UTF_8)</code>.
+     * @param file The file to highlight.
+     * @return The highlighted text.
+     * @throws IOException If the file cannot be read.
+     * @see #highlight(Path, Charset)
+     */
+    public String highlight(Path file) throws IOException {
+        return highlight(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Highlights a text file.
+     * <p>
+     * The file is read through a memory mapping, one bounded window at a
+     * time, and decoded into the text that is highlighted. Malformed input is
+     * replaced.
+     * @param file The file to highlight.
+     * @param charset The file's encoding.
+     * @return The highlighted text.
+     * @throws IOException If the file cannot be read.
+     */
+    public String highlight(Path file, Charset charset) throws IOException {
+        return highlight(MappedText.read(file, charset));
+    }
+
+    /**
+     * Highlights encoded text into encoded output.
+     * <p>
+     * The input is decoded with the given charset. If the formatter has an
+     * encoding (see {@link Formatter#getEncoding}), Pygments encodes the
+     * output and its bytes are returned as they are. Otherwise the output
+     * is encoded with the input charset, like pygmentize does.
+     * <p>
+     * The lexer's <code>encoding</code> and <code>inencoding</code> options
+     * do not apply, since the text is decoded before it is lexed. Decoding
+     * in Java is the cheapest way to get text into Jython, which stores
+     * Python byte strings as Java strings too.
+     * @param input The encoded text.
+     * @param charset The encoding of the text.
+     * @return The encoded output.
+     */
+    public byte[] highlight(byte[] input, Charset charset) {
+        return encode(highlight(new String(input, charset)), charset)
+            .array();
+    }
+
+    /**
+     * Highlights encoded text into a channel.
+     * <p>
+     * The input and output are encoded like
+     * {@link #highlight(byte[], Charset)}. The input buffer is consumed.
+     * @param input The encoded text.
+     * @param charset The encoding of the text.
+     * @param out The channel to write the encoded output to.
+     * @throws IOException If the output cannot be written.
+     */
+    public void highlight(ByteBuffer input,
+                          Charset charset,
+                          WritableByteChannel out) throws IOException {
+        ByteBuffer bytes = encode(highlight(charset.decode(input).toString()),
+                                  charset);
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private ByteBuffer encode(String result, Charset charset) {
+        return ByteBuffer.wrap(formatter.encode(result, charset));
+    }
+
+    private String highlightCached(String text) {
+        if (cache == null) {
+            return highlightDirect(text);
+        }
+        String result = cache.get(cacheKey, text);
+        if (result != null) {
+            return result;
+        }
+        if (costModel != null) {
+            Strategy strategy = chooseStrategy(text, true);
+            result = highlightAdaptive(strategy, text);
+            // whether the text is plain depends on timing, so it must not
+            // be kept
+            if (strategy != Strategy.PLAIN) {
+                cache.put(cacheKey, text, result);
+            }
+            return result;
+        }
+        result = highlightDirect(text);
+        cache.put(cacheKey, text, result);
+        return result;
+    }
+
+    private String highlightDirect(String text) {
+        if (costModel != null) {
+            return highlightAdaptive(chooseStrategy(text, true), text);
+        }
+        if (lexer.getEngine() == Lexer.Engine.JAVA || tokenFilter != null) {
+            return run(Strategy.TOKEN_LIST, text);
+        }
+        return run(fused ? Strategy.FUSED : Strategy.STREAMED, text);
+    }
+
+    private String highlightAdaptive(Strategy strategy, String text) {
+        strategyCounts.incrementAndGet(strategy.ordinal());
+        long start = System.nanoTime();
+        String result = run(strategy, text);
+        costModel.record(strategy, text.length(), System.nanoTime() - start);
+        return result;
+    }
+
+    private String run(Strategy strategy, String text) {
+        switch (strategy) {
+            case FUSED:
+                return Pygments.highlight(text,
+                                          lexer.getDelegate(),
+                                          formatter.getDelegate());
+            case STREAMED:
+                return formatter.format(lexer.lex(text));
+            case TOKEN_LIST:
+                return formatter.format(lexAll(text));
+            default:
+                // like Pygments' TextLexer with the ensurenl option
+                String value = text.endsWith("\n") ? text : text + "\n";
+                TokenList tokens = new TokenList(
+                    Collections.singletonList("Token.Text"),
+                    new int[] {0},
+                    new int[] {value.length()},
+                    value);
+                return formatter.format(tokenFilter == null
+                                        ? tokens
+                                        : tokenFilter.filter(tokens));
+        }
+    }
+
+    private Strategy chooseStrategy(String text, boolean explore) {
+        if (hasLongLine(text)) {
+            return Strategy.PLAIN;
+        }
+        Strategy[] candidates = lexer.getEngine() == Lexer.Engine.JAVA
+                || tokenFilter != null
+            ? TOKEN_LIST_STRATEGIES
+            : PYTHON_STRATEGIES;
+        if (explore) {
+            for (Strategy candidate : candidates) {
+                if (costModel.getSamples(candidate) < MIN_SAMPLES) {
+                    return candidate;
+                }
+            }
+        }
+        Strategy best = candidates[0];
+        double bestNanos = Double.NaN;
+        for (Strategy candidate : candidates) {
+            double nanos = costModel.predictNanos(candidate, text.length());
+            if (Double.isNaN(bestNanos) || nanos < bestNanos) {
+                best = candidate;
+                bestNanos = nanos;
+            }
+        }
+        if (fallbackBudgetNanos > 0 && bestNanos > fallbackBudgetNanos) {
+            return Strategy.PLAIN;
+        }
+        if (explore && candidates.length > 1) {
+            long call = adaptiveCalls.incrementAndGet();
+            if (call % EXPLORE_INTERVAL == 0) {
+                Strategy other = candidates[(int) (call / EXPLORE_INTERVAL
+                                                   % candidates.length)];
+                // do not try strategies that are far too slow
+                if (costModel.predictNanos(other, text.length())
+                        <= 4 * bestNanos) {
+                    return other;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static boolean hasLongLine(String text) {
+        if (text.length() <= MAX_LINE_LENGTH) {
+            return false;
+        }
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            if (lineEnd - lineStart > MAX_LINE_LENGTH) {
+                return true;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the strategy an adaptive context currently predicts to be
+     * fastest for a text.
+     * <p>
+     * This is the strategy {@link #highlight(String)} uses, except for the
+     * calls that try other strategies to keep the cost model current.
+     * @param text The text.
+     * @return The strategy.
+     * @throws IllegalStateException If this context is not adaptive.
+     * @see Builder#setAdaptive
+     */
+    public Strategy chooseStrategy(String text) {
+        if (costModel == null) {
+            throw new IllegalStateException("Context is not adaptive");
+        }
+        return chooseStrategy(text, false);
+    }
+
+    /** The formatter, for callers that need its encoding. */
+    Formatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * Returns the cost model of an adaptive context.
+     * @return The cost model, or null if this context is not adaptive.
+     * @see Builder#setAdaptive
+     */
+    public CostModel getCostModel() {
+        return costModel;
+    }
+
+    /**
+     * Returns how many calls of an adaptive context used a strategy.
+     * <p>
+     * Only calls that were not answered from a cache or a concurrent
+     * identical call are counted.
+     * @param strategy The strategy.
+     * @return The number of calls.
+     */
+    public long getStrategyCount(Strategy strategy) {
+        return strategyCounts.get(strategy.ordinal());
+    }
+
+    /**
+     * Highlights text into one self-contained fragment per line.
+     * <p>
+     * This is equivalent to
+     * <code>highlightLines(text, 0, Integer.MAX_VALUE)</code>.
+     * @param text The text to highlight.
+     * @return The highlighted fragment for each line.
+     * @see #highlightLines(String, int, int)
+     */
+    public List<String> highlightLines(String text) {
+        return highlightLines(text, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Highlights a range of lines into one self-contained fragment per line.
+     * <p>
+     * This lets a viewer render only the lines on screen. The text is lexed
+     * from the start so that the lexer state is correct, but lexing stops
+     * after the range with the Python engine and only the lines in the range
+     * are formatted. See {@link Formatter#formatLines(Iterable, int, int)}
+     * for the format of the fragments.
+     * <p>
+     * Lines are counted in the lexer's output. Most lexers strip leading and
+     * trailing newlines unless the <code>stripnl</code> option is false, in
+     * which case line numbers match the text.
+     * <p>
+     * Results are not cached, even if this context has a cache.
+     * @param text The text to highlight.
+     * @param fromLine The first line, counting from 0.
+     * @param toLine The line after the last line.
+     * @return The highlighted fragment for each line in the range, or fewer
+     *         if the text ends first.
+     * @throws IllegalArgumentException If the range is invalid.
+     */
+    public List<String> highlightLines(String text, int fromLine, int toLine) {
+        Iterable<?> tokens = tokenFilter == null
+            ? lexer.lex(text)
+            : lexAll(text);
+        return formatter.formatLines(tokens, fromLine, toLine);
+    }
+
+    /**
+     * Highlights a unified diff in the context of both file versions.
+     * <p>
+     * Lexing diff hunks on their own goes wrong when they start inside a
+     * multi-line string or comment. Instead, each version is lexed once as
+     * a whole, and each line of the diff gets the fragment of the
+     * corresponding line of its version, as returned by
+     * {@link Formatter#formatLines(Iterable, int, int)}. Only the lines
+     * between the first and last hunk are formatted. Context lines are
+     * taken from the new version.
+     * <p>
+     * The diff must be a diff of a single file between the two versions.
+     * Lines that the lexer does not output, e.g. leading blank lines
+     * removed by the <code>stripnl</code> option, are formatted on their
+     * own.
+     * <p>
+     * Results are not cached or shared, even if this context is configured
+     * to do so.
+     * @param oldText The old version of the file.
+     * @param newText The new version of the file.
+     * @param diff The unified diff from the old to the new version.
+     * @return The diff lines, in order.
+     */
+    public List<DiffLine> highlightDiff(String oldText,
+                                        String newText,
+                                        String diff) {
+        List<DiffLine> lines = DiffLine.parse(diff);
+        int oldFrom = Integer.MAX_VALUE;
+        int oldTo = 0;
+        int newFrom = Integer.MAX_VALUE;
+        int newTo = 0;
+        for (DiffLine line : lines) {
+            if (line.getType() == DiffLine.Type.REMOVED) {
+                oldFrom = Math.min(oldFrom, line.getOldLine());
+                oldTo = Math.max(oldTo, line.getOldLine());
+            }
+            else if (line.getNewLine() != 0) {
+                newFrom = Math.min(newFrom, line.getNewLine());
+                newTo = Math.max(newTo, line.getNewLine());
+            }
+        }
+        String[] oldLines = highlightLineRange(oldText, oldFrom, oldTo);
+        String[] newLines = highlightLineRange(newText, newFrom, newTo);
+        List<DiffLine> result = new ArrayList<>(lines.size());
+        for (DiffLine line : lines) {
+            String highlighted;
+            switch (line.getType()) {
+                case REMOVED:
+                    highlighted = oldLines[line.getOldLine() - oldFrom];
+                    break;
+                case CONTEXT:
+                case ADDED:
+                    highlighted = newLines[line.getNewLine() - newFrom];
+                    break;
+                default:
+                    result.add(line);
+                    continue;
+            }
+            if (highlighted == null) {
+                String value = line.getText() + "\n";
+                highlighted = formatter.formatLines(new TokenList(
+                    Collections.singletonList("Token.Text"),
+                    new int[] {0},
+                    new int[] {value.length()},
+                    value)).get(0);
+            }
+            result.add(new DiffLine(line.getType(),
+                                    line.getOldLine(),
+                                    line.getNewLine(),
+                                    line.getText(),
+                                    highlighted));
+        }
+        return result;
+    }
+
+    // highlights lines fromLine to toLine, counting from 1, or returns null
+    // for lines that the lexer does not output
+    private String[] highlightLineRange(String text, int fromLine, int toLine) {
+        if (fromLine > toLine) {
+            return new String[0];
+        }
+        TokenList lexed = lexer.lexAll(text);
+        // the number of leading lines the lexer stripped
+        int stripped = leadingNewlines(text) - leadingNewlines(lexed.getText());
+        TokenList tokens = tokenFilter == null
+            ? lexed
+            : tokenFilter.filter(lexed);
+        int from = Math.max(0, fromLine - 1 - stripped);
+        int to = Math.max(from, toLine - stripped);
+        List<String> fragments = formatter.formatLines(tokens, from, to);
+        String[] lines = new String[toLine - fromLine + 1];
+        for (int line = fromLine; line <= toLine; ++line) {
+            int i = line - 1 - stripped - from;
+            if (i >= 0 && i < fragments.size()) {
+                lines[line - fromLine] = fragments.get(i);
+            }
+        }
+        return lines;
+    }
+
+    // counts the line breaks in the leading whitespace, as Pygments does
+    // after normalizing them to \n
+    private static int leadingNewlines(String text) {
+        int newlines = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                ++newlines;
+            }
+            else if (c == '\r') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    ++i;
+                }
+                ++newlines;
+            }
+            else if (!Character.isWhitespace(c)) {
+                break;
+            }
+        }
+        return newlines;
+    }
+
+    /**
+     * Highlights text into a stream of chunks.
+     * <p>
+     * This is equivalent to
+     * <code>publish(text, ForkJoinPool.commonPool())</code>.
+     * @param text The text to highlight.
+     * @return A publisher of the highlighted text.
+     * @see #publish(String, Executor)
+     */
+    public Flow.Publisher<String> publish(String text) {
+        return publish(text, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Highlights text into a stream of chunks.
+     * <p>
+     * Each subscriber receives the highlighted text in chunks of about
+     * 8K characters, which together equal the result of
+     * {@link #highlight(String)}. Chunks are only produced as they are
+     * requested. For the HTML formatter, the output is generated lazily, so
+     * a slow subscriber holds back formatting and, with the Python engine,
+     * lexing too; other formatters format the whole text before the first
+     * chunk is sent.
+     * <p>
+     * All lexing and formatting runs on the executor, never on the thread
+     * that subscribes or requests. Results are not cached or shared, even
+     * if this context is configured to do so.
+     * @param text The text to highlight.
+     * @param executor The executor to highlight on.
+     * @return A publisher of the highlighted text.
+     */
+    public Flow.Publisher<String> publish(String text, Executor executor) {
+        return new IteratorPublisher<>(() -> {
+            Object tokens = lexer.getEngine() == Lexer.Engine.JAVA
+                    || tokenFilter != null
+                ? PythonHelpers.iterTokens(lexAll(text))
+                : lexer.lex(text);
+            Iterator<PyObject> chunks = PythonHelpers.formatChunks(
+                tokens, formatter.getDelegate(), PUBLISH_CHUNK_SIZE)
+                .asIterable()
+                .iterator();
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return chunks.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return PythonUtil.toJava(String.class, chunks.next());
+                }
+            };
+        }, executor);
+    }
+
+    /**
+     * Highlights text and extracts the tokens of selected types, lexing it
+     * only once.
+     * <p>
+     * Results are not cached or shared, even if this context is configured
+     * to do so.
+     * @param text The text to highlight.
+     * @param types The token types to extract, e.g. <code>Name</code> or
+     *              <code>Comment.Single</code>. Subtypes are included.
+     * @return The extracted tokens and the highlighted text.
+     * @see Extraction#getHighlighted
+     */
+    public Extraction highlightAndExtract(String text,
+                                          Collection<String> types) {
+        TokenList tokens = lexAll(text);
+        return Extraction.select(tokens, types, formatter.format(tokens));
+    }
+
+    /**
+     * Highlights text with multiple formatters, lexing it only once.
+     * <p>
+     * The formatter of this context is not used unless it is also passed
+     * as an argument.
+     * @param text The text to highlight.
+     * @param formatters The formatters.
+     * @return The highlighted text for each formatter, in the same order.
+     */
+    public List<String> highlightAll(String text, Formatter... formatters) {
+        TokenList tokens = lexAll(text);
+        List<String> results = new ArrayList<>(formatters.length);
+        for (Formatter f : formatters) {
+            results.add(f.format(tokens));
+        }
+        return results;
+    }
+
+    /**
+     * Highlights text with multiple formatters in parallel, lexing it only
+     * once.
+     * <p>
+     * The text is lexed on the calling thread and then each formatter runs
+     * as a separate task on the executor. This method blocks until all
+     * formatters are done.
+     * @param text The text to highlight.
+     * @param executor The executor to run the formatters on.
+     * @param formatters The formatters.
+     * @return The highlighted text for each formatter, in the same order.
+     */
+    public List<String> highlightAll(String text,
+                                     Executor executor,
+                                     Formatter... formatters) {
+        TokenList tokens = lexAll(text);
+        List<CompletableFuture<String>> futures =
+            new ArrayList<>(formatters.length);
+        for (Formatter f : formatters) {
+            futures.add(CompletableFuture.supplyAsync(() -> f.format(tokens),
+                                                      executor));
+        }
+        List<String> results = new ArrayList<>(formatters.length);
+        try {
+            for (CompletableFuture<String> future : futures) {
+                results.add(future.join());
+            }
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return results;
     }
 }
@@ -0,0 +1,624 @@
+package org.korz.pygments;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves highlighting over HTTP.
+ * <p>
+ * This lets processes that are not running on the JVM share a single warmed
+ * up Pygments runtime. The server is built on the JDK's
+ * <code>com.sun.net.httpserver</code> and needs no other dependencies. It
+ * can be embedded:
+ * <pre><code>
+ * PygmentsServer server = PygmentsServer.newServer()
+ *     .setPort(8080)
+ *     .build();
+ * // ...
+ * server.close();
+ * </code></pre>
+ * or run from the command line with the port as the only argument.
+ * <p>
+ * There are two endpoints, both of which take the text as a UTF-8 POST body
+ * and the configuration as query parameters:
+ * <ul>
+ * <li><code>lexer</code>: the lexer name (required).</li>
+ * <li><code>formatter</code>: the formatter name (default html).</li>
+ * <li><code>engine</code>: <code>python</code> (default) or
+ * <code>java</code>, see {@link Lexer.Builder#setEngine}.</li>
+ * <li><code>lexer.NAME</code>: lexer options. Only <code>stripnl</code>,
+ * <code>stripall</code>, <code>ensurenl</code>, <code>tabsize</code> and
+ * <code>startinline</code> are accepted.</li>
+ * <li><code>formatter.NAME</code>: formatter options. Only options that
+ * affect the output are accepted, e.g. <code>style</code>,
+ * <code>linenos</code>, <code>cssclass</code>, <code>hl_lines</code> or
+ * <code>nowrap</code>. Options that read or write files, such as
+ * <code>full</code> with <code>cssfile</code> or <code>tagsfile</code>,
+ * are rejected.</li>
+ * </ul>
+ * <code>POST /highlight</code> highlights the body and responds with the
+ * result. The result is UTF-8, unless the <code>formatter.encoding</code>
+ * option names another encoding, in which case that is the charset of the
+ * response.
+ * <p>
+ * <code>POST /batch</code> highlights several texts in one request. Each text
+ * is framed as its length in UTF-8 bytes in decimal, a newline and then the
+ * text itself, e.g. <code>5\nhello3\nfoo</code>. The response uses the same
+ * framing, with lengths in bytes of the response charset, and is streamed,
+ * so each result is sent as soon as it is ready.
+ * <p>
+ * A PygmentsContext is created for each distinct configuration and reused by
+ * later requests. Errors are reported as 400 (bad request, e.g. an unknown
+ * lexer), 404, 405, 413 (the body or a batch item is too large) or 500
+ * with a plain text message. Connections are kept
+ * alive between requests.
+ * @see PygmentsContext
+ */
+public class PygmentsServer implements Closeable {
+    /**
+     * Constructs a server.
+     */
+    public static class Builder {
+        private InetAddress address = InetAddress.getLoopbackAddress();
+        private int port;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int maxContexts = 64;
+        private DiskCache cache;
+        private int maxBodySize = 32 << 20;
+        private int maxItemSize = 8 << 20;
+
+        private Builder() {}
+
+        /**
+         * Sets the address to listen on.
+         * <p>
+         * The default is the loopback address, so only local processes can
+         * connect.
+         * @param address The address.
+         * @return This builder for method chaining.
+         */
+        public Builder setAddress(InetAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        /**
+         * Sets the port to listen on.
+         * <p>
+         * The default is 0, which picks a free port.
+         * @param port The port.
+         * @return This builder for method chaining.
+         * @see PygmentsServer#getPort
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Sets the number of request handling threads.
+         * <p>
+         * The default is the number of available processors.
+         * @param threads The number of threads.
+         * @return This builder for method chaining.
+         */
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cached contexts.
+         * <p>
+         * When more configurations are in use, the least recently used
+         * context is discarded. The default is 64.
+         * @param maxContexts The maximum number of contexts.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxContexts(int maxContexts) {
+            this.maxContexts = maxContexts;
+            return this;
+        }
+
+        /**
+         * Sets a persistent cache for all contexts.
+         * @param cache The cache.
+         * @return This builder for method chaining.
+         * @see PygmentsContext.Builder#setCache
+         */
+        public Builder setCache(DiskCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of a request body.
+         * <p>
+         * Larger requests are answered with 413. The default is 32 MiB.
+         * @param maxBodySize The maximum size in bytes.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxBodySize(int maxBodySize) {
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of a text in a batch request.
+         * <p>
+         * Batches with a larger text are answered with 413. The default is
+         * 8 MiB.
+         * @param maxItemSize The maximum size in bytes.
+         * @return This builder for method chaining.
+         */
+        public Builder setMaxItemSize(int maxItemSize) {
+            this.maxItemSize = maxItemSize;
+            return this;
+        }
+
+        /**
+         * Starts the server.
+         * @return A new instance.
+         * @throws IllegalArgumentException If the settings are invalid.
+         * @throws UncheckedIOException If the server cannot be started.
+         */
+        public PygmentsServer build() {
+            if (threads < 1) {
+                throw new IllegalArgumentException(
+                    "threads must be positive: " + threads);
+            }
+            if (maxContexts < 1) {
+                throw new IllegalArgumentException(
+                    "maxContexts must be positive: " + maxContexts);
+            }
+            if (maxBodySize < 0 || maxItemSize < 0) {
+                throw new IllegalArgumentException(
+                    "maxBodySize and maxItemSize must not be negative");
+            }
+            try {
+                return new PygmentsServer(this);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(
+                    "Cannot start server on port " + port, e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new PygmentsServer builder.
+     * @return A new builder.
+     */
+    public static Builder newServer() {
+        return new Builder();
+    }
+
+    private static final String LEXER_OPTION = "lexer.";
+    private static final String FORMATTER_OPTION = "formatter.";
+    // options that cannot touch the file system
+    private static final Set<String> LEXER_OPTIONS = new HashSet<>(
+        Arrays.asList("stripnl", "stripall", "ensurenl", "tabsize",
+                      "startinline"));
+    private static final Set<String> FORMATTER_OPTIONS = new HashSet<>(
+        Arrays.asList("style", "nowrap", "noclasses", "classprefix",
+                      "cssclass", "cssstyles", "prestyles", "linenos",
+                      "linenostart", "linenostep", "linenospecial",
+                      "nobackground", "lineseparator", "lineanchors",
+                      "linespans", "anchorlinenos", "hl_lines", "encoding",
+                      "bg"));
+    // typed, since Pygments reads some options with a plain truth test, in
+    // which any non-empty string is true
+    private static final Set<String> BOOLEAN_OPTIONS = new HashSet<>(
+        Arrays.asList("stripnl", "stripall", "ensurenl", "startinline",
+                      "nowrap", "noclasses", "nobackground",
+                      "anchorlinenos"));
+    private static final Set<String> INTEGER_OPTIONS = new HashSet<>(
+        Arrays.asList("tabsize", "linenostart", "linenostep",
+                      "linenospecial"));
+
+    // thrown by handlers to send an error response
+    private static class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final DiskCache cache;
+    private final int maxBodySize;
+    private final int maxItemSize;
+    // access ordered for LRU eviction, guarded by itself
+    private final Map<Map<String, String>, PygmentsContext> contexts;
+
+    private PygmentsServer(Builder builder) throws IOException {
+        this.cache = builder.cache;
+        this.maxBodySize = builder.maxBodySize;
+        this.maxItemSize = builder.maxItemSize;
+        int maxContexts = builder.maxContexts;
+        this.contexts = new LinkedHashMap<Map<String, String>,
+                                          PygmentsContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Map<String, String>, PygmentsContext> e) {
+                return size() > maxContexts;
+            }
+        };
+        this.server = HttpServer.create(
+            new InetSocketAddress(builder.address, builder.port), 0);
+        this.executor = Executors.newFixedThreadPool(builder.threads);
+        server.setExecutor(executor);
+        server.createContext("/highlight", handler(this::highlight));
+        server.createContext("/batch", handler(this::batch));
+        server.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return The port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server.
+     * <p>
+     * Requests that are being handled are allowed to finish. The cache, if
+     * any, is not closed.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /** The number of cached contexts. */
+    int getContextCount() {
+        synchronized (contexts) {
+            return contexts.size();
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, PygmentsContext context)
+            throws IOException;
+    }
+
+    private HttpHandler handler(Handler handler) {
+        return exchange -> {
+            try {
+                if (!exchange.getRequestURI().getPath()
+                        .equals(exchange.getHttpContext().getPath())) {
+                    throw new HttpError(404, "Not found");
+                }
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    throw new HttpError(405, "Method not allowed");
+                }
+                handler.handle(exchange, context(query(exchange)));
+            }
+            catch (HttpError e) {
+                error(exchange, e.status, e.getMessage());
+            }
+            catch (ClassNotFoundException e) {
+                error(exchange, 400, e.getMessage());
+            }
+            catch (RuntimeException e) {
+                error(exchange, 500, String.valueOf(e.getMessage()));
+            }
+            finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static void error(HttpExchange exchange,
+                              int status,
+                              String message) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            // headers were already sent, all we can do is drop the response
+            return;
+        }
+        if (status != 413) {
+            // a body that is too large is not read, the connection is
+            // closed instead
+            drain(exchange.getRequestBody());
+        }
+        send(exchange, status, message.getBytes(StandardCharsets.UTF_8),
+             "utf-8");
+    }
+
+    private static void send(HttpExchange exchange,
+                             int status,
+                             byte[] bytes,
+                             String charset) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                                          "text/plain; charset=" + charset);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // the charset of the highlighted output: the formatter's encoding if it
+    // has one, since Pygments then encodes the output itself
+    private static String charset(PygmentsContext context) {
+        String encoding = context.getFormatter().getEncoding();
+        return encoding != null ? encoding : "utf-8";
+    }
+
+    private void highlight(HttpExchange exchange, PygmentsContext context)
+            throws IOException {
+        byte[] text = readAll(exchange.getRequestBody(), maxBodySize);
+        send(exchange, 200, context.highlight(text, StandardCharsets.UTF_8),
+             charset(context));
+    }
+
+    private void batch(HttpExchange exchange, PygmentsContext context)
+            throws IOException {
+        List<byte[]> texts = new ArrayList<>();
+        try (InputStream in = exchange.getRequestBody()) {
+            long total = 0;
+            int length;
+            while ((length = readLength(in)) >= 0) {
+                total += length;
+                if (length > maxItemSize || total > maxBodySize) {
+                    throw new HttpError(413, "Request body too large");
+                }
+                byte[] bytes = new byte[length];
+                readFully(in, bytes);
+                texts.add(bytes);
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type",
+                                          "text/plain; charset="
+                                          + charset(context));
+        // chunked, so that results can be sent as they are ready
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (byte[] text : texts) {
+                byte[] bytes = context.highlight(text,
+                                                 StandardCharsets.UTF_8);
+                out.write((bytes.length + "\n")
+                          .getBytes(StandardCharsets.US_ASCII));
+                out.write(bytes);
+                out.flush();
+            }
+        }
+    }
+
+    private PygmentsContext context(Map<String, String> query) {
+        synchronized (contexts) {
+            PygmentsContext context = contexts.get(query);
+            if (context != null) {
+                return context;
+            }
+        }
+
+        String lexerName = query.get("lexer");
+        if (lexerName == null) {
+            throw new HttpError(400, "Missing parameter: lexer");
+        }
+        Lexer.Engine engine;
+        try {
+            engine = Lexer.Engine.valueOf(
+                query.getOrDefault("engine", "python")
+                    .toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Unknown engine: " + query.get("engine"));
+        }
+        Lexer.Builder lexer = Lexer.byName(lexerName).setEngine(engine);
+        Formatter.Builder formatter = Formatter.byName(
+            query.getOrDefault("formatter", "html"));
+        for (Map.Entry<String, String> param : query.entrySet()) {
+            String name = param.getKey();
+            if (name.startsWith(LEXER_OPTION)) {
+                String option = name.substring(LEXER_OPTION.length());
+                if (!LEXER_OPTIONS.contains(option)) {
+                    throw new HttpError(400, "Unsupported option: " + name);
+                }
+                lexer.setOption(option, optionValue(name, param.getValue()));
+            }
+            else if (name.startsWith(FORMATTER_OPTION)) {
+                String option = name.substring(FORMATTER_OPTION.length());
+                if (!FORMATTER_OPTIONS.contains(option)) {
+                    throw new HttpError(400, "Unsupported option: " + name);
+                }
+                formatter.setOption(option,
+                                    optionValue(name, param.getValue()));
+            }
+            else if (!name.equals("lexer") && !name.equals("formatter")
+                    && !name.equals("engine")) {
+                throw new HttpError(400, "Unknown parameter: " + name);
+            }
+        }
+
+        // built outside the lock since creating lexers can be slow; if two
+        // requests race, one of the identical contexts is discarded
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexer(lexer.build())
+            .setFormatter(formatter.build())
+            .setCache(cache)
+            .build();
+        synchronized (contexts) {
+            PygmentsContext existing = contexts.putIfAbsent(query, context);
+            return existing != null ? existing : context;
+        }
+    }
+
+    // converts a query parameter to the type Pygments expects
+    private static Object optionValue(String name, String value) {
+        String option = name.substring(name.indexOf('.') + 1);
+        if (option.equals("linenos")
+                && (value.equals("table") || value.equals("inline"))) {
+            return value;
+        }
+        if (option.equals("linenos") || BOOLEAN_OPTIONS.contains(option)) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "true":
+                case "1":
+                    return true;
+                case "false":
+                case "0":
+                    return false;
+                default:
+                    throw new HttpError(400,
+                                        "Invalid boolean option: " + name);
+            }
+        }
+        if (INTEGER_OPTIONS.contains(option)) {
+            try {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                throw new HttpError(400, "Invalid integer option: " + name);
+            }
+        }
+        return value;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // sorted so that equivalent queries share a context
+        Map<String, String> params = new TreeMap<>();
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            String name = decode(eq < 0 ? param : param.substring(0, eq));
+            String value = eq < 0 ? "" : decode(param.substring(eq + 1));
+            if (params.put(name, value) != null) {
+                throw new HttpError(400, "Duplicate parameter: " + name);
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Malformed query: " + s);
+        }
+    }
+
+    // returns -1 at the end of the stream
+    private static int readLength(InputStream in) throws IOException {
+        int length = 0;
+        int digits = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 && digits == 0) {
+                return -1;
+            }
+            if (b < '0' || b > '9' || digits == 9) {
+                throw new HttpError(400, "Malformed batch");
+            }
+            length = length * 10 + b - '0';
+            ++digits;
+        }
+        if (digits == 0) {
+            throw new HttpError(400, "Malformed batch");
+        }
+        return length;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes)
+            throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = in.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new HttpError(400, "Malformed batch");
+            }
+            offset += n;
+        }
+    }
+
+    private static byte[] readAll(InputStream in, int maxSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            if (out.size() + n > maxSize) {
+                throw new HttpError(413, "Request body too large");
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // the request body must be consumed for the connection to be reused
+    private static void drain(InputStream in) {
+        byte[] buffer = new byte[8192];
+        try {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        }
+        catch (IOException e) {
+            // already closed, the connection will not be reused
+        }
+    }
+
+    /**
+     * Runs a server until the process is killed.
+     * @param args The port to listen on, optionally followed by the address.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: PygmentsServer <port> [<address>]");
+            System.exit(2);
+        }
+        Builder builder = newServer().setPort(Integer.parseInt(args[0]));
+        if (args.length > 1) {
+            try {
+                builder.setAddress(InetAddress.getByName(args[1]));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        PygmentsServer server = builder.build();
+        System.out.println("Listening on port " + server.getPort());
+    }
+}
@@ -0,0 +1,216 @@
+package org.korz.pygments;
+
+import org.python.core.PyObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Java bindings for the Python side of this library.
+ * <p>
+ * The Python functions live in the pygments_jython module, which is bundled
+ * as a resource. They exist to reduce the number of calls across the
+ * Java/Python boundary and are not part of the public API.
+ */
+class PythonHelpers {
+    // Python handles
+    private static final PyObject HELPERS = PythonUtil.importModule(
+        "pygments_jython");
+    private static final PyObject CONFIG_KEY = PythonUtil.get(
+        HELPERS, "config_key");
+    private static final PyObject EXPORT_REGEX_LEXER = PythonUtil.get(
+        HELPERS, "export_regex_lexer");
+    private static final PyObject LEX_BATCHES = PythonUtil.get(
+        HELPERS, "lex_batches");
+    private static final PyObject FORMAT_TOKENS = PythonUtil.get(
+        HELPERS, "format_tokens");
+    private static final PyObject ITER_TOKENS = PythonUtil.get(
+        HELPERS, "iter_tokens");
+    private static final PyObject FORMAT_CHUNKS = PythonUtil.get(
+        HELPERS, "format_chunks");
+    private static final PyObject FORMAT_TOKEN_BATCHES = PythonUtil.get(
+        HELPERS, "format_token_batches");
+    private static final PyObject FORMAT_LINES = PythonUtil.get(
+        HELPERS, "format_lines");
+    private static final PyObject FORMAT_TOKEN_LIST_LINES = PythonUtil.get(
+        HELPERS, "format_token_list_lines");
+    private static final PyObject FORMAT_TOKEN_BATCHES_LINES =
+        PythonUtil.get(HELPERS, "format_token_batches_lines");
+    private static final PyObject LEXER_FILENAME_PATTERNS = PythonUtil.get(
+        HELPERS, "lexer_filename_patterns");
+    private static final PyObject TOKEN_STATS = PythonUtil.get(
+        HELPERS, "token_stats");
+    private static final PyObject LEXER_RESIDENCY = PythonUtil.get(
+        HELPERS, "lexer_residency");
+
+    /**
+     * Describes the configuration of a lexer or formatter as a string.
+     * <p>
+     * Two objects with the same key produce the same output for the same
+     * input, including across restarts.
+     */
+    static String configKey(Object o) {
+        return PythonUtil.call(String.class, CONFIG_KEY, Arrays.asList(o));
+    }
+
+    /**
+     * Lexes text into a Python generator of token batches.
+     * @see TokenBatches
+     */
+    static PyObject lexBatches(String text, Object lexer, int size) {
+        return PythonUtil.call(LEX_BATCHES, Arrays.asList(text, lexer, size));
+    }
+
+    /**
+     * Exports the state table of a RegexLexer.
+     * @return The state table, or None if the lexer cannot be translated.
+     * @see RegexEngine
+     */
+    static PyObject exportRegexLexer(Object lexer) {
+        return PythonUtil.call(EXPORT_REGEX_LEXER, Arrays.asList(lexer));
+    }
+
+    /**
+     * Formats a token list in a single call.
+     */
+    static String formatTokens(TokenList tokens, Object formatter) {
+        return PythonUtil.call(String.class,
+                               FORMAT_TOKENS,
+                               Arrays.asList(
+                                   tokens.getTypes().toArray(new String[0]),
+                                   tokens.getTypeIds(),
+                                   tokens.getCodePointLengths(),
+                                   tokens.getText(),
+                                   formatter));
+    }
+
+    /**
+     * Returns a Python generator of the tokens of a token list.
+     */
+    static PyObject iterTokens(TokenList tokens) {
+        return PythonUtil.call(ITER_TOKENS,
+                               Arrays.asList(
+                                   tokens.getTypes().toArray(new String[0]),
+                                   tokens.getTypeIds(),
+                                   tokens.getCodePointLengths(),
+                                   tokens.getText()));
+    }
+
+    /**
+     * Formats tokens lazily into a Python generator of output chunks.
+     * @see PygmentsContext#publish
+     */
+    static PyObject formatChunks(Object tokens, Object formatter, int size) {
+        return PythonUtil.call(FORMAT_CHUNKS,
+                               Arrays.asList(tokens, formatter, size));
+    }
+
+    /**
+     * Formats the tokens of an arena, one chunk at a time.
+     */
+    static String formatTokens(TokenArena tokens, Object formatter) {
+        return PythonUtil.call(String.class,
+                               FORMAT_TOKEN_BATCHES,
+                               Arrays.asList(
+                                   tokens.getTypes().toArray(new String[0]),
+                                   tokens.batches(),
+                                   formatter));
+    }
+
+    /**
+     * Formats a range of lines into one fragment per line.
+     * @see Formatter#formatLines(Iterable, int, int)
+     */
+    static List<String> formatLines(Object tokens,
+                                    Object formatter,
+                                    int start,
+                                    int stop) {
+        return toStrings(PythonUtil.call(
+            FORMAT_LINES, Arrays.asList(tokens, formatter, start, stop)));
+    }
+
+    /**
+     * Formats a range of lines of a token list in a single call.
+     * @see Formatter#formatLines(Iterable, int, int)
+     */
+    static List<String> formatLines(TokenList tokens,
+                                    Object formatter,
+                                    int start,
+                                    int stop) {
+        return toStrings(PythonUtil.call(
+            FORMAT_TOKEN_LIST_LINES,
+            Arrays.asList(tokens.getTypes().toArray(new String[0]),
+                          tokens.getTypeIds(),
+                          tokens.getCodePointLengths(),
+                          tokens.getText(),
+                          formatter,
+                          start,
+                          stop)));
+    }
+
+    /**
+     * Formats a range of lines of an arena, one chunk at a time.
+     * @see Formatter#formatLines(Iterable, int, int)
+     */
+    static List<String> formatLines(TokenArena tokens,
+                                    Object formatter,
+                                    int start,
+                                    int stop) {
+        return toStrings(PythonUtil.call(
+            FORMAT_TOKEN_BATCHES_LINES,
+            Arrays.asList(tokens.getTypes().toArray(new String[0]),
+                          tokens.batches(),
+                          formatter,
+                          start,
+                          stop)));
+    }
+
+    private static List<String> toStrings(PyObject strings) {
+        List<String> list = new ArrayList<>(strings.__len__());
+        for (PyObject string : strings.asIterable()) {
+            list.add(PythonUtil.toJava(String.class, string));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the regexes of all lexer filename patterns.
+     * @return The regexes, or None if they may change.
+     * @see FilenamePatterns
+     */
+    static PyObject lexerFilenamePatterns() {
+        return PythonUtil.call(LEXER_FILENAME_PATTERNS);
+    }
+
+    /**
+     * Lexes text and counts its tokens and lines in a single call.
+     * @see Lexer#stats
+     */
+    static TokenStats tokenStats(String text, Object lexer) {
+        PyObject stats = PythonUtil.call(TOKEN_STATS,
+                                         Arrays.asList(text, lexer));
+        List<String> types = toStrings(stats.__getitem__(0));
+        long[] tokens = PythonUtil.toJava(long[].class, stats.__getitem__(1));
+        long[] chars = PythonUtil.toJava(long[].class, stats.__getitem__(2));
+        long[] lines = PythonUtil.toJava(long[].class, stats.__getitem__(3));
+        Map<String, long[]> counts = new TreeMap<>();
+        for (int i = 0; i < types.size(); ++i) {
+            counts.put(types.get(i), new long[] {tokens[i], chars[i]});
+        }
+        return new TokenStats(counts, lines[0], lines[1], lines[2]);
+    }
+
+    /**
+     * Returns the lexer module residency manager, installing it on first
+     * use.
+     * @see LexerResidency
+     */
+    static PyObject lexerResidency() {
+        return PythonUtil.call(LEXER_RESIDENCY);
+    }
+
+    private PythonHelpers() {}
+}
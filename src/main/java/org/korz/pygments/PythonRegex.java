@@ -0,0 +1,330 @@
+package org.korz.pygments;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Translates Python 2 regular expressions into java.util.regex patterns.
+ * <p>
+ * Only the differences that matter for Pygments lexers are handled. Anything
+ * that cannot be translated faithfully, such as conditional groups, causes an
+ * IllegalArgumentException so that the caller can fall back to Python.
+ */
+class PythonRegex {
+    // \b and \B in Java consider Unicode letters to be word characters even
+    // though \w does not, unlike Python.
+    private static final String WORD_BOUNDARY =
+        "(?:(?<=\\w)(?!\\w)|(?<!\\w)(?=\\w))";
+    private static final String NOT_WORD_BOUNDARY =
+        "(?:(?<=\\w)(?=\\w)|(?<!\\w)(?!\\w))";
+
+    private final String regex;
+    private final StringBuilder out = new StringBuilder();
+    private final Map<String, Integer> groupNames = new HashMap<>();
+    private String flags;
+    private int pos;
+    private int groups;
+
+    private PythonRegex(String regex, String flags) {
+        this.regex = regex;
+        this.flags = flags;
+    }
+
+    /**
+     * Compiles a Python regular expression.
+     * @param regex The Python regex source.
+     * @param flags The Python flags as inline flag letters, e.g. "ms".
+     * @return An equivalent Java pattern.
+     * @throws IllegalArgumentException If the regex cannot be translated.
+     */
+    static Pattern compile(String regex, String flags) {
+        PythonRegex translator = new PythonRegex(regex, flags);
+        translator.translate();
+        return Pattern.compile(translator.out.toString(),
+                               translator.javaFlags());
+    }
+
+    private int javaFlags() {
+        int javaFlags = Pattern.UNIX_LINES;
+        boolean unicode = flags.indexOf('u') >= 0;
+        if (flags.indexOf('i') >= 0) {
+            javaFlags |= Pattern.CASE_INSENSITIVE;
+            if (unicode) {
+                javaFlags |= Pattern.UNICODE_CASE;
+            }
+        }
+        if (flags.indexOf('m') >= 0) {
+            javaFlags |= Pattern.MULTILINE;
+        }
+        if (flags.indexOf('s') >= 0) {
+            javaFlags |= Pattern.DOTALL;
+        }
+        if (unicode) {
+            javaFlags |= Pattern.UNICODE_CHARACTER_CLASS;
+        }
+        return javaFlags;
+    }
+
+    private boolean verbose() {
+        return flags.indexOf('x') >= 0;
+    }
+
+    private boolean unicode() {
+        return flags.indexOf('u') >= 0;
+    }
+
+    private boolean startsWith(String s) {
+        return regex.startsWith(s, pos);
+    }
+
+    private IllegalArgumentException unsupported(String what) {
+        return new IllegalArgumentException(
+            "Unsupported " + what + " at " + pos + " in " + regex);
+    }
+
+    private void translate() {
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (verbose() && Character.isWhitespace(c)) {
+                ++pos;
+            }
+            else if (verbose() && c == '#') {
+                while (pos < regex.length() && regex.charAt(pos) != '\n') {
+                    ++pos;
+                }
+            }
+            else if (c == '\\') {
+                escape(false);
+            }
+            else if (c == '[') {
+                characterClass();
+            }
+            else if (c == '(') {
+                group();
+            }
+            else if (c == '{') {
+                quantifier();
+            }
+            else if (c == '}') {
+                out.append("\\}");
+                ++pos;
+            }
+            else {
+                out.append(c);
+                ++pos;
+            }
+        }
+    }
+
+    private void group() {
+        if (!startsWith("(?")) {
+            ++groups;
+            out.append('(');
+            ++pos;
+        }
+        else if (startsWith("(?P<")) {
+            int end = regex.indexOf('>', pos);
+            if (end < 0) {
+                throw unsupported("group name");
+            }
+            groupNames.put(regex.substring(pos + 4, end), ++groups);
+            out.append('(');
+            pos = end + 1;
+        }
+        else if (startsWith("(?P=")) {
+            int end = regex.indexOf(')', pos);
+            Integer group = end < 0
+                ? null
+                : groupNames.get(regex.substring(pos + 4, end));
+            if (group == null) {
+                throw unsupported("group reference");
+            }
+            out.append("(?:\\").append(group).append(')');
+            pos = end + 1;
+        }
+        else if (startsWith("(?#")) {
+            int end = regex.indexOf(')', pos);
+            if (end < 0) {
+                throw unsupported("comment");
+            }
+            pos = end + 1;
+        }
+        else if (startsWith("(?:") || startsWith("(?=") || startsWith("(?!")
+                || startsWith("(?<=") || startsWith("(?<!")) {
+            out.append("(?");
+            pos += 2;
+        }
+        else {
+            // global inline flags, e.g. (?ms)
+            int end = pos + 2;
+            while (end < regex.length()
+                    && "iLmsux".indexOf(regex.charAt(end)) >= 0) {
+                ++end;
+            }
+            if (end == pos + 2 || end >= regex.length()
+                    || regex.charAt(end) != ')') {
+                throw unsupported("group");
+            }
+            flags += regex.substring(pos + 2, end);
+            pos = end + 1;
+        }
+    }
+
+    private void quantifier() {
+        int end = pos + 1;
+        int commas = 0;
+        while (end < regex.length()) {
+            char c = regex.charAt(end);
+            if (c == ',') {
+                ++commas;
+            }
+            else if (c < '0' || c > '9') {
+                break;
+            }
+            ++end;
+        }
+        if (end == pos + 1 || end >= regex.length()
+                || regex.charAt(end) != '}' || commas > 1) {
+            // not a quantifier, Python treats it as a literal
+            out.append("\\{");
+            ++pos;
+            return;
+        }
+        String body = regex.substring(pos + 1, end);
+        if (body.startsWith(",")) {
+            body = "0" + body;
+        }
+        out.append('{').append(body).append('}');
+        pos = end + 1;
+    }
+
+    private void characterClass() {
+        out.append('[');
+        ++pos;
+        if (startsWith("^")) {
+            out.append('^');
+            ++pos;
+        }
+        if (startsWith("]")) {
+            out.append("\\]");
+            ++pos;
+        }
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == ']') {
+                out.append(']');
+                ++pos;
+                return;
+            }
+            else if (c == '\\') {
+                escape(true);
+            }
+            else if (c == '[' || c == '&') {
+                // union and intersection in Java, literals in Python
+                out.append('\\').append(c);
+                ++pos;
+            }
+            else {
+                out.append(c);
+                ++pos;
+            }
+        }
+        throw unsupported("character class");
+    }
+
+    private void escape(boolean inClass) {
+        if (pos + 1 >= regex.length()) {
+            throw unsupported("escape");
+        }
+        char c = regex.charAt(pos + 1);
+        pos += 2;
+        switch (c) {
+            case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+            case 'f': case 'n': case 'r': case 't':
+                out.append('\\').append(c);
+                break;
+            case 'a':
+                out.append("\\x07");
+                break;
+            case 'v':
+                out.append("\\x0B");
+                break;
+            case 'x':
+                hex();
+                break;
+            case 'A':
+                out.append(inClass ? "A" : "\\A");
+                break;
+            case 'Z':
+                out.append(inClass ? "Z" : "\\z");
+                break;
+            case 'b':
+                out.append(inClass ? "\\x08"
+                                   : unicode() ? "\\b" : WORD_BOUNDARY);
+                break;
+            case 'B':
+                out.append(inClass ? "B"
+                                   : unicode() ? "\\B" : NOT_WORD_BOUNDARY);
+                break;
+            default:
+                if (c >= '0' && c <= '9') {
+                    number(c, inClass);
+                }
+                else if (Character.isLetter(c)) {
+                    // unknown escapes are literals in Python 2
+                    out.append(c);
+                }
+                else {
+                    out.append('\\').append(c);
+                }
+        }
+    }
+
+    private void hex() {
+        int end = pos;
+        while (end < regex.length() && end < pos + 2
+                && Character.digit(regex.charAt(end), 16) >= 0) {
+            ++end;
+        }
+        if (end == pos) {
+            throw unsupported("hex escape");
+        }
+        codePoint(Integer.parseInt(regex.substring(pos, end), 16));
+        pos = end;
+    }
+
+    private void number(char first, boolean inClass) {
+        // pos is after the first digit
+        int end = pos;
+        while (end < regex.length() && end < pos + 2
+                && isOctal(regex.charAt(end))) {
+            ++end;
+        }
+        boolean octal = first == '0' || inClass
+            || (isOctal(first) && end == pos + 2);
+        if (octal) {
+            if (!isOctal(first)) {
+                throw unsupported("octal escape");
+            }
+            codePoint(Integer.parseInt(first + regex.substring(pos, end), 8));
+            pos = end;
+            return;
+        }
+        // a backreference of one or two digits
+        String number = String.valueOf(first);
+        if (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+            number += regex.charAt(pos);
+            ++pos;
+        }
+        out.append("(?:\\").append(number).append(')');
+    }
+
+    private static boolean isOctal(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    private void codePoint(int c) {
+        out.append(String.format("\\x{%x}", c));
+    }
+}
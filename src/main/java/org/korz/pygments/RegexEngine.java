@@ -0,0 +1,490 @@
+package org.korz.pygments;
+
+import org.python.core.Py;
+import org.python.core.PyList;
+import org.python.core.PyObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the state machine of a Pygments RegexLexer in Java.
+ * <p>
+ * The processed state table of the Python lexer class is exported once,
+ * its regexes are translated to java.util.regex patterns, and from then on
+ * lexing does not call into Python at all. This mirrors
+ * RegexLexer.get_tokens_unprocessed and Lexer.get_tokens, so the tokens are
+ * identical to those produced by Pygments.
+ * <p>
+ * Lexers that cannot be reproduced exactly (custom get_tokens_unprocessed,
+ * callbacks other than plain bygroups, filters, regex features that Java
+ * lacks) are not translated.
+ */
+class RegexEngine {
+    // Special transitions. State indexes are non-negative.
+    private static final int POP = -1;
+    private static final int PUSH = -2;
+
+    private static final String TEXT = "Token.Text";
+    private static final String ERROR = "Token.Error";
+
+    /**
+     * A single rule of a state.
+     */
+    static class Rule {
+        final Pattern pattern;
+        // token type id, or -1 if there is no token or groups are used
+        final int type;
+        // token type ids per group (-1 for None), or null
+        final int[] groupTypes;
+        // state indexes, POP or PUSH
+        final int[] transition;
+
+        Rule(Pattern pattern, int type, int[] groupTypes, int[] transition) {
+            this.pattern = pattern;
+            this.type = type;
+            this.groupTypes = groupTypes;
+            this.transition = transition;
+        }
+    }
+
+    /**
+     * The translated state table of a lexer class.
+     * <p>
+     * The root state is always state 0.
+     */
+    static class Table {
+        final List<String> types;
+        final List<String> stateNames;
+        final Rule[][] states;
+
+        Table(List<String> types, List<String> stateNames, Rule[][] states) {
+            this.types = types;
+            this.stateNames = stateNames;
+            this.states = states;
+        }
+    }
+
+    // cached per lexer class, empty if the class cannot be translated
+    private static final Map<String, Optional<Table>> TABLES =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Creates an engine for a Python lexer.
+     * @return The engine, or null if the lexer cannot be translated.
+     */
+    static RegexEngine forLexer(PyObject lexer) {
+        if (PythonUtil.get(lexer, "filters").__len__() > 0) {
+            return null;
+        }
+        Table table = tableFor(lexer);
+        if (table == null) {
+            return null;
+        }
+        return new RegexEngine(
+            table,
+            PythonUtil.get(Boolean.class, lexer, "stripnl"),
+            PythonUtil.get(Boolean.class, lexer, "stripall"),
+            PythonUtil.get(Boolean.class, lexer, "ensurenl"),
+            PythonUtil.get(Integer.class, lexer, "tabsize"));
+    }
+
+    /**
+     * Returns the translated state table of a Python lexer's class.
+     * @return The table, or null if the class cannot be translated.
+     */
+    static Table tableFor(PyObject lexer) {
+        PyObject cls = PythonUtil.get(lexer, "__class__");
+        String key = PythonUtil.get(String.class, cls, "__module__")
+            + "." + PythonUtil.get(String.class, cls, "__name__");
+        return TABLES.computeIfAbsent(
+            key, k -> Optional.ofNullable(export(lexer))).orElse(null);
+    }
+
+    private static Table export(PyObject lexer) {
+        PyObject exported = PythonHelpers.exportRegexLexer(lexer);
+        if (exported == Py.None) {
+            return null;
+        }
+
+        // assign state indexes first, with root at 0
+        List<String> stateNames = new ArrayList<>();
+        stateNames.add("root");
+        for (PyObject state : exported.asIterable()) {
+            String name = PythonUtil.toJava(String.class,
+                                            state.__getitem__(0));
+            if (!name.equals("root")) {
+                stateNames.add(name);
+            }
+        }
+
+        List<String> types = new ArrayList<>(Arrays.asList(TEXT, ERROR));
+        Map<String, Integer> typeIds = new HashMap<>();
+        typeIds.put(TEXT, 0);
+        typeIds.put(ERROR, 1);
+
+        Rule[][] states = new Rule[stateNames.size()][];
+        try {
+            for (PyObject state : exported.asIterable()) {
+                String name = PythonUtil.toJava(String.class,
+                                                state.__getitem__(0));
+                List<Rule> rules = new ArrayList<>();
+                for (PyObject rule : state.__getitem__(1).asIterable()) {
+                    rules.add(rule(rule, stateNames, types, typeIds));
+                }
+                states[stateNames.indexOf(name)] =
+                    rules.toArray(new Rule[0]);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // includes PatternSyntaxException
+            return null;
+        }
+        return new Table(Collections.unmodifiableList(types),
+                         stateNames,
+                         states);
+    }
+
+    private static int typeId(String type,
+                              List<String> types,
+                              Map<String, Integer> typeIds) {
+        return typeIds.computeIfAbsent(type, t -> {
+            types.add(t);
+            return types.size() - 1;
+        });
+    }
+
+    private static Rule rule(PyObject rule,
+                             List<String> stateNames,
+                             List<String> types,
+                             Map<String, Integer> typeIds) {
+        Pattern pattern = PythonRegex.compile(
+            PythonUtil.toJava(String.class, rule.__getitem__(0)),
+            PythonUtil.toJava(String.class, rule.__getitem__(1)));
+
+        PyObject action = rule.__getitem__(2);
+        int type = -1;
+        int[] groupTypes = null;
+        if (action instanceof PyList) {
+            groupTypes = new int[action.__len__()];
+            int i = 0;
+            for (PyObject groupType : action.asIterable()) {
+                groupTypes[i++] = groupType == Py.None
+                    ? -1
+                    : typeId(PythonUtil.toJava(String.class, groupType),
+                             types, typeIds);
+            }
+            if (groupTypes.length > pattern.matcher("").groupCount()) {
+                throw new IllegalArgumentException(
+                    "bygroups has more actions than groups");
+            }
+        }
+        else if (action != Py.None) {
+            type = typeId(PythonUtil.toJava(String.class, action),
+                          types, typeIds);
+        }
+
+        PyObject ops = rule.__getitem__(3);
+        int[] transition = ops.__len__() == 0 ? null : new int[ops.__len__()];
+        int i = 0;
+        for (PyObject op : ops.asIterable()) {
+            String name = PythonUtil.toJava(String.class, op);
+            if (name.equals("#pop")) {
+                transition[i++] = POP;
+            }
+            else if (name.equals("#push")) {
+                transition[i++] = PUSH;
+            }
+            else {
+                int state = stateNames.indexOf(name);
+                if (state < 0) {
+                    throw new IllegalArgumentException(
+                        "Unknown state: " + name);
+                }
+                transition[i++] = state;
+            }
+        }
+        return new Rule(pattern, type, groupTypes, transition);
+    }
+
+    private final Table table;
+    private final boolean stripnl;
+    private final boolean stripall;
+    private final boolean ensurenl;
+    private final int tabsize;
+
+    RegexEngine(Table table,
+                boolean stripnl,
+                boolean stripall,
+                boolean ensurenl,
+                int tabsize) {
+        this.table = table;
+        this.stripnl = stripnl;
+        this.stripall = stripall;
+        this.ensurenl = ensurenl;
+        this.tabsize = tabsize;
+    }
+
+    Table getTable() {
+        return table;
+    }
+
+    boolean isStripnl() {
+        return stripnl;
+    }
+
+    boolean isStripall() {
+        return stripall;
+    }
+
+    boolean isEnsurenl() {
+        return ensurenl;
+    }
+
+    int getTabsize() {
+        return tabsize;
+    }
+
+    /**
+     * Receives tokens as they are lexed.
+     */
+    interface Sink {
+        /**
+         * Adds a token.
+         * @param type The type id, an index into the table's types.
+         * @param text The lexed text.
+         * @param start The offset of the token's value in the text.
+         * @param end The offset after the token's value.
+         */
+        void add(int type, String text, int start, int end);
+    }
+
+    /**
+     * Lexes text like Lexer.get_tokens, without filters.
+     */
+    TokenList lex(String text) {
+        Collector collector = new Collector(text.length());
+        lex(text, collector);
+        return collector.toTokenList();
+    }
+
+    /**
+     * Lexes text like Lexer.get_tokens, without filters, into a sink.
+     */
+    void lex(String text, Sink sink) {
+        new Run(preprocess(text), sink).run();
+    }
+
+    // Lexer.get_tokens
+    String preprocess(String text) {
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        text = text.replace("\r\n", "\n").replace('\r', '\n');
+        if (stripall) {
+            text = strip(text);
+        }
+        else if (stripnl) {
+            int start = 0;
+            int end = text.length();
+            while (start < end && text.charAt(start) == '\n') {
+                ++start;
+            }
+            while (end > start && text.charAt(end - 1) == '\n') {
+                --end;
+            }
+            text = text.substring(start, end);
+        }
+        if (tabsize > 0) {
+            text = expandTabs(text, tabsize);
+        }
+        if (ensurenl && !text.endsWith("\n")) {
+            text += "\n";
+        }
+        return text;
+    }
+
+    // unicode.strip
+    private static String strip(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && isSpace(text.charAt(start))) {
+            ++start;
+        }
+        while (end > start && isSpace(text.charAt(end - 1))) {
+            --end;
+        }
+        return text.substring(start, end);
+    }
+
+    // unicode.isspace
+    private static boolean isSpace(char c) {
+        return (c >= '\t' && c <= '\r') || (c >= '\u001c' && c <= ' ')
+            || c == '\u0085' || Character.isSpaceChar(c);
+    }
+
+    // unicode.expandtabs
+    private static String expandTabs(String text, int tabsize) {
+        if (text.indexOf('\t') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        int column = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                int spaces = tabsize - column % tabsize;
+                for (int j = 0; j < spaces; ++j) {
+                    sb.append(' ');
+                }
+                column += spaces;
+            }
+            else {
+                sb.append(c);
+                column = c == '\n' || c == '\r' ? 0 : column + 1;
+            }
+        }
+        return sb.toString();
+    }
+
+    // collects tokens into a TokenList
+    private class Collector implements Sink {
+        private final StringBuilder values;
+        private int[] typeIds = new int[64];
+        private int[] ends = new int[64];
+        private int size;
+
+        Collector(int capacity) {
+            this.values = new StringBuilder(capacity);
+        }
+
+        @Override
+        public void add(int type, String text, int start, int end) {
+            if (size == typeIds.length) {
+                typeIds = Arrays.copyOf(typeIds, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            values.append(text, start, end);
+            typeIds[size] = type;
+            ends[size] = values.length();
+            ++size;
+        }
+
+        TokenList toTokenList() {
+            return new TokenList(table.types,
+                                 Arrays.copyOf(typeIds, size),
+                                 Arrays.copyOf(ends, size),
+                                 values.toString());
+        }
+    }
+
+    // RegexLexer.get_tokens_unprocessed
+    private class Run {
+        private final String text;
+        private final Sink sink;
+        private final Matcher[][] matchers;
+
+        Run(String text, Sink sink) {
+            this.text = text;
+            this.sink = sink;
+            this.matchers = new Matcher[table.states.length][];
+        }
+
+        private Matcher matcher(int state, int rule) {
+            Matcher[] m = matchers[state];
+            if (m == null) {
+                m = matchers[state] = new Matcher[table.states[state].length];
+            }
+            if (m[rule] == null) {
+                m[rule] = table.states[state][rule].pattern.matcher(text)
+                    .useAnchoringBounds(false)
+                    .useTransparentBounds(true);
+            }
+            return m[rule];
+        }
+
+        private void emit(int type, int start, int end) {
+            sink.add(type, text, start, end);
+        }
+
+        void run() {
+            int[] stack = new int[16];
+            int depth = 1;
+            int pos = 0;
+            int length = text.length();
+            while (true) {
+                Rule[] rules = table.states[stack[depth - 1]];
+                boolean matched = false;
+                for (int r = 0; r < rules.length; ++r) {
+                    Matcher m = matcher(stack[depth - 1], r);
+                    m.region(pos, length);
+                    if (!m.lookingAt()) {
+                        continue;
+                    }
+                    Rule rule = rules[r];
+                    if (rule.type >= 0) {
+                        emit(rule.type, pos, m.end());
+                    }
+                    else if (rule.groupTypes != null) {
+                        for (int g = 0; g < rule.groupTypes.length; ++g) {
+                            int start = m.start(g + 1);
+                            int end = m.end(g + 1);
+                            if (rule.groupTypes[g] >= 0 && start >= 0
+                                    && end > start) {
+                                emit(rule.groupTypes[g], start, end);
+                            }
+                        }
+                    }
+                    pos = m.end();
+                    if (rule.transition != null) {
+                        for (int state : rule.transition) {
+                            if (state == POP) {
+                                // Python would fail on an empty stack
+                                if (depth > 1) {
+                                    --depth;
+                                }
+                            }
+                            else {
+                                if (depth == stack.length) {
+                                    stack = Arrays.copyOf(stack, depth * 2);
+                                }
+                                stack[depth] = state == PUSH
+                                    ? stack[depth - 1]
+                                    : state;
+                                ++depth;
+                            }
+                        }
+                    }
+                    matched = true;
+                    break;
+                }
+                if (matched) {
+                    continue;
+                }
+                if (pos >= length) {
+                    break;
+                }
+                if (text.charAt(pos) == '\n') {
+                    // at EOL, reset state to root
+                    depth = 1;
+                    stack[0] = 0;
+                    emit(0, pos, pos + 1);
+                    ++pos;
+                }
+                else {
+                    int next = pos + Character.charCount(text.codePointAt(pos));
+                    emit(1, pos, next);
+                    pos = next;
+                }
+            }
+        }
+    }
+}
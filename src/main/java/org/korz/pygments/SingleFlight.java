@@ -0,0 +1,70 @@
+package org.korz.pygments;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Shares one computation between concurrent calls with equal keys.
+ * <p>
+ * The first caller for a key runs the computation and every caller that
+ * arrives while it is running waits for and receives the same result, or
+ * the same exception. Nothing is remembered once the computation finishes,
+ * so this only de-duplicates calls that overlap in time.
+ * @param <K> The key type.
+ * @param <V> The result type.
+ * @see PygmentsContext.Builder#setSingleFlight
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight =
+        new ConcurrentHashMap<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    V run(K key, Function<? super K, ? extends V> function) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            waiters.incrementAndGet();
+            try {
+                return existing.join();
+            }
+            catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+            finally {
+                waiters.decrementAndGet();
+            }
+        }
+        try {
+            V result = function.apply(key);
+            mine.complete(result);
+            return result;
+        }
+        catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** The number of computations in flight. */
+    int size() {
+        return inFlight.size();
+    }
+
+    /** The number of callers waiting for another caller's result. */
+    int waiters() {
+        return waiters.get();
+    }
+}
@@ -0,0 +1,83 @@
+package org.korz.pygments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generated style definitions, cached for the life of the JVM.
+ * <p>
+ * Style definitions depend only on the formatter's configuration and the
+ * selector, so they are keyed by both and generated once. The gzipped form
+ * is compressed once as well, so that stylesheets can be served without
+ * calling into Python or compressing again.
+ * @see Formatter#getStyleDefs
+ */
+class StyleDefs {
+    private static final Map<String, StyleDefs> CACHE =
+        new ConcurrentHashMap<>();
+
+    private final String css;
+    private final byte[] gzipped;
+
+    private StyleDefs(String css) {
+        this.css = css;
+        this.gzipped = gzip(css.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns cached style definitions, generating them if needed.
+     * @param configKey The formatter's configuration key.
+     * @param selector The selector, or null for the formatter's default.
+     * @param generate Generates the style definitions.
+     */
+    static StyleDefs get(String configKey,
+                         String selector,
+                         Supplier<String> generate) {
+        // the selector is null or a string, so the keys cannot collide
+        String key = selector == null
+            ? configKey
+            : configKey + '\n' + selector;
+        StyleDefs defs = CACHE.get(key);
+        if (defs == null) {
+            // generated outside the map so that other keys are not blocked;
+            // if two threads race, both generate identical definitions
+            defs = new StyleDefs(generate.get());
+            StyleDefs existing = CACHE.putIfAbsent(key, defs);
+            if (existing != null) {
+                defs = existing;
+            }
+        }
+        return defs;
+    }
+
+    String getCss() {
+        return css;
+    }
+
+    byte[] getGzipped() {
+        return gzipped.clone();
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(bytes);
+        }
+        catch (IOException e) {
+            // not thrown by ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
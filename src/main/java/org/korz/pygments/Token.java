@@ -0,0 +1,63 @@
+package org.korz.pygments;
+
+/**
+ * A single Pygments token.
+ * <p>
+ * Token types are represented by their Pygments names, e.g.
+ * <code>Token.Name.Function</code>.
+ * @see Lexer#tokens
+ * @see <a href="http://pygments.org/docs/tokens/">
+ *      Pygments: Builtin Tokens</a>
+ */
+public class Token {
+    private final String type;
+    private final String value;
+
+    /**
+     * Creates a new token.
+     * @param type The token type name.
+     * @param value The token text.
+     */
+    public Token(String type, String value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    /**
+     * Returns the name of the token type.
+     * @return The token type name.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the text of the token.
+     * @return The token text.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Token)) {
+            return false;
+        }
+        Token other = (Token) o;
+        return type.equals(other.type) && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "(" + type + ", " + value + ")";
+    }
+}
@@ -0,0 +1,367 @@
+package org.korz.pygments;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A lexed token sequence stored outside the Java heap.
+ * <p>
+ * Like {@link TokenList}, the token values are kept as a single string, but
+ * each token's type id, start offset and length are written to direct
+ * buffers rather than to Java arrays. Lexing a very large text therefore
+ * allocates almost nothing on the heap apart from the text itself, and the
+ * token records never have to be copied or promoted by the garbage
+ * collector.
+ * <p>
+ * The buffers are allocated in fixed-size chunks from a shared pool and
+ * returned to it by {@link #close}, so that later lexes reuse them:
+ * <pre><code>
+ * try (TokenArena tokens = lexer.lexArena(text)) {
+ *     String html = formatter.format(tokens);
+ * }
+ * </code></pre>
+ * An arena must not be used after it is closed. Instances are thread-safe
+ * until then.
+ * @see Lexer#lexArena
+ * @see Formatter#format(TokenArena)
+ */
+public final class TokenArena implements Iterable<Token>, Closeable {
+    // type id, start and length
+    private static final int RECORD_SIZE = 12;
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_TOKENS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_TOKENS - 1;
+    // at most 24 MiB of chunks are kept for reuse
+    private static final BlockingQueue<ByteBuffer> POOL =
+        new ArrayBlockingQueue<>(32);
+
+    private static ByteBuffer allocateChunk() {
+        ByteBuffer chunk = POOL.poll();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_TOKENS * RECORD_SIZE);
+        }
+        return chunk;
+    }
+
+    private static void releaseChunks(List<ByteBuffer> chunks) {
+        for (ByteBuffer chunk : chunks) {
+            // dropped for the garbage collector if the pool is full
+            POOL.offer(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Writes tokens into new chunks.
+     */
+    static class Writer implements RegexEngine.Sink {
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private final StringBuilder values;
+        private int size;
+
+        Writer(int capacity) {
+            this.values = new StringBuilder(capacity);
+        }
+
+        private void record(int type, int start, int length) {
+            int offset = (size & CHUNK_MASK) * RECORD_SIZE;
+            if (offset == 0) {
+                chunks.add(allocateChunk());
+            }
+            ByteBuffer chunk = chunks.get(chunks.size() - 1);
+            chunk.putInt(offset, type);
+            chunk.putInt(offset + 4, start);
+            chunk.putInt(offset + 8, length);
+            ++size;
+        }
+
+        @Override
+        public void add(int type, String text, int start, int end) {
+            record(type, values.length(), end - start);
+            values.append(text, start, end);
+        }
+
+        /**
+         * Adds all tokens of the current batch.
+         */
+        void addBatch(TokenBatches batches) {
+            int base = values.length();
+            for (int i = 0; i < batches.size(); ++i) {
+                record(batches.getTypeId(i),
+                       base + batches.getStart(i),
+                       batches.getEnd(i) - batches.getStart(i));
+            }
+            values.append(batches.getChunk());
+        }
+
+        /**
+         * Creates the arena, which takes over the chunks.
+         */
+        TokenArena finish(List<String> types) {
+            return new TokenArena(new ArrayList<>(types), values.toString(),
+                                  new ArrayList<>(chunks), 0, size, null);
+        }
+
+        /**
+         * Returns the chunks to the pool if the arena is not created.
+         */
+        void release() {
+            releaseChunks(chunks);
+        }
+    }
+
+    private final List<String> types;
+    private final String text;
+    private final List<ByteBuffer> chunks;
+    private final int offset;
+    private final int size;
+    // the arena that owns the chunks, or null if this is it
+    private final TokenArena owner;
+    private volatile boolean closed;
+
+    private TokenArena(List<String> types,
+                       String text,
+                       List<ByteBuffer> chunks,
+                       int offset,
+                       int size,
+                       TokenArena owner) {
+        this.types = Collections.unmodifiableList(types);
+        this.text = text;
+        this.chunks = chunks;
+        this.offset = offset;
+        this.size = size;
+        this.owner = owner;
+    }
+
+    private void checkOpen() {
+        if ((owner == null ? this : owner).closed) {
+            throw new IllegalStateException("Token arena is closed");
+        }
+    }
+
+    private int field(int i, int field) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(
+                "Token index " + i + " out of range for size " + size);
+        }
+        checkOpen();
+        int index = offset + i;
+        return chunks.get(index >>> CHUNK_SHIFT)
+            .getInt((index & CHUNK_MASK) * RECORD_SIZE + field);
+    }
+
+    /**
+     * Returns the number of tokens.
+     * @return The number of tokens.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the token type table.
+     * @return The token type names, indexed by type id.
+     * @see TokenList#getTypes
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    /**
+     * Returns the type id of a token.
+     * @param i The token index.
+     * @return An index into {@link #getTypes}.
+     */
+    public int getTypeId(int i) {
+        return field(i, 0);
+    }
+
+    /**
+     * Returns the type name of a token.
+     * @param i The token index.
+     * @return The token type name.
+     */
+    public String getType(int i) {
+        return types.get(getTypeId(i));
+    }
+
+    /**
+     * Returns the offset of the first character of a token.
+     * @param i The token index.
+     * @return The offset into {@link #getText}.
+     */
+    public int getStart(int i) {
+        return field(i, 4);
+    }
+
+    /**
+     * Returns the offset after the last character of a token.
+     * @param i The token index.
+     * @return The offset into {@link #getText}.
+     */
+    public int getEnd(int i) {
+        return getStart(i) + field(i, 8);
+    }
+
+    /**
+     * Returns the text of a token.
+     * @param i The token index.
+     * @return The token text.
+     */
+    public String getValue(int i) {
+        int start = getStart(i);
+        return text.substring(start, start + field(i, 8));
+    }
+
+    /**
+     * Returns the token at the specified index.
+     * @param i The token index.
+     * @return The token.
+     */
+    public Token get(int i) {
+        return new Token(getType(i), getValue(i));
+    }
+
+    /**
+     * Returns the concatenated text of all tokens of the lexed text.
+     * <p>
+     * A slice shares the text of the arena it was taken from, so its token
+     * offsets point into the same text.
+     * @return The lexed text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns a view of a range of tokens.
+     * <p>
+     * The slice shares this arena's buffers. It is valid until the arena
+     * that lexed the tokens is closed, and closing a slice has no effect.
+     * @param from The index of the first token.
+     * @param to The index after the last token.
+     * @return The tokens in the range.
+     * @throws IndexOutOfBoundsException If the range is invalid.
+     */
+    public TokenArena slice(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException(
+                "Invalid range " + from + " to " + to + " for size " + size);
+        }
+        checkOpen();
+        return new TokenArena(types, text, chunks, offset + from, to - from,
+                              owner == null ? this : owner);
+    }
+
+    /**
+     * Copies the tokens onto the heap.
+     * @return A token list with the same tokens.
+     */
+    public TokenList toTokenList() {
+        if (size == 0) {
+            return new TokenList(types, new int[0], new int[0], "");
+        }
+        int start = getStart(0);
+        int[] typeIds = new int[size];
+        int[] ends = new int[size];
+        for (int i = 0; i < size; ++i) {
+            typeIds[i] = getTypeId(i);
+            ends[i] = getEnd(i) - start;
+        }
+        return new TokenList(types, typeIds, ends,
+                             text.substring(start, getEnd(size - 1)));
+    }
+
+    /**
+     * Passes the tokens to a consumer in batches of heap arrays.
+     * <p>
+     * Each batch holds at most one chunk of tokens, so only that much is
+     * copied onto the heap at a time.
+     */
+    Iterator<Object[]> batches() {
+        checkOpen();
+        boolean simple = text.codePointCount(0, text.length())
+            == text.length();
+        return new Iterator<Object[]>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Object[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int n = Math.min(CHUNK_TOKENS, size - next);
+                int[] typeIds = new int[n];
+                int[] lengths = new int[n];
+                int start = getStart(next);
+                for (int i = 0; i < n; ++i) {
+                    int token = next + i;
+                    typeIds[i] = getTypeId(token);
+                    lengths[i] = simple
+                        ? field(token, 8)
+                        : text.codePointCount(getStart(token),
+                                              getEnd(token));
+                }
+                String chunk = text.substring(start, getEnd(next + n - 1));
+                next += n;
+                return new Object[] {typeIds, lengths, chunk};
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Token> iterator() {
+        return new Iterator<Token>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Token next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(index++);
+            }
+        };
+    }
+
+    /**
+     * Returns the buffers to the pool.
+     * <p>
+     * Closing an arena more than once, or closing a slice, has no effect.
+     */
+    @Override
+    public void close() {
+        if (owner != null) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        releaseChunks(chunks);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenArena(" + size + " tokens)";
+    }
+}
@@ -0,0 +1,121 @@
+package org.korz.pygments;
+
+import org.python.core.PyObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes token batches produced by the Python lex_batches helper.
+ * <p>
+ * Each batch holds the token type ids and lengths in primitive arrays and the
+ * token values concatenated into a single string, so only a handful of
+ * objects cross the Java/Python boundary per batch instead of per token.
+ */
+class TokenBatches {
+    private final PyObject source;
+    private final List<String> types = new ArrayList<>();
+    private int[] typeIds = new int[0];
+    private int[] ends = new int[0];
+    private String chunk = "";
+
+    TokenBatches(PyObject source) {
+        this.source = source;
+    }
+
+    /**
+     * Advances to the next batch.
+     * @return False if there are no more batches.
+     */
+    boolean next() {
+        PyObject batch = source.__iternext__();
+        if (batch == null) {
+            return false;
+        }
+        for (PyObject type : batch.__getitem__(0).asIterable()) {
+            types.add(PythonUtil.toJava(String.class, type));
+        }
+        typeIds = PythonUtil.toJava(int[].class, batch.__getitem__(1));
+        int[] lengths = PythonUtil.toJava(int[].class, batch.__getitem__(2));
+        chunk = PythonUtil.toJava(String.class, batch.__getitem__(3));
+
+        // Python lengths are in code points, not UTF-16 chars.
+        long total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        boolean simple = total == chunk.length();
+        ends = new int[lengths.length];
+        int end = 0;
+        for (int i = 0; i < lengths.length; ++i) {
+            end = simple ? end + lengths[i]
+                         : chunk.offsetByCodePoints(end, lengths[i]);
+            ends[i] = end;
+        }
+        return true;
+    }
+
+    /** The type names seen so far, indexed by type id. */
+    List<String> getTypes() {
+        return types;
+    }
+
+    /** The number of tokens in the current batch. */
+    int size() {
+        return typeIds.length;
+    }
+
+    /** The concatenated token values of the current batch. */
+    String getChunk() {
+        return chunk;
+    }
+
+    int getTypeId(int i) {
+        return typeIds[i];
+    }
+
+    int getStart(int i) {
+        return i == 0 ? 0 : ends[i - 1];
+    }
+
+    int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Iterates over all tokens of all remaining batches.
+     */
+    static class TokenIterator implements Iterator<Token> {
+        private final TokenBatches batches;
+        private int index;
+        private boolean done;
+
+        TokenIterator(TokenBatches batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!done && index >= batches.size()) {
+                done = !batches.next();
+                index = 0;
+            }
+            return !done;
+        }
+
+        @Override
+        public Token next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Token token = new Token(
+                batches.getTypes().get(batches.getTypeId(index)),
+                batches.getChunk().substring(batches.getStart(index),
+                                             batches.getEnd(index)));
+            ++index;
+            return token;
+        }
+    }
+}
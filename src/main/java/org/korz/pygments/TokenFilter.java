@@ -0,0 +1,75 @@
+package org.korz.pygments;
+
+/**
+ * Transforms lexed tokens in Java before they are formatted.
+ * <p>
+ * Filters work on whole token lists, so tokens do not cross the Java/Python
+ * boundary one at a time. Common Pygments filters are implemented in
+ * {@link TokenFilters}, and filters can be chained:
+ * <pre><code>
+ * PygmentsContext p = PygmentsContext.newContext()
+ *     .setLexerName("pascal")
+ *     .setFormatterName("html")
+ *     .addTokenFilter(TokenFilters.keywordCase("upper"))
+ *     .addTokenFilter(TokenFilters.tokenMerge())
+ *     .build();
+ * </code></pre>
+ * Filters must be thread-safe if their context is used by several threads.
+ * A context only caches results if its filter has a configuration key, see
+ * {@link #getConfigKey}.
+ * @see PygmentsContext.Builder#addTokenFilter
+ * @see <a href="http://pygments.org/docs/filters/">Pygments: Filters</a>
+ */
+@FunctionalInterface
+public interface TokenFilter {
+    /**
+     * Filters tokens.
+     * @param tokens The tokens.
+     * @return The filtered tokens, which may be the same list.
+     */
+    TokenList filter(TokenList tokens);
+
+    /**
+     * Returns a key that identifies what this filter does.
+     * <p>
+     * The key becomes part of the cache key of a context with this filter,
+     * so it must stay the same across restarts for filters that do the same
+     * thing, and differ for filters that do not. The default is null, for
+     * filters such as lambdas that cannot describe themselves; contexts with
+     * such a filter do not cache results.
+     * @return The key, or null if this filter has none.
+     * @see PygmentsContext.Builder#setCache
+     */
+    default String getConfigKey() {
+        return null;
+    }
+
+    /**
+     * Returns a filter that runs this filter and then another.
+     * @param next The filter to run after this one.
+     * @return The combined filter.
+     */
+    default TokenFilter andThen(TokenFilter next) {
+        TokenFilter first = this;
+        return new TokenFilter() {
+            @Override
+            public TokenList filter(TokenList tokens) {
+                return next.filter(first.filter(tokens));
+            }
+
+            @Override
+            public String getConfigKey() {
+                String firstKey = first.getConfigKey();
+                String nextKey = next.getConfigKey();
+                return firstKey == null || nextKey == null
+                    ? null
+                    : firstKey + "," + nextKey;
+            }
+
+            @Override
+            public String toString() {
+                return first + "," + next;
+            }
+        };
+    }
+}
@@ -0,0 +1,274 @@
+package org.korz.pygments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Java implementations of common Pygments filters.
+ * <p>
+ * These produce the same tokens as the Pygments filters of the same names,
+ * but run on whole token lists in Java.
+ * @see TokenFilter
+ * @see <a href="http://pygments.org/docs/filters/">Pygments: Filters</a>
+ */
+public final class TokenFilters {
+    private static final String KEYWORD = "Token.Keyword";
+    private static final String WHITESPACE = "Token.Text.Whitespace";
+
+    // builds a token list, adding types as needed
+    private static class Output {
+        private final List<String> types;
+        private final Map<String, Integer> typeIds = new HashMap<>();
+        private final StringBuilder text;
+        private int[] ids;
+        private int[] ends;
+        private int size;
+
+        Output(TokenList input) {
+            this.types = new ArrayList<>(input.getTypes());
+            for (int i = 0; i < types.size(); ++i) {
+                typeIds.putIfAbsent(types.get(i), i);
+            }
+            this.text = new StringBuilder(input.getText().length());
+            this.ids = new int[Math.max(16, input.size())];
+            this.ends = new int[ids.length];
+        }
+
+        int typeId(String type) {
+            return typeIds.computeIfAbsent(type, t -> {
+                types.add(t);
+                return types.size() - 1;
+            });
+        }
+
+        void add(int typeId, CharSequence value) {
+            add(typeId, value, 0, value.length());
+        }
+
+        void add(int typeId, CharSequence value, int start, int end) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            text.append(value, start, end);
+            ids[size] = typeId;
+            ends[size] = text.length();
+            ++size;
+        }
+
+        TokenList toTokenList() {
+            return new TokenList(types,
+                                 Arrays.copyOf(ids, size),
+                                 Arrays.copyOf(ends, size),
+                                 text.toString());
+        }
+    }
+
+    /**
+     * Merges consecutive tokens of the same type.
+     * @return A new filter.
+     * @see <a href="http://pygments.org/docs/filters/#TokenMergeFilter">
+     *      Pygments: TokenMergeFilter</a>
+     */
+    public static TokenFilter tokenMerge() {
+        return new TokenFilter() {
+            @Override
+            public TokenList filter(TokenList tokens) {
+                int n = tokens.size();
+                int merged = 0;
+                for (int i = 0; i < n; ++i) {
+                    if (i == 0
+                            || tokens.getTypeId(i)
+                               != tokens.getTypeId(i - 1)) {
+                        ++merged;
+                    }
+                }
+                if (merged == n) {
+                    return tokens;
+                }
+                int[] ids = new int[merged];
+                int[] ends = new int[merged];
+                int m = -1;
+                for (int i = 0; i < n; ++i) {
+                    if (i == 0
+                            || tokens.getTypeId(i)
+                               != tokens.getTypeId(i - 1)) {
+                        ids[++m] = tokens.getTypeId(i);
+                    }
+                    ends[m] = tokens.getEnd(i);
+                }
+                // the text is unchanged
+                return new TokenList(new ArrayList<>(tokens.getTypes()),
+                                     ids, ends, tokens.getText());
+            }
+
+            @Override
+            public String getConfigKey() {
+                return "tokenmerge";
+            }
+
+            @Override
+            public String toString() {
+                return getConfigKey();
+            }
+        };
+    }
+
+    /**
+     * Converts keywords to lowercase, uppercase or capitalizes them.
+     * <p>
+     * Like Python, only simple one-to-one case mappings are used.
+     * @param letterCase <code>lower</code>, <code>upper</code> or
+     *                   <code>capitalize</code>.
+     * @return A new filter.
+     * @throws IllegalArgumentException If the case is not supported.
+     * @see <a href="http://pygments.org/docs/filters/#KeywordCaseFilter">
+     *      Pygments: KeywordCaseFilter</a>
+     */
+    public static TokenFilter keywordCase(String letterCase) {
+        boolean capitalize;
+        IntUnaryOperator convert;
+        switch (letterCase) {
+            case "lower":
+                capitalize = false;
+                convert = Character::toLowerCase;
+                break;
+            case "upper":
+                capitalize = false;
+                convert = Character::toUpperCase;
+                break;
+            case "capitalize":
+                capitalize = true;
+                convert = Character::toLowerCase;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown case: " + letterCase);
+        }
+        return new TokenFilter() {
+            @Override
+            public TokenList filter(TokenList tokens) {
+                List<String> types = tokens.getTypes();
+                boolean[] keyword = new boolean[types.size()];
+                for (int t = 0; t < keyword.length; ++t) {
+                    keyword[t] = TokenList.isSubtype(types.get(t), KEYWORD);
+                }
+                Output out = new Output(tokens);
+                StringBuilder value = new StringBuilder();
+                String text = tokens.getText();
+                for (int i = 0; i < tokens.size(); ++i) {
+                    int typeId = tokens.getTypeId(i);
+                    int start = tokens.getStart(i);
+                    int end = tokens.getEnd(i);
+                    if (!keyword[typeId]) {
+                        out.add(typeId, text, start, end);
+                        continue;
+                    }
+                    value.setLength(0);
+                    for (int p = start; p < end; ) {
+                        int c = text.codePointAt(p);
+                        value.appendCodePoint(capitalize && p == start
+                            ? Character.toUpperCase(c)
+                            : convert.applyAsInt(c));
+                        p += Character.charCount(c);
+                    }
+                    out.add(typeId, value);
+                }
+                return out.toTokenList();
+            }
+
+            @Override
+            public String getConfigKey() {
+                return "keywordcase(" + letterCase + ")";
+            }
+
+            @Override
+            public String toString() {
+                return getConfigKey();
+            }
+        };
+    }
+
+    /**
+     * Makes spaces, tabs and newlines visible.
+     * <p>
+     * This is the Pygments filter with its default options: spaces become
+     * a middle dot, tabs a right-pointing double angle quotation mark padded
+     * to 8 characters, newlines a pilcrow followed by the newline, and every
+     * whitespace character gets its own <code>Whitespace</code> token.
+     * @param spaces Whether to replace spaces.
+     * @param tabs Whether to replace tabs.
+     * @param newlines Whether to replace newlines.
+     * @return A new filter.
+     * @see <a href="http://pygments.org/docs/filters/#VisibleWhitespaceFilter">
+     *      Pygments: VisibleWhitespaceFilter</a>
+     */
+    public static TokenFilter visibleWhitespace(boolean spaces,
+                                                boolean tabs,
+                                                boolean newlines) {
+        String space = spaces ? "\u00b7" : " ";
+        String tab = tabs ? "\u00bb       " : "\t";
+        String newline = newlines ? "\u00b6\n" : "\n";
+        return new TokenFilter() {
+            @Override
+            public TokenList filter(TokenList tokens) {
+                Output out = new Output(tokens);
+                int whitespace = out.typeId(WHITESPACE);
+                String text = tokens.getText();
+                for (int i = 0; i < tokens.size(); ++i) {
+                    int typeId = tokens.getTypeId(i);
+                    int last = tokens.getStart(i);
+                    int end = tokens.getEnd(i);
+                    for (int p = last; p < end; ++p) {
+                        String replacement;
+                        switch (text.charAt(p)) {
+                            case ' ':
+                                replacement = space;
+                                break;
+                            case '\t':
+                                replacement = tab;
+                                break;
+                            case '\n':
+                                replacement = newline;
+                                break;
+                            // the rest of Python's \s without re.UNICODE
+                            case '\r':
+                            case '\f':
+                            case '\u000b':
+                                replacement = text.substring(p, p + 1);
+                                break;
+                            default:
+                                continue;
+                        }
+                        if (p != last) {
+                            out.add(typeId, text, last, p);
+                        }
+                        out.add(whitespace, replacement);
+                        last = p + 1;
+                    }
+                    if (last != end) {
+                        out.add(typeId, text, last, end);
+                    }
+                }
+                return out.toTokenList();
+            }
+
+            @Override
+            public String getConfigKey() {
+                return "whitespace(" + spaces + "," + tabs + ","
+                    + newlines + ")";
+            }
+
+            @Override
+            public String toString() {
+                return getConfigKey();
+            }
+        };
+    }
+
+    private TokenFilters() {}
+}
@@ -0,0 +1,431 @@
+package org.korz.pygments;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A fully lexed token sequence.
+ * <p>
+ * Tokens are stored compactly: the token values are kept as a single string
+ * and each token is described by a type id and an end offset into it. A
+ * TokenList can be formatted any number of times without lexing again, and
+ * it can be serialized to bytes so that lexed results can be stored or sent
+ * elsewhere:
+ * <pre><code>
+ * TokenList tokens = lexer.lexAll(text);
+ * byte[] data = tokens.toByteArray();
+ * // ... later, possibly somewhere else ...
+ * String html = formatter.format(TokenList.fromByteArray(data));
+ * </code></pre>
+ * The serialized form consists of:
+ * <ol>
+ * <li>The magic bytes <code>PYGT</code> and a version byte.</li>
+ * <li>The token type table: a count and then each type name as UTF-8, all
+ * prefixed with varint lengths.</li>
+ * <li>The tokens: a varint count and then a varint type id and a varint
+ * length (in UTF-16 code units) per token.</li>
+ * <li>The concatenated token values as UTF-8, prefixed with a varint
+ * length.</li>
+ * </ol>
+ * Instances are immutable and thread-safe.
+ * @see Lexer#lexAll
+ * @see Formatter#format(TokenList)
+ */
+public class TokenList implements Iterable<Token> {
+    private static final byte[] MAGIC = {'P', 'Y', 'G', 'T'};
+    private static final int VERSION = 1;
+    // bounds on deserialized type names, far above what Pygments defines
+    private static final int MAX_TYPES = 1 << 16;
+    private static final int MAX_TYPE_LENGTH = 1 << 10;
+    // deserialized arrays grow in steps of at most this many elements, so
+    // that a corrupt length runs out of input instead of being allocated
+    private static final int CHUNK = 1 << 16;
+
+    private final List<String> types;
+    private final int[] typeIds;
+    private final int[] ends;
+    private final String text;
+
+    TokenList(List<String> types, int[] typeIds, int[] ends, String text) {
+        this.types = Collections.unmodifiableList(types);
+        this.typeIds = typeIds;
+        this.ends = ends;
+        this.text = text;
+    }
+
+    /**
+     * Returns whether a token type is a parent type or one of its subtypes,
+     * like <code>token.is_token_subtype</code>.
+     * @param type The token type, e.g. "Token.Keyword.Constant".
+     * @param parent The parent type, e.g. "Token.Keyword".
+     */
+    static boolean isSubtype(String type, String parent) {
+        return type.startsWith(parent)
+            && (type.length() == parent.length()
+                || type.charAt(parent.length()) == '.');
+    }
+
+    /**
+     * Collects all tokens of a batched token source.
+     */
+    static TokenList collect(TokenBatches batches) {
+        int[] typeIds = new int[0];
+        int[] ends = new int[0];
+        int size = 0;
+        StringBuilder text = new StringBuilder();
+        while (batches.next()) {
+            int n = batches.size();
+            if (size + n > typeIds.length) {
+                int capacity = Math.max(size + n, typeIds.length * 2);
+                typeIds = Arrays.copyOf(typeIds, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            int base = text.length();
+            for (int i = 0; i < n; ++i) {
+                typeIds[size + i] = batches.getTypeId(i);
+                ends[size + i] = base + batches.getEnd(i);
+            }
+            size += n;
+            text.append(batches.getChunk());
+        }
+        return new TokenList(new ArrayList<>(batches.getTypes()),
+                             Arrays.copyOf(typeIds, size),
+                             Arrays.copyOf(ends, size),
+                             text.toString());
+    }
+
+    /**
+     * Returns the number of tokens.
+     * @return The number of tokens.
+     */
+    public int size() {
+        return typeIds.length;
+    }
+
+    /**
+     * Returns the token type table.
+     * <p>
+     * Each distinct token type appears once. Not every type in the table is
+     * necessarily used by a token.
+     * @return The token type names, indexed by type id.
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    /**
+     * Returns the type id of a token.
+     * @param i The token index.
+     * @return An index into {@link #getTypes}.
+     */
+    public int getTypeId(int i) {
+        return typeIds[i];
+    }
+
+    /**
+     * Returns the type name of a token.
+     * @param i The token index.
+     * @return The token type name.
+     */
+    public String getType(int i) {
+        return types.get(typeIds[i]);
+    }
+
+    /**
+     * Returns the offset of the first character of a token.
+     * @param i The token index.
+     * @return The offset into {@link #getText}.
+     */
+    public int getStart(int i) {
+        return i == 0 ? 0 : ends[i - 1];
+    }
+
+    /**
+     * Returns the offset after the last character of a token.
+     * @param i The token index.
+     * @return The offset into {@link #getText}.
+     */
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Returns the text of a token.
+     * @param i The token index.
+     * @return The token text.
+     */
+    public String getValue(int i) {
+        return text.substring(getStart(i), getEnd(i));
+    }
+
+    /**
+     * Returns the token at the specified index.
+     * @param i The token index.
+     * @return The token.
+     */
+    public Token get(int i) {
+        return new Token(getType(i), getValue(i));
+    }
+
+    /**
+     * Returns the concatenated text of all tokens.
+     * <p>
+     * This may differ from the text originally given to the lexer, since
+     * lexers may normalize newlines, expand tabs, etc.
+     * @return The lexed text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public Iterator<Token> iterator() {
+        return new Iterator<Token>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Token next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(index++);
+            }
+        };
+    }
+
+    /** The type ids of all tokens. Callers must not modify the array. */
+    int[] getTypeIds() {
+        return typeIds;
+    }
+
+    /**
+     * Returns the token lengths in Unicode code points.
+     * <p>
+     * Python strings are indexed by code point rather than by UTF-16 code
+     * unit, so this is what Python needs to split the text.
+     */
+    int[] getCodePointLengths() {
+        int[] lengths = new int[size()];
+        boolean simple = text.codePointCount(0, text.length())
+            == text.length();
+        for (int i = 0; i < lengths.length; ++i) {
+            lengths[i] = simple
+                ? getEnd(i) - getStart(i)
+                : text.codePointCount(getStart(i), getEnd(i));
+        }
+        return lengths;
+    }
+
+    /**
+     * Serializes this token list.
+     * @param out The output stream.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, types.size());
+        for (String type : types) {
+            writeBytes(out, type.getBytes(StandardCharsets.UTF_8));
+        }
+        writeVarint(out, size());
+        for (int i = 0; i < size(); ++i) {
+            writeVarint(out, typeIds[i]);
+            writeVarint(out, getEnd(i) - getStart(i));
+        }
+        writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serializes this token list.
+     * @return The serialized bytes.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+            text.length() + 2 * size() + 64);
+        try {
+            writeTo(out);
+        }
+        catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deserializes a token list.
+     * @param in The input stream.
+     * @return The token list.
+     * @throws IOException If reading fails or the data is malformed.
+     */
+    public static TokenList readFrom(InputStream in) throws IOException {
+        byte[] magic = readBytes(in, MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a serialized token list");
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported token list version: "
+                                  + version);
+        }
+
+        int typeCount = readVarint(in);
+        if (typeCount > MAX_TYPES) {
+            throw new IOException("Malformed token list");
+        }
+        List<String> types = new ArrayList<>(typeCount);
+        for (int i = 0; i < typeCount; ++i) {
+            int length = readVarint(in);
+            if (length > MAX_TYPE_LENGTH) {
+                throw new IOException("Malformed token list");
+            }
+            types.add(new String(readBytes(in, length),
+                                 StandardCharsets.UTF_8));
+        }
+
+        int size = readVarint(in);
+        int[] typeIds = new int[Math.min(size, CHUNK)];
+        int[] ends = new int[typeIds.length];
+        int end = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i == typeIds.length) {
+                int capacity = (int) Math.min(size, 2L * i);
+                typeIds = Arrays.copyOf(typeIds, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            typeIds[i] = readVarint(in);
+            if (typeIds[i] >= typeCount) {
+                throw new IOException("Invalid token type id: "
+                                      + typeIds[i]);
+            }
+            int length = readVarint(in);
+            if (length > Integer.MAX_VALUE - end) {
+                throw new IOException("Malformed token list");
+            }
+            end += length;
+            ends[i] = end;
+        }
+
+        String text = new String(readBytes(in, readVarint(in)),
+                                 StandardCharsets.UTF_8);
+        if (end != text.length()) {
+            throw new IOException("Token lengths do not match text length");
+        }
+        return new TokenList(types, typeIds, ends, text);
+    }
+
+    /**
+     * Deserializes a token list.
+     * @param data The serialized bytes.
+     * @return The token list.
+     * @throws IllegalArgumentException If the data is malformed.
+     */
+    public static TokenList fromByteArray(byte[] data) {
+        try {
+            return readFrom(new ByteArrayInputStream(data));
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Malformed token list: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void writeBytes(OutputStream out, byte[] bytes)
+            throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(InputStream in, int length)
+            throws IOException {
+        byte[] bytes = new byte[Math.min(length, CHUNK)];
+        int offset = 0;
+        while (offset < length) {
+            if (offset == bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                                      (int) Math.min(length, 2L * offset));
+            }
+            int n = in.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TokenList)) {
+            return false;
+        }
+        TokenList other = (TokenList) o;
+        if (size() != other.size() || !text.equals(other.text)) {
+            return false;
+        }
+        for (int i = 0; i < size(); ++i) {
+            if (ends[i] != other.ends[i]
+                    || !getType(i).equals(other.getType(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * text.hashCode() + Arrays.hashCode(ends);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenList(" + size() + " tokens)";
+    }
+}
@@ -0,0 +1,251 @@
+package org.korz.pygments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Token and line counts of a lexed text.
+ * <p>
+ * Lines are classified like this:
+ * <ul>
+ * <li>A line is a code line if it has non-whitespace chars in a token that
+ * is not a comment. Preprocessor directives count as code.</li>
+ * <li>A line is a comment line if it has non-whitespace chars only in
+ * <code>Comment</code> tokens.</li>
+ * <li>Any other line is blank.</li>
+ * </ul>
+ * Lines are counted in the lexer's output, so blank lines removed by the
+ * <code>stripnl</code> option are not counted.
+ * <p>
+ * Instances are immutable.
+ * @see Lexer#stats
+ */
+public final class TokenStats {
+    private static final String COMMENT = "Token.Comment";
+    private static final String PREPROC = "Token.Comment.Preproc";
+    private static final String PREPROC_FILE = "Token.Comment.PreprocFile";
+
+    private static boolean isComment(String type) {
+        return TokenList.isSubtype(type, COMMENT)
+            && !TokenList.isSubtype(type, PREPROC)
+            && !TokenList.isSubtype(type, PREPROC_FILE);
+    }
+
+    // the same test as Python's unicode.isspace for BMP chars
+    private static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    /**
+     * Counts the tokens of the Java engine as they are lexed.
+     */
+    static class Counter implements RegexEngine.Sink {
+        private final List<String> types;
+        private final boolean[] comment;
+        private final long[] tokens;
+        private final long[] chars;
+        private long codeLines;
+        private long commentLines;
+        private long blankLines;
+        private boolean hasCode;
+        private boolean hasComment;
+        private boolean partial;
+
+        Counter(List<String> types) {
+            this.types = types;
+            this.comment = new boolean[types.size()];
+            for (int i = 0; i < comment.length; ++i) {
+                comment[i] = isComment(types.get(i));
+            }
+            this.tokens = new long[types.size()];
+            this.chars = new long[types.size()];
+        }
+
+        private void endLine() {
+            if (hasCode) {
+                ++codeLines;
+            }
+            else if (hasComment) {
+                ++commentLines;
+            }
+            else {
+                ++blankLines;
+            }
+            hasCode = false;
+            hasComment = false;
+            partial = false;
+        }
+
+        @Override
+        public void add(int type, String text, int start, int end) {
+            ++tokens[type];
+            chars[type] += text.codePointCount(start, end);
+            for (int i = start; i < end; ++i) {
+                char c = text.charAt(i);
+                if (c == '\n') {
+                    endLine();
+                    continue;
+                }
+                partial = true;
+                if (!isSpace(c)) {
+                    if (comment[type]) {
+                        hasComment = true;
+                    }
+                    else {
+                        hasCode = true;
+                    }
+                }
+            }
+        }
+
+        TokenStats finish() {
+            if (partial) {
+                endLine();
+            }
+            Map<String, long[]> counts = new TreeMap<>();
+            for (int i = 0; i < tokens.length; ++i) {
+                if (tokens[i] != 0) {
+                    long[] c = counts.computeIfAbsent(types.get(i),
+                                                      t -> new long[2]);
+                    c[0] += tokens[i];
+                    c[1] += chars[i];
+                }
+            }
+            return new TokenStats(counts, codeLines, commentLines,
+                                  blankLines);
+        }
+    }
+
+    // type name to token count and char count
+    private final Map<String, long[]> counts;
+    private final long codeLines;
+    private final long commentLines;
+    private final long blankLines;
+
+    TokenStats(Map<String, long[]> counts,
+               long codeLines,
+               long commentLines,
+               long blankLines) {
+        this.counts = counts;
+        this.codeLines = codeLines;
+        this.commentLines = commentLines;
+        this.blankLines = blankLines;
+    }
+
+    /**
+     * Returns the token types that occur in the text.
+     * @return The type names, sorted.
+     */
+    public List<String> getTypes() {
+        return Collections.unmodifiableList(new ArrayList<>(counts.keySet()));
+    }
+
+    /**
+     * Returns the number of tokens of a type.
+     * @param type The type name, e.g. <code>Token.Comment.Single</code>.
+     *             Subtypes are not included.
+     * @return The number of tokens.
+     */
+    public long getTokenCount(String type) {
+        long[] c = counts.get(type);
+        return c == null ? 0 : c[0];
+    }
+
+    /**
+     * Returns the number of chars in tokens of a type.
+     * @param type The type name, e.g. <code>Token.Comment.Single</code>.
+     *             Subtypes are not included.
+     * @return The number of Unicode code points.
+     */
+    public long getCharCount(String type) {
+        long[] c = counts.get(type);
+        return c == null ? 0 : c[1];
+    }
+
+    /**
+     * Returns the total number of tokens.
+     * @return The number of tokens.
+     */
+    public long getTokenCount() {
+        long total = 0;
+        for (long[] c : counts.values()) {
+            total += c[0];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total number of chars in tokens.
+     * @return The number of Unicode code points.
+     */
+    public long getCharCount() {
+        long total = 0;
+        for (long[] c : counts.values()) {
+            total += c[1];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of code lines.
+     * @return The number of lines.
+     */
+    public long getCodeLines() {
+        return codeLines;
+    }
+
+    /**
+     * Returns the number of comment lines.
+     * @return The number of lines.
+     */
+    public long getCommentLines() {
+        return commentLines;
+    }
+
+    /**
+     * Returns the number of blank lines.
+     * @return The number of lines.
+     */
+    public long getBlankLines() {
+        return blankLines;
+    }
+
+    /**
+     * Returns the total number of lines.
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return codeLines + commentLines + blankLines;
+    }
+
+    /**
+     * Adds two sets of counts, e.g. to total the files of a language.
+     * @param other The other counts.
+     * @return The combined counts.
+     */
+    public TokenStats plus(TokenStats other) {
+        Map<String, long[]> sum = new TreeMap<>();
+        for (Map<String, long[]> m : Arrays.asList(counts, other.counts)) {
+            for (Map.Entry<String, long[]> e : m.entrySet()) {
+                long[] c = sum.computeIfAbsent(e.getKey(), t -> new long[2]);
+                c[0] += e.getValue()[0];
+                c[1] += e.getValue()[1];
+            }
+        }
+        return new TokenStats(sum,
+                              codeLines + other.codeLines,
+                              commentLines + other.commentLines,
+                              blankLines + other.blankLines);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenStats(" + getTokenCount() + " tokens, "
+            + codeLines + " code, " + commentLines + " comment, "
+            + blankLines + " blank lines)";
+    }
+}
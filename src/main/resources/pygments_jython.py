@@ -0,0 +1,526 @@
+"""Python side of pygments-jython.
+
+Functions in this module exist to reduce the number of calls across the
+Java/Python boundary. They are internal to the Java library and may change
+without notice.
+"""
+
+import fnmatch
+import re
+import sys
+import threading
+from array import array
+from collections import OrderedDict
+
+from java.lang import System
+
+from pygments import __version__, format, highlight
+from pygments.formatters.html import HtmlFormatter
+from pygments.lexer import ExtendedRegexLexer, Lexer, RegexLexer, bygroups
+from pygments.lexers import find_plugin_lexers, get_lexer_by_name
+from pygments.lexers._mapping import LEXERS
+from pygments.token import Comment, _TokenType, string_to_tokentype
+
+
+def config_key(obj):
+    """Describes the configuration of a lexer or formatter as a string.
+
+    Two objects with the same key produce the same output for the same input.
+    """
+    cls = type(obj)
+    options = sorted(getattr(obj, 'options', {}).items())
+    return u'pygments-%s %s.%s%r' % (__version__, cls.__module__,
+                                     cls.__name__, options)
+
+
+def lex_batches(text, lexer, size):
+    """Lexes text and yields the tokens in batches.
+
+    Each batch is a tuple of (new_types, type_ids, lengths, chunk):
+
+    * new_types: names of token types first seen in this batch. Type ids are
+      assigned in order of first appearance, starting from zero.
+    * type_ids: array of type ids, one per token.
+    * lengths: array of token lengths in code points, one per token.
+    * chunk: the token values of this batch concatenated.
+    """
+    types = {}
+    new_types = []
+    type_ids = array('i')
+    lengths = array('i')
+    values = []
+    for ttype, value in lexer.get_tokens(text):
+        type_id = types.get(ttype)
+        if type_id is None:
+            type_id = types[ttype] = len(types)
+            new_types.append(unicode(ttype))
+        type_ids.append(type_id)
+        lengths.append(len(value))
+        values.append(value)
+        if len(type_ids) >= size:
+            yield new_types, type_ids, lengths, u''.join(values)
+            new_types = []
+            type_ids = array('i')
+            lengths = array('i')
+            values = []
+    if type_ids:
+        yield new_types, type_ids, lengths, u''.join(values)
+
+
+def iter_tokens(types, type_ids, lengths, text):
+    """Yields (ttype, value) pairs from a token list's arrays.
+
+    This is the inverse of lex_batches, with all batches combined.
+    """
+    ttypes = [string_to_tokentype(t) for t in types]
+    pos = 0
+    for type_id, length in zip(type_ids, lengths):
+        yield ttypes[type_id], text[pos:pos + length]
+        pos += length
+
+
+def format_tokens(types, type_ids, lengths, text, formatter):
+    """Formats a token list's arrays."""
+    return format(iter_tokens(types, type_ids, lengths, text), formatter)
+
+
+def _iter_token_batches(types, batches):
+    """Yields (ttype, value) pairs from batches of (type_ids, lengths, text).
+
+    Batches are consumed one at a time, so only one needs to be in memory.
+    """
+    ttypes = [string_to_tokentype(t) for t in types]
+    for type_ids, lengths, text in batches:
+        pos = 0
+        for type_id, length in zip(type_ids, lengths):
+            yield ttypes[type_id], text[pos:pos + length]
+            pos += length
+
+
+def format_token_batches(types, batches, formatter):
+    """Formats tokens given as batches of (type_ids, lengths, text)."""
+    return format(_iter_token_batches(types, batches), formatter)
+
+
+class _PieceWriter(object):
+    """A file-like object that keeps everything written to it."""
+
+    def __init__(self):
+        self.pieces = []
+
+    def write(self, piece):
+        self.pieces.append(piece)
+
+    def flush(self):
+        pass
+
+
+def _streams_html(formatter):
+    """Whether an HtmlFormatter's output can be generated lazily.
+
+    Line number tables and full documents need the whole output first, and
+    subclasses may change how the output is put together.
+    """
+    return (isinstance(formatter, HtmlFormatter)
+            and type(formatter).format_unencoded.im_func
+            is HtmlFormatter.format_unencoded.im_func
+            and not formatter.encoding
+            and not formatter.full
+            and formatter.linenos != 1)
+
+
+def _html_pieces(tokens, formatter):
+    """Yields the pieces of HtmlFormatter.format_unencoded lazily."""
+    source = formatter._format_lines(tokens)
+    if formatter.hl_lines:
+        source = formatter._highlight_lines(source)
+    if not formatter.nowrap:
+        if formatter.linenos == 2:
+            source = formatter._wrap_inlinelinenos(source)
+        if formatter.lineanchors:
+            source = formatter._wrap_lineanchors(source)
+        if formatter.linespans:
+            source = formatter._wrap_linespans(source)
+        source = formatter.wrap(source, None)
+    for _, piece in source:
+        yield piece
+
+
+def format_chunks(tokens, formatter, size):
+    """Formats tokens into chunks of at least size characters.
+
+    HTML output is generated as chunks are requested, so tokens are only
+    consumed, and lazily lexed, as far as needed. Other output is formatted
+    in full first and then split.
+    """
+    if _streams_html(formatter):
+        pieces = _html_pieces(tokens, formatter)
+    else:
+        writer = _PieceWriter()
+        formatter.format(tokens, writer)
+        pieces = writer.pieces
+    chunk = []
+    length = 0
+    for piece in pieces:
+        chunk.append(piece)
+        length += len(piece)
+        if length >= size:
+            yield ''.join(chunk)
+            chunk = []
+            length = 0
+    if chunk:
+        yield ''.join(chunk)
+
+
+def _select_lines(tokens, start, stop):
+    """Yields the tokens of lines start <= n < stop, split at line ends.
+
+    Tokens after the last selected line are not consumed, so a lazy lexer
+    stops early.
+    """
+    line = 0
+    for ttype, value in tokens:
+        if line >= stop:
+            return
+        newlines = value.count(u'\n')
+        if line + newlines < start:
+            pass
+        elif line >= start and line + newlines < stop:
+            yield ttype, value
+        else:
+            parts = value.split(u'\n')
+            last = len(parts) - 1
+            for i, part in enumerate(parts):
+                if start <= line + i < stop:
+                    if i < last:
+                        part += u'\n'
+                    if part:
+                        yield ttype, part
+        line += newlines
+
+
+def format_lines(tokens, formatter, start, stop):
+    """Formats lines start <= n < stop into one fragment per line.
+
+    HTML fragments close every span they open, without any of the wrapping
+    the formatter would add around the whole output. Other formatters format
+    each line on its own.
+    """
+    selected = _select_lines(tokens, start, stop)
+    if isinstance(formatter, HtmlFormatter):
+        return [fragment for _, fragment in formatter._format_lines(selected)]
+    lines = []
+    line = []
+    for ttype, value in selected:
+        line.append((ttype, value))
+        if value.endswith(u'\n'):
+            lines.append(format(line, formatter))
+            line = []
+    if line:
+        lines.append(format(line, formatter))
+    return lines
+
+
+def format_token_list_lines(types, type_ids, lengths, text, formatter, start,
+                            stop):
+    """Formats lines of a token list's arrays, like format_lines."""
+    return format_lines(iter_tokens(types, type_ids, lengths, text),
+                        formatter, start, stop)
+
+
+def format_token_batches_lines(types, batches, formatter, start, stop):
+    """Formats a range of lines of tokens given as batches."""
+    return format_lines(_iter_token_batches(types, batches), formatter,
+                        start, stop)
+
+
+def _is_comment(ttype):
+    return (ttype in Comment and ttype not in Comment.Preproc
+            and ttype not in Comment.PreprocFile)
+
+
+def token_stats(text, lexer):
+    """Lexes text and counts its tokens and lines without keeping tokens.
+
+    Returns a tuple of (types, tokens, chars, lines):
+
+    * types: names of the token types seen.
+    * tokens: array of the number of tokens of each type.
+    * chars: array of the number of code points of each type.
+    * lines: array of the number of code, comment and blank lines. A line
+      is code if it has non-whitespace chars in a token that is not a
+      comment, and comment if it has any in a comment token only.
+    """
+    stats = {}
+    code = comment = blank = 0
+    has_code = has_comment = partial = False
+    for ttype, value in lexer.get_tokens(text):
+        s = stats.get(ttype)
+        if s is None:
+            s = stats[ttype] = [0, 0, _is_comment(ttype)]
+        s[0] += 1
+        s[1] += len(value)
+        if u'\n' not in value:
+            if value.strip():
+                if s[2]:
+                    has_comment = True
+                else:
+                    has_code = True
+            partial = partial or bool(value)
+            continue
+        lines = value.split(u'\n')
+        for i, line in enumerate(lines):
+            if i:
+                if has_code:
+                    code += 1
+                elif has_comment:
+                    comment += 1
+                else:
+                    blank += 1
+                has_code = has_comment = False
+            if line.strip():
+                if s[2]:
+                    has_comment = True
+                else:
+                    has_code = True
+        partial = bool(lines[-1])
+    if partial:
+        if has_code:
+            code += 1
+        elif has_comment:
+            comment += 1
+        else:
+            blank += 1
+    types = list(stats)
+    return ([unicode(t) for t in types],
+            array('l', [stats[t][0] for t in types]),
+            array('l', [stats[t][1] for t in types]),
+            array('l', [code, comment, blank]))
+
+
+def lexer_filename_patterns():
+    """Returns the regexes get_lexer_for_filename matches filenames with.
+
+    Returns None if plugin lexers are installed, since their patterns could
+    change at any time.
+    """
+    for _ in find_plugin_lexers():
+        return None
+    return sorted(set(fnmatch.translate(pattern)
+                      for _, _, _, filenames, _ in LEXERS.itervalues()
+                      for pattern in filenames))
+
+
+class _ResidentLexerCache(dict):
+    """A lexer class cache that records when each module is used."""
+
+    def __init__(self, items, residency):
+        dict.__init__(self, items)
+        self.residency = residency
+
+    def __getitem__(self, name):
+        cls = dict.__getitem__(self, name)
+        self.residency.touch(cls.__module__)
+        return cls
+
+
+class _Residency(object):
+    """Limits which lexer modules pygments.lexers loads and keeps loaded.
+
+    pygments.lexers looks up lexer classes through the LEXERS and
+    _lexer_cache globals of its original module dict, and loads modules with
+    its _load_lexers function. These are replaced to restrict LEXERS to the
+    allowed modules, to record uses and to unload the least recently used
+    modules.
+    """
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.globals = get_lexer_by_name.func_globals
+        self.load_lexers = self.globals['_load_lexers']
+        self.allowed = None
+        self.max_resident = sys.maxint
+        # modules in order of last use, least recent first
+        self.resident = OrderedDict()
+        self.unloaded = set()
+        self.loads = self.reloads = self.unloads = 0
+        self.load_nanos = self.reload_nanos = 0
+        cache = _ResidentLexerCache(self.globals['_lexer_cache'], self)
+        for cls in dict.itervalues(cache):
+            self.resident[cls.__module__] = True
+        self.globals['_lexer_cache'] = cache
+        sys.modules['pygments.lexers']._lexer_cache = cache
+        self.globals['_load_lexers'] = self.load
+
+    def touch(self, module):
+        with self.lock:
+            self.resident.pop(module, None)
+            self.resident[module] = True
+
+    def load(self, module):
+        start = System.nanoTime()
+        self.load_lexers(module)
+        nanos = System.nanoTime() - start
+        with self.lock:
+            self.loads += 1
+            self.load_nanos += nanos
+            if module in self.unloaded:
+                self.unloaded.discard(module)
+                self.reloads += 1
+                self.reload_nanos += nanos
+            self.resident.pop(module, None)
+            self.resident[module] = True
+            self.evict()
+
+    def evict(self):
+        # called with the lock held
+        for module in list(self.resident):
+            if len(self.resident) <= self.max_resident:
+                break
+            self.unload(module)
+
+    def unload(self, module):
+        # called with the lock held
+        del self.resident[module]
+        self.unloaded.add(module)
+        self.unloads += 1
+        cache = self.globals['_lexer_cache']
+        for name, cls in list(dict.items(cache)):
+            if cls.__module__ == module:
+                del cache[name]
+        # drop the classes and the module from pygments.lexers' attributes
+        package = sys.modules['pygments.lexers']
+        for attr, info in LEXERS.iteritems():
+            if info[0] == module and attr in package.__dict__:
+                delattr(package, attr)
+        loaded = sys.modules.pop(module, None)
+        short_name = module.rpartition('.')[2]
+        if loaded is not None and package.__dict__.get(short_name) is loaded:
+            delattr(package, short_name)
+
+    def set_allowed(self, modules):
+        with self.lock:
+            if modules is None:
+                self.allowed = None
+                self.globals['LEXERS'] = LEXERS
+                return
+            self.allowed = set(unicode(m) for m in modules)
+            self.globals['LEXERS'] = dict(
+                (k, v) for k, v in LEXERS.iteritems()
+                if v[0] in self.allowed)
+            for module in list(self.resident):
+                if module not in self.allowed:
+                    self.unload(module)
+
+    def set_max_resident(self, max_resident):
+        with self.lock:
+            self.max_resident = max_resident
+            self.evict()
+
+    def metrics(self):
+        with self.lock:
+            return (list(self.resident),
+                    array('l', [self.loads, self.reloads, self.unloads,
+                                self.load_nanos, self.reload_nanos]))
+
+
+_residency = None
+_residency_lock = threading.Lock()
+
+
+def lexer_residency():
+    """Returns the residency manager, installing it on first use."""
+    global _residency
+    with _residency_lock:
+        if _residency is None:
+            _residency = _Residency()
+        return _residency
+
+
+_BYGROUPS_CODE = bygroups().func_code
+
+_REGEX_FLAGS = (
+    (re.IGNORECASE, u'i'),
+    (re.LOCALE, u'L'),
+    (re.MULTILINE, u'm'),
+    (re.DOTALL, u's'),
+    (re.UNICODE, u'u'),
+    (re.VERBOSE, u'x'),
+)
+
+
+class _Untranslatable(Exception):
+    pass
+
+
+def _export_action(action):
+    if action is None:
+        return None
+    if type(action) is _TokenType:
+        return unicode(action)
+    if getattr(action, 'func_code', None) is _BYGROUPS_CODE:
+        args = action.func_closure[0].cell_contents
+        if all(arg is None or type(arg) is _TokenType for arg in args):
+            return [arg if arg is None else unicode(arg) for arg in args]
+    # using(), custom callbacks, etc.
+    raise _Untranslatable()
+
+
+def _export_transition(new_state):
+    if new_state is None:
+        return []
+    if isinstance(new_state, int):
+        return [u'#pop'] * -new_state
+    if isinstance(new_state, tuple):
+        return [unicode(state) for state in new_state]
+    return [unicode(new_state)]
+
+
+def _export_pattern(pattern):
+    try:
+        return unicode(pattern)
+    except UnicodeDecodeError:
+        # non-ASCII byte string
+        raise _Untranslatable()
+
+
+def export_regex_lexer(lexer):
+    """Exports the processed state table of a RegexLexer.
+
+    Returns a list of (state, rules) pairs, where each rule is a tuple of
+    (pattern, flags, action, transition):
+
+    * pattern: the regex source.
+    * flags: the regex flags as inline flag letters, e.g. u'ms'.
+    * action: None, a token type name or a list of token type names (or
+      None) for bygroups.
+    * transition: a list of state names, '#pop' and '#push'.
+
+    Returns None if the lexer does not behave exactly like RegexLexer, e.g.
+    it overrides get_tokens_unprocessed or uses callbacks other than simple
+    bygroups.
+    """
+    cls = type(lexer)
+    if (not isinstance(lexer, RegexLexer) or
+            isinstance(lexer, ExtendedRegexLexer) or
+            cls.get_tokens_unprocessed.im_func is not
+            RegexLexer.get_tokens_unprocessed.im_func or
+            cls.get_tokens.im_func is not Lexer.get_tokens.im_func or
+            getattr(lexer, '_tokens', None) is None):
+        return None
+    states = []
+    try:
+        for state, rules in lexer._tokens.items():
+            exported = []
+            for rexmatch, action, new_state in rules:
+                rex = rexmatch.__self__
+                flags = u''.join(letter for flag, letter in _REGEX_FLAGS
+                                 if rex.flags & flag)
+                exported.append((_export_pattern(rex.pattern),
+                                 flags,
+                                 _export_action(action),
+                                 _export_transition(new_state)))
+            states.append((unicode(state), exported))
+    except _Untranslatable:
+        return None
+    return states
@@ -0,0 +1,124 @@
+package org.korz.pygments;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BulkHighlighterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path source;
+    private Path output;
+
+    private static void write(Path path, String text) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private static String highlight(String lexer, String text) {
+        return PygmentsContext.newContext()
+            .setLexerName(lexer)
+            .setFormatterName("html")
+            .build()
+            .highlight(text);
+    }
+
+    private BulkHighlighter.Stats run() throws IOException {
+        return BulkHighlighter.newHighlighter(source, output)
+            .setThreads(2)
+            .build()
+            .run();
+    }
+
+    @Before
+    public void files() throws IOException {
+        source = tmp.newFolder("src").toPath();
+        output = tmp.newFolder("out").toPath();
+        write(source.resolve("main.c"), "int main() { return 0; }\n");
+        write(source.resolve("sub/test.py"), "x = 1\n");
+        write(source.resolve("notes.unknown-extension"), "hello\n");
+    }
+
+    @Test
+    public void highlight() throws IOException {
+        BulkHighlighter.Stats stats = run();
+        assertThat(stats.getHighlighted(), equalTo(2));
+        assertThat(stats.getSkipped(), equalTo(1));
+        assertThat(stats.getFailed(), equalTo(0));
+        assertThat(read(output.resolve("main.c.html")),
+                   equalTo(highlight("c", "int main() { return 0; }\n")));
+        assertThat(read(output.resolve("sub/test.py.html")),
+                   equalTo(highlight("python", "x = 1\n")));
+    }
+
+    @Test
+    public void unchanged() throws IOException {
+        run();
+        write(source.resolve("sub/test.py"), "x = 2\n");
+        Files.delete(output.resolve("main.c.html"));
+        write(source.resolve("new.py"), "y = 3\n");
+
+        BulkHighlighter.Stats stats = run();
+        assertThat(stats.getHighlighted(), equalTo(3));
+        assertThat(stats.getUnchanged(), equalTo(0));
+        assertThat(read(output.resolve("sub/test.py.html")),
+                   equalTo(highlight("python", "x = 2\n")));
+
+        stats = run();
+        assertThat(stats.getHighlighted(), equalTo(0));
+        assertThat(stats.getUnchanged(), equalTo(3));
+    }
+
+    @Test
+    public void encoding() throws IOException {
+        write(source.resolve("main.c"), "int main() { return 0; } // \u00e9\n");
+        BulkHighlighter.Stats stats = BulkHighlighter
+            .newHighlighter(source, output)
+            .setFormatterOption("encoding", "latin1")
+            .build()
+            .run();
+        assertThat(stats.getHighlighted(), equalTo(2));
+        assertThat(Files.readAllBytes(output.resolve("main.c.html")),
+                   equalTo(highlight("c",
+                                     "int main() { return 0; } // \u00e9\n")
+                           .getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void deleted() throws IOException {
+        run();
+        Files.delete(source.resolve("sub/test.py"));
+        BulkHighlighter.Stats stats = run();
+        assertThat(stats.getDeleted(), equalTo(1));
+        assertThat(stats.getUnchanged(), equalTo(1));
+        assertThat(Files.exists(output.resolve("sub/test.py.html")),
+                   equalTo(false));
+        assertThat(Files.exists(output.resolve("main.c.html")),
+                   equalTo(true));
+    }
+
+    @Test
+    public void formatterChanged() throws IOException {
+        run();
+        BulkHighlighter.Stats stats = BulkHighlighter
+            .newHighlighter(source, output)
+            .setFormatterOption("linenos", "table")
+            .build()
+            .run();
+        assertThat(stats.getHighlighted(), equalTo(2));
+    }
+}
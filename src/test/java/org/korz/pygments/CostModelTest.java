@@ -0,0 +1,64 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CostModelTest {
+    private static final PygmentsContext.Strategy FUSED =
+        PygmentsContext.Strategy.FUSED;
+
+    @Test
+    public void empty() {
+        CostModel model = new CostModel();
+        assertThat(model.getSamples(FUSED), equalTo(0L));
+        assertTrue(Double.isNaN(model.predictNanos(FUSED, 100)));
+        assertTrue(Double.isNaN(model.getCharsPerSecond(FUSED)));
+    }
+
+    @Test
+    public void linear() {
+        CostModel model = new CostModel();
+        // 5us overhead and 2ns per char
+        for (int chars : new int[] {10, 1000, 100, 50000, 7}) {
+            model.record(FUSED, chars, 5000 + 2L * chars);
+        }
+        assertThat(model.getSamples(FUSED), equalTo(5L));
+        assertThat(model.predictNanos(FUSED, 0), closeTo(5000, 1));
+        assertThat(model.predictNanos(FUSED, 1000000),
+                   closeTo(2005000, 10));
+        assertThat(model.getSamples(PygmentsContext.Strategy.PLAIN),
+                   equalTo(0L));
+    }
+
+    @Test
+    public void sameSize() {
+        CostModel model = new CostModel();
+        model.record(FUSED, 100, 2000);
+        model.record(FUSED, 100, 2000);
+        assertThat(model.predictNanos(FUSED, 100), closeTo(2000, 1e-6));
+        assertThat(model.predictNanos(FUSED, 200), closeTo(4000, 1e-6));
+        assertThat(model.getCharsPerSecond(FUSED), closeTo(5e7, 1));
+    }
+
+    @Test
+    public void decay() {
+        CostModel model = new CostModel();
+        for (int i = 0; i < 10; ++i) {
+            model.record(FUSED, 100, 1000000);
+        }
+        for (int i = 0; i < 200; ++i) {
+            model.record(FUSED, 100, 1000);
+        }
+        assertThat(model.predictNanos(FUSED, 100), closeTo(1000, 100));
+    }
+
+    @Test
+    public void shared() {
+        assertTrue(CostModel.forConfig("a") == CostModel.forConfig("a"));
+        assertTrue(CostModel.forConfig("a") != CostModel.forConfig("b"));
+    }
+}
@@ -0,0 +1,57 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DiffLineTest {
+    private static void assertLine(DiffLine line,
+                                   DiffLine.Type type,
+                                   int oldLine,
+                                   int newLine,
+                                   String text) {
+        assertThat(line.getType(), equalTo(type));
+        assertThat(line.getOldLine(), equalTo(oldLine));
+        assertThat(line.getNewLine(), equalTo(newLine));
+        assertThat(line.getText(), equalTo(text));
+    }
+
+    @Test
+    public void parse() {
+        List<DiffLine> lines = DiffLine.parse(
+            "diff --git a/f b/f\n"
+                + "--- a/f\n"
+                + "+++ b/f\n"
+                + "@@ -3,3 +3,2 @@ f()\n"
+                + " a\n"
+                + "--- b\n"
+                + "\n"
+                + "@@ -10 +9,2 @@\n"
+                + "-c\n"
+                + "+d\n"
+                + "+e\n"
+                + "\\ No newline at end of file");
+        assertThat(lines.size(), equalTo(12));
+        assertLine(lines.get(0), DiffLine.Type.HEADER, 0, 0,
+                   "diff --git a/f b/f");
+        assertLine(lines.get(1), DiffLine.Type.HEADER, 0, 0, "--- a/f");
+        assertLine(lines.get(2), DiffLine.Type.HEADER, 0, 0, "+++ b/f");
+        assertLine(lines.get(3), DiffLine.Type.HUNK, 0, 0,
+                   "@@ -3,3 +3,2 @@ f()");
+        assertLine(lines.get(4), DiffLine.Type.CONTEXT, 3, 3, "a");
+        // a removed line that looks like a file header
+        assertLine(lines.get(5), DiffLine.Type.REMOVED, 4, 0, "-- b");
+        // an empty context line with its space stripped
+        assertLine(lines.get(6), DiffLine.Type.CONTEXT, 5, 4, "");
+        assertLine(lines.get(7), DiffLine.Type.HUNK, 0, 0, "@@ -10 +9,2 @@");
+        assertLine(lines.get(8), DiffLine.Type.REMOVED, 10, 0, "c");
+        assertLine(lines.get(9), DiffLine.Type.ADDED, 0, 9, "d");
+        assertLine(lines.get(10), DiffLine.Type.ADDED, 0, 10, "e");
+        assertLine(lines.get(11), DiffLine.Type.HEADER, 0, 0,
+                   "\\ No newline at end of file");
+        assertThat(lines.get(4).getHighlighted(), equalTo(null));
+    }
+}
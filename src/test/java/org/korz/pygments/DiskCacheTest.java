@@ -0,0 +1,129 @@
+package org.korz.pygments;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DiskCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private DiskCache open(int segmentSize, long maxSize) throws IOException {
+        return DiskCache.newCache(tmp.getRoot().toPath())
+            .setSegmentSize(segmentSize)
+            .setMaxSize(maxSize)
+            .build();
+    }
+
+    @Test
+    public void putGet() throws IOException {
+        try (DiskCache cache = open(4096, 16384)) {
+            assertThat(cache.get("c", "int x;"), nullValue());
+            cache.put("c", "int x;", "highlighted");
+            assertThat(cache.get("c", "int x;"), equalTo("highlighted"));
+            assertThat(cache.get("python", "int x;"), nullValue());
+            assertThat(cache.get("c", "int y;"), nullValue());
+        }
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        try (DiskCache cache = open(4096, 16384)) {
+            cache.put("c", "int x;", "first");
+            cache.put("c", "int y;", "second");
+            cache.put("c", "int x;", "third");
+        }
+        try (DiskCache cache = open(4096, 16384)) {
+            assertThat(cache.size(), equalTo(2));
+            assertThat(cache.get("c", "int x;"), equalTo("third"));
+            assertThat(cache.get("c", "int y;"), equalTo("second"));
+        }
+    }
+
+    @Test
+    public void evictOldestSegment() throws IOException {
+        String value = new String(new char[1000]).replace('\0', 'x');
+        try (DiskCache cache = open(4096, 8192)) {
+            for (int i = 0; i < 12; ++i) {
+                cache.put("c", Integer.toString(i), value);
+            }
+            // three records per segment, at most two segments
+            assertThat(cache.get("c", "0"), nullValue());
+            assertThat(cache.get("c", "5"), nullValue());
+            assertThat(cache.get("c", "6"), equalTo(value));
+            assertThat(cache.get("c", "11"), equalTo(value));
+            assertThat(cache.size(), equalTo(6));
+        }
+        try (Stream<Path> files = Files.list(tmp.getRoot().toPath())) {
+            assertThat(files.filter(f -> f.toString().endsWith(".seg"))
+                           .collect(Collectors.counting()),
+                       equalTo(2L));
+        }
+    }
+
+    @Test
+    public void tooLarge() throws IOException {
+        String value = new String(new char[5000]).replace('\0', 'x');
+        try (DiskCache cache = open(4096, 16384)) {
+            cache.put("c", "int x;", value);
+            assertThat(cache.get("c", "int x;"), nullValue());
+        }
+    }
+
+    @Test
+    public void tornWrite() throws IOException {
+        try (DiskCache cache = open(4096, 16384)) {
+            cache.put("c", "int x;", "first");
+            cache.put("c", "int y;", "second");
+        }
+
+        // corrupt the last byte of the second record
+        Path segment = tmp.getRoot().toPath()
+            .resolve("0000000000000000.seg");
+        int end = 8 + (8 + 32 + 5) + (8 + 32 + 6);
+        try (FileChannel channel = FileChannel.open(
+                segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), end - 1);
+        }
+
+        try (DiskCache cache = open(4096, 16384)) {
+            assertThat(cache.get("c", "int x;"), equalTo("first"));
+            assertThat(cache.get("c", "int y;"), nullValue());
+            cache.put("c", "int z;", "third");
+        }
+        try (DiskCache cache = open(4096, 16384)) {
+            assertThat(cache.size(), equalTo(2));
+            assertThat(cache.get("c", "int z;"), equalTo("third"));
+        }
+    }
+
+    @Test
+    public void inUse() throws IOException {
+        try (DiskCache cache = open(4096, 16384)) {
+            try {
+                open(4096, 16384);
+                fail();
+            }
+            catch (IllegalStateException e) {}
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxSizeTooSmall() throws IOException {
+        open(4096, 1024);
+    }
+}
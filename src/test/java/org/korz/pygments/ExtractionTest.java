@@ -0,0 +1,77 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ExtractionTest {
+    private static final String TEXT =
+        "// hello\nint main() { return puts(\"hi\"); }\n";
+
+    private static List<String> values(Extraction e) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < e.size(); ++i) {
+            values.add(e.getValue(i));
+        }
+        return values;
+    }
+
+    @Test
+    public void extract() {
+        Extraction e = Lexer.byName("c").build()
+            .extract(TEXT, Arrays.asList("Name", "Comment"));
+        assertThat(values(e),
+                   equalTo(Arrays.asList("// hello\n", "main", "puts")));
+        assertThat(e.getType(0), equalTo("Token.Comment.Single"));
+        assertThat(e.getType(1), equalTo("Token.Name.Function"));
+        assertThat(e.getType(2), equalTo("Token.Name"));
+        assertThat(e.getText().substring(e.getStart(1), e.getEnd(1)),
+                   equalTo("main"));
+        assertThat(e.getStart(1), equalTo(TEXT.indexOf("main")));
+        assertThat(e.getHighlighted(), equalTo(null));
+    }
+
+    @Test
+    public void prefixes() {
+        Lexer lexer = Lexer.byName("c").build();
+        assertThat(values(lexer.extract(
+                       TEXT, Collections.singletonList("Token.Name.Function"))),
+                   equalTo(Collections.singletonList("main")));
+        // not a parent type of Name
+        assertThat(lexer.extract(TEXT, Collections.singletonList("Nam"))
+                       .size(),
+                   equalTo(0));
+        assertThat(lexer.extract(TEXT, Collections.singletonList("Token"))
+                       .size(),
+                   equalTo(lexer.lexAll(TEXT).size()));
+    }
+
+    @Test
+    public void javaEngine() {
+        String text = "{\"a\": [1, \"b\"]}\n";
+        Extraction e = Lexer.byName("json")
+            .setEngine(Lexer.Engine.JAVA)
+            .build()
+            .extract(text, Arrays.asList("Name.Tag", "String"));
+        assertThat(values(e), equalTo(Arrays.asList("\"a\"", "\"b\"")));
+        assertThat(e.getType(1), equalTo("Token.Literal.String.Double"));
+    }
+
+    @Test
+    public void highlightAndExtract() {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        Extraction e = p.highlightAndExtract(
+            TEXT, Collections.singletonList("Literal.String"));
+        assertThat(e.getHighlighted(), equalTo(p.highlight(TEXT)));
+        assertThat(String.join("", values(e)), equalTo("\"hi\""));
+    }
+}
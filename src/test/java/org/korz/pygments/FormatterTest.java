@@ -1,8 +1,19 @@
 package org.korz.pygments;
 
+import com.google.common.io.ByteStreams;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class FormatterTest {
@@ -27,4 +38,66 @@ public class FormatterTest {
     public void forFileUnknown() {
         Formatter.forFile("foo.poopies").build();
     }
+
+    @Test
+    public void tryBuild() {
+        assertThat(Formatter.byName("html").tryBuild().get().getName(),
+                   equalTo("HTML"));
+        assertThat(Formatter.byName("poopies").tryBuild().isPresent(),
+                   equalTo(false));
+        assertThat(Formatter.forFile("foo.poopies").tryBuild().isPresent(),
+                   equalTo(false));
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void byNameUnknownRepeated() {
+        Formatter.byName("bar").tryBuild();
+        Formatter.byName("bar").build();
+    }
+
+    @Test
+    public void styleDefs() {
+        Formatter formatter = Formatter.byName("html").build();
+        String css = formatter.getStyleDefs();
+        assertThat(css, containsString("\n.k {"));
+        assertThat(formatter.getStyleDefs(".code"),
+                   containsString(".code .k {"));
+        // cached across formatters with the same options
+        assertThat(Formatter.byName("html").build().getStyleDefs(),
+                   sameInstance(css));
+        String monokai = Formatter.byName("html")
+            .setOption("style", "monokai")
+            .build()
+            .getStyleDefs();
+        assertThat(monokai, not(equalTo(css)));
+    }
+
+    @Test
+    public void styleDefsGzip() throws IOException {
+        Formatter formatter = Formatter.byName("html").build();
+        byte[] gzipped = formatter.getStyleDefsGzip(".code");
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(gzipped))) {
+            assertThat(new String(ByteStreams.toByteArray(in),
+                                  StandardCharsets.UTF_8),
+                       equalTo(formatter.getStyleDefs(".code")));
+        }
+    }
+
+    @Test
+    public void encoding() {
+        assertThat(Formatter.byName("html").build().getEncoding(),
+                   nullValue());
+        assertThat(Formatter.byName("html")
+                       .setOption("encoding", "utf-8")
+                       .build()
+                       .getEncoding(),
+                   equalTo("utf-8"));
+        assertThat(Formatter.byName("html")
+                       .setOption("encoding", "utf-8")
+                       .setOption("outencoding", "latin1")
+                       .build()
+                       .getEncoding(),
+                   equalTo("latin1"));
+    }
 }
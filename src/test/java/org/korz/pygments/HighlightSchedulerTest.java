@@ -0,0 +1,205 @@
+package org.korz.pygments;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HighlightSchedulerTest {
+    private HighlightScheduler scheduler;
+    private final List<String> order =
+        Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void close() {
+        release.countDown();
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    // occupies the single worker until release is counted down
+    private CompletableFuture<String> block() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> f = scheduler.submit("blocker", 1, () -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return "blocker";
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return f;
+    }
+
+    private CompletableFuture<String> submit(String tenant,
+                                             long cost,
+                                             String name) {
+        return scheduler.submit(tenant, cost, () -> {
+            order.add(name);
+            return name;
+        });
+    }
+
+    private void runAll(List<CompletableFuture<String>> futures) {
+        release.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .join();
+    }
+
+    @Test
+    public void highlight() {
+        scheduler = HighlightScheduler.newScheduler().build();
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        String text = "int x = 1;\n";
+        assertThat(scheduler.highlight("a", context, text),
+                   equalTo(context.highlight(text)));
+    }
+
+    @Test
+    public void fairness() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .build();
+        block();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 1; i <= 3; ++i) {
+            futures.add(submit("a", 100, "a" + i));
+        }
+        futures.add(submit("b", 100, "b1"));
+        futures.add(submit("b", 100, "b2"));
+        runAll(futures);
+        assertThat(order, equalTo(Arrays.asList("a1", "b1", "a2", "b2",
+                                                "a3")));
+    }
+
+    @Test
+    public void size() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .build();
+        block();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        futures.add(submit("big", 1000, "big1"));
+        futures.add(submit("big", 1000, "big2"));
+        for (int i = 1; i <= 3; ++i) {
+            futures.add(submit("small", 100, "small" + i));
+        }
+        runAll(futures);
+        assertThat(order, equalTo(Arrays.asList("big1", "small1", "small2",
+                                                "small3", "big2")));
+    }
+
+    @Test
+    public void weights() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .setTenantWeight("gold", 2)
+            .build();
+        block();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 1; i <= 4; ++i) {
+            futures.add(submit("gold", 100, "g" + i));
+        }
+        for (int i = 1; i <= 2; ++i) {
+            futures.add(submit("basic", 100, "b" + i));
+        }
+        runAll(futures);
+        assertThat(order, equalTo(Arrays.asList("g1", "b1", "g2", "g3",
+                                                "b2", "g4")));
+    }
+
+    @Test
+    public void queueFull() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .setMaxQueueSize(2)
+            .build();
+        block();
+        submit("a", 1, "a1");
+        submit("b", 1, "b1");
+        try {
+            submit("c", 1, "c1");
+            fail("Expected RejectedExecutionException");
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertThat(scheduler.getQueueSize(), equalTo(2));
+    }
+
+    @Test
+    public void latencyBudget() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .setMaxQueueDelay(50, TimeUnit.MILLISECONDS)
+            .build();
+        // teach the scheduler that a cost of 1000 takes at least 100 ms
+        scheduler.submit("a", 1000, () -> {
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }).join();
+
+        block();
+        // always admitted when nothing is queued
+        submit("a", 1000, "a1");
+        try {
+            submit("b", 1, "b1");
+            fail("Expected RejectedExecutionException");
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closed() throws InterruptedException {
+        scheduler = HighlightScheduler.newScheduler()
+            .setConcurrency(1)
+            .build();
+        block();
+        CompletableFuture<String> queued = submit("a", 1, "a1");
+        scheduler.close();
+        assertTrue(queued.isCancelled()
+                   || queued.isCompletedExceptionally());
+        try {
+            queued.join();
+            fail("Expected CancellationException");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+        try {
+            submit("a", 1, "a2");
+            fail("Expected RejectedExecutionException");
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+}
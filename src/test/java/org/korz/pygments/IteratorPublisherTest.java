@@ -0,0 +1,169 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+public class IteratorPublisherTest {
+    private static class Recorder<T> implements Flow.Subscriber<T> {
+        final List<T> items = new ArrayList<>();
+        final CompletableFuture<List<T>> done = new CompletableFuture<>();
+        Flow.Subscription subscription;
+        int completions;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            ++completions;
+            done.complete(items);
+        }
+    }
+
+    private static <T> Flow.Publisher<T> publisher(List<T> items) {
+        return new IteratorPublisher<>(items::iterator, Runnable::run);
+    }
+
+    @Test
+    public void demand() {
+        Recorder<Integer> r = new Recorder<>();
+        publisher(Arrays.asList(1, 2, 3)).subscribe(r);
+        assertThat(r.items.isEmpty(), equalTo(true));
+        r.subscription.request(2);
+        assertThat(r.items, equalTo(Arrays.asList(1, 2)));
+        assertThat(r.done.isDone(), equalTo(false));
+        r.subscription.request(Long.MAX_VALUE);
+        r.subscription.request(Long.MAX_VALUE);
+        assertThat(r.items, equalTo(Arrays.asList(1, 2, 3)));
+        assertThat(r.completions, equalTo(1));
+    }
+
+    @Test
+    public void empty() {
+        Recorder<Integer> r = new Recorder<>();
+        publisher(Collections.<Integer>emptyList()).subscribe(r);
+        r.subscription.request(1);
+        assertThat(r.completions, equalTo(1));
+    }
+
+    @Test
+    public void cancel() {
+        Recorder<Integer> r = new Recorder<>();
+        publisher(Arrays.asList(1, 2, 3)).subscribe(r);
+        r.subscription.request(1);
+        r.subscription.cancel();
+        r.subscription.request(5);
+        assertThat(r.items, equalTo(Collections.singletonList(1)));
+        assertThat(r.done.isDone(), equalTo(false));
+    }
+
+    @Test
+    public void invalidRequest() {
+        Recorder<Integer> r = new Recorder<>();
+        publisher(Arrays.asList(1, 2, 3)).subscribe(r);
+        r.subscription.request(0);
+        assertThat(r.done.isCompletedExceptionally(), equalTo(true));
+        r.done.exceptionally(e -> {
+            assertThat(e, instanceOf(IllegalArgumentException.class));
+            return null;
+        });
+    }
+
+    @Test
+    public void sourceFailure() {
+        Recorder<Integer> r = new Recorder<>();
+        new IteratorPublisher<Integer>(() -> {
+            throw new IllegalStateException("boom");
+        }, Runnable::run).subscribe(r);
+        r.subscription.request(1);
+        assertThat(r.done.isCompletedExceptionally(), equalTo(true));
+    }
+
+    @Test
+    public void reentrantRequests() {
+        List<Integer> items = IntStream.range(0, 100000).boxed()
+            .collect(Collectors.toList());
+        // requests one more item from each onNext, which must not recurse
+        Recorder<Integer> r = new Recorder<Integer>() {
+            @Override
+            public void onNext(Integer item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        publisher(items).subscribe(r);
+        r.subscription.request(1);
+        assertThat(r.items, equalTo(items));
+        assertThat(r.completions, equalTo(1));
+    }
+
+    @Test
+    public void executor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Integer> items = IntStream.range(0, 10000).boxed()
+                .collect(Collectors.toList());
+            Recorder<Integer> r = new Recorder<>();
+            new IteratorPublisher<>(items::iterator, executor).subscribe(r);
+            // concurrent requests from several threads
+            for (int i = 0; i < 100; ++i) {
+                executor.execute(() -> r.subscription.request(100));
+            }
+            assertThat(r.done.get(10, TimeUnit.SECONDS), equalTo(items));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void iteratorPerSubscriber() {
+        List<Integer> items = Arrays.asList(1, 2);
+        Flow.Publisher<Integer> publisher = publisher(items);
+        for (int i = 0; i < 2; ++i) {
+            Recorder<Integer> r = new Recorder<>();
+            publisher.subscribe(r);
+            r.subscription.request(3);
+            assertThat(r.items, equalTo(items));
+        }
+    }
+
+    static <T> List<T> collect(Flow.Publisher<T> publisher) throws Exception {
+        Recorder<T> r = new Recorder<T>() {
+            @Override
+            public void onNext(T item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        publisher.subscribe(r);
+        r.subscription.request(1);
+        return r.done.get(60, TimeUnit.SECONDS);
+    }
+}
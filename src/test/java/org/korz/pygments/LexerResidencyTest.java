@@ -0,0 +1,88 @@
+package org.korz.pygments;
+
+import org.junit.After;
+import org.junit.Test;
+import org.python.core.PyObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LexerResidencyTest {
+    private static final PyObject SYS_MODULES = PythonUtil.get(
+        PythonUtil.importModule("sys"), "modules");
+
+    private static boolean isLoaded(String module) {
+        return SYS_MODULES.__finditem__(module) != null;
+    }
+
+    @After
+    public void reset() {
+        LexerResidency.setAllowedModules(null);
+        LexerResidency.setMaxResidentModules(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void allowList() {
+        Lexer.byName("c").build();
+        LexerResidency.setAllowedModules(
+            Arrays.asList("python", "pygments.lexers.data"));
+        assertThat(isLoaded("pygments.lexers.c_cpp"), equalTo(false));
+        assertThat(Lexer.byName("python").build().getName(),
+                   equalTo("Python"));
+        assertThat(Lexer.byName("json").tryBuild().isPresent(),
+                   equalTo(true));
+        try {
+            Lexer.byName("c").build();
+            fail("c lexer is not allowed");
+        }
+        catch (ClassNotFoundException e) {
+            // expected
+        }
+        assertThat(Lexer.forFile("x.py").build().getName(),
+                   equalTo("Python"));
+        assertThat(Lexer.forFile("x.c").tryBuild().isPresent(),
+                   equalTo(false));
+        LexerResidency.setAllowedModules(null);
+        assertThat(Lexer.byName("c").build().getName(), equalTo("C"));
+    }
+
+    @Test
+    public void leastRecentlyUsed() {
+        Lexer python = Lexer.byName("python").build();
+        LexerResidency.Metrics before = LexerResidency.getMetrics();
+        LexerResidency.setMaxResidentModules(2);
+        Lexer.byName("c").build();
+        Lexer.byName("json").build();
+        Lexer.byName("c").build();
+        LexerResidency.Metrics metrics = LexerResidency.getMetrics();
+        List<String> resident = metrics.getResidentModules();
+        assertThat(resident, equalTo(Arrays.asList("pygments.lexers.data",
+                                                   "pygments.lexers.c_cpp")));
+        assertThat(isLoaded("pygments.lexers.python"), equalTo(false));
+        assertThat(metrics.getUnloads(), greaterThan(before.getUnloads()));
+        // existing lexers keep working
+        assertThat(Formatter.byName("text").build()
+                       .format(python.lex("x = 1\n")),
+                   equalTo("x = 1\n"));
+
+        Lexer.byName("python").build();
+        metrics = LexerResidency.getMetrics();
+        assertThat(isLoaded("pygments.lexers.python"), equalTo(true));
+        assertThat(isLoaded("pygments.lexers.data"), equalTo(false));
+        assertThat(metrics.getReloads(), greaterThan(before.getReloads()));
+        assertThat(metrics.getReloadNanos(),
+                   greaterThan(before.getReloadNanos()));
+        assertThat(metrics.getLoadNanos(),
+                   greaterThan(metrics.getReloadNanos() - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMax() {
+        LexerResidency.setMaxResidentModules(0);
+    }
+}
@@ -0,0 +1,63 @@
+package org.korz.pygments;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class LexerTablesTest {
+    private static int count;
+    private static Map<String, LexerTables.Entry> entries;
+
+    @BeforeClass
+    public static void export() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        count = LexerTables.write(out);
+        entries = LexerTables.read(
+            new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void count() {
+        assertThat(count, greaterThan(100));
+        assertThat(entries.size(), greaterThan(count));
+    }
+
+    @Test
+    public void entry() {
+        Lexer python = Lexer.byName("js").build();
+        LexerTables.Entry entry = entries.get("js");
+        assertThat(entry.getName(), equalTo(python.getName()));
+        assertThat(entry.getAliases(), hasItem("javascript"));
+        assertThat(entries.get("javascript"), sameInstance(entry));
+        assertThat(entry.getConfigKey(), equalTo(python.getConfigKey()));
+    }
+
+    @Test
+    public void lex() {
+        String text = "var x = {a: [1, 'b']}; // c\n\tf(x)\r\n";
+        assertThat(entries.get("js").newEngine().lex(text),
+                   equalTo(Lexer.byName("js").build().lexAll(text)));
+    }
+
+    @Test
+    public void untranslatable() {
+        assertThat(entries.get("c"), nullValue());
+        assertThat(entries.get("html"), nullValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformed() throws IOException {
+        LexerTables.read(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+    }
+}
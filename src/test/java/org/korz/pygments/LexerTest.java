@@ -2,8 +2,14 @@ package org.korz.pygments;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class LexerTest {
     @Test
@@ -28,6 +34,41 @@ public class LexerTest {
         Lexer.forFile("foo.poopies").build();
     }
 
+    @Test
+    public void forFileUnknownRepeated() {
+        for (int i = 0; i < 2; ++i) {
+            try {
+                Lexer.forFile("bar.poopies").build();
+                fail();
+            }
+            catch (ClassNotFoundException e) {
+                assertThat(e.getMessage(), containsString("bar.poopies"));
+            }
+        }
+    }
+
+    @Test
+    public void tryBuild() {
+        assertThat(Lexer.forFile("main.c").tryBuild().get().getName(),
+                   equalTo("C"));
+        assertThat(Lexer.byName("poopies").tryBuild().isPresent(),
+                   equalTo(false));
+        assertThat(Lexer.forFile("foo.poopies").tryBuild().isPresent(),
+                   equalTo(false));
+        assertThat(Lexer.forMime("text/poopies").tryBuild().isPresent(),
+                   equalTo(false));
+    }
+
+    @Test
+    public void filenamePatterns() {
+        assertThat(FilenamePatterns.mayMatch("main.c"), equalTo(true));
+        assertThat(FilenamePatterns.mayMatch("src/Makefile"), equalTo(true));
+        assertThat(FilenamePatterns.mayMatch("CMakeLists.txt"),
+                   equalTo(true));
+        assertThat(FilenamePatterns.mayMatch("foo.poopies"), equalTo(false));
+        assertThat(FilenamePatterns.mayMatch("main.c/foo"), equalTo(false));
+    }
+
     @Test
     public void forMime() {
         Lexer lexer = Lexer.forMime("text/x-csrc").build();
@@ -56,4 +97,52 @@ public class LexerTest {
     public void guessForFileUnknown() {
         Lexer.guessForFile("foo.poopies", "poopies!!").build();
     }
+
+    private static List<Token> toList(Iterable<Token> tokens) {
+        List<Token> list = new ArrayList<>();
+        tokens.forEach(list::add);
+        return list;
+    }
+
+    @Test
+    public void tokens() {
+        Lexer lexer = Lexer.byName("c").build();
+        List<Token> expected = Arrays.asList(
+            new Token("Token.Keyword.Type", "int"),
+            new Token("Token.Text", " "),
+            new Token("Token.Name", "x"),
+            new Token("Token.Punctuation", ";"),
+            new Token("Token.Text", "\n"));
+        assertThat(toList(lexer.tokens("int x;")), equalTo(expected));
+    }
+
+    @Test
+    public void tokensBatchSize() {
+        Lexer lexer = Lexer.byName("c").build();
+        String text = "int main(void) {\n    return 0;\n}\n";
+        assertThat(toList(lexer.tokens(text, 1)),
+                   equalTo(toList(lexer.tokens(text))));
+    }
+
+    @Test
+    public void tokensSupplementary() {
+        Lexer lexer = Lexer.byName("python").build();
+        List<Token> tokens = toList(lexer.tokens("'\uD83D\uDE00' x", 2));
+        assertThat(tokens.get(1), equalTo(
+            new Token("Token.Literal.String.Single", "\uD83D\uDE00")));
+        assertThat(tokens.get(4), equalTo(new Token("Token.Name", "x")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokensInvalidBatchSize() {
+        Lexer.byName("c").build().tokens("", 0);
+    }
+
+    @Test
+    public void publish() throws Exception {
+        Lexer lexer = Lexer.byName("c").build();
+        String text = "int main() {\n    return 0;\n}\n";
+        assertThat(IteratorPublisherTest.collect(lexer.publish(text)),
+                   equalTo(toList(lexer.tokens(text))));
+    }
 }
@@ -0,0 +1,83 @@
+package org.korz.pygments;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MappedTextTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path write(byte[] bytes) throws IOException {
+        Path path = tmp.newFile().toPath();
+        Files.write(path, bytes);
+        return path;
+    }
+
+    @Test
+    public void utf8() throws IOException {
+        String text = "caf\u00e9 \ud83d\ude00\n";
+        Path path = write(text.getBytes(StandardCharsets.UTF_8));
+        assertThat(MappedText.read(path, StandardCharsets.UTF_8),
+                   equalTo(text));
+    }
+
+    @Test
+    public void otherCharset() throws IOException {
+        String text = "caf\u00e9\n";
+        Path path = write(text.getBytes(StandardCharsets.UTF_16LE));
+        assertThat(MappedText.read(path, StandardCharsets.UTF_16LE),
+                   equalTo(text));
+    }
+
+    @Test
+    public void windows() throws IOException {
+        // more chars than one decoded chunk, with chars split across windows
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            sb.append("caf\u00e9 \u20ac\ud83d\ude00\n");
+        }
+        String text = sb.toString();
+        Path path = write(text.getBytes(StandardCharsets.UTF_8));
+        assertThat(MappedText.read(path, StandardCharsets.UTF_8, 4096),
+                   equalTo(text));
+        String lines = "caf\u00e9 \u20ac\ud83d\ude00\n"
+            + "caf\u00e9 \u20ac\ud83d\ude00\n"
+            + "caf\u00e9 \u20ac\ud83d\ude00\n";
+        path = write(lines.getBytes(StandardCharsets.UTF_8));
+        for (int window = 16; window < 20; ++window) {
+            assertThat(MappedText.read(path, StandardCharsets.UTF_8, window),
+                       equalTo(lines));
+        }
+        byte[] malformed = "aaaaaaaaaaaaaa\u20acb\u20ac"
+            .getBytes(StandardCharsets.UTF_8);
+        malformed[16] = 'b';
+        malformed = Arrays.copyOf(malformed, malformed.length - 1);
+        assertThat(MappedText.read(write(malformed), StandardCharsets.UTF_8,
+                                   16),
+                   equalTo(new String(malformed, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void empty() throws IOException {
+        assertThat(MappedText.read(write(new byte[0]),
+                                   StandardCharsets.UTF_8),
+                   equalTo(""));
+    }
+
+    @Test
+    public void malformed() throws IOException {
+        byte[] bytes = {'a', (byte) 0xff, 'b'};
+        assertThat(MappedText.read(write(bytes), StandardCharsets.UTF_8),
+                   equalTo(new String(bytes, StandardCharsets.UTF_8)));
+    }
+}
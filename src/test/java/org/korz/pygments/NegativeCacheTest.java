@@ -0,0 +1,45 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class NegativeCacheTest {
+    @Test
+    public void lookup() {
+        NegativeCache cache = new NegativeCache(2);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 3; ++i) {
+            try {
+                cache.lookup("a", () -> {
+                    calls.incrementAndGet();
+                    throw new ClassNotFoundException("no a");
+                });
+                fail();
+            }
+            catch (ClassNotFoundException e) {
+                assertThat(e.getMessage(), equalTo("no a"));
+            }
+        }
+        assertThat(calls.get(), equalTo(1));
+        assertThat(cache.lookup("b", () -> "b"), equalTo("b"));
+        assertThat(cache.contains("b"), equalTo(false));
+    }
+
+    @Test
+    public void eviction() {
+        NegativeCache cache = new NegativeCache(2);
+        cache.add("a", "no a");
+        cache.add("b", "no b");
+        cache.contains("a");
+        cache.add("c", "no c");
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.contains("a"), equalTo(true));
+        assertThat(cache.contains("b"), equalTo(false));
+        assertThat(cache.contains("c"), equalTo(true));
+    }
+}
@@ -0,0 +1,100 @@
+package org.korz.pygments;
+
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Crude wall-clock benchmarks for comparing highlighting paths.
+ * <p>
+ * Run with <code>gradle benchmark</code>. These are not JMH benchmarks, so
+ * only compare numbers from the same run. All cases are warmed up before any
+ * are measured because Jython takes a long time to reach a steady state.
+ */
+public class PygmentsBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ITERATIONS = 20;
+
+    private static final Map<String, Supplier<?>> CASES =
+        new LinkedHashMap<>();
+
+    private static String readResource(String filename) throws IOException {
+        return Resources.toString(Resources.getResource(filename),
+                                  StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder sb = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; ++i) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+
+    private static void add(String name, Supplier<?> op) {
+        CASES.put(name, op);
+    }
+
+    private static int count(Iterable<?> tokens) {
+        int n = 0;
+        for (Object token : tokens) {
+            ++n;
+        }
+        return n;
+    }
+
+    private static long time(Supplier<?> op) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            op.get();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String small = readResource("samples/main.c");
+        String large = repeat(small, 10);
+
+        PygmentsContext fused = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFused(true)
+            .build();
+        PygmentsContext unfused = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+
+        add("small highlight (fused)", () -> fused.highlight(small));
+        add("small highlight (unfused)", () -> unfused.highlight(small));
+        add("large highlight (fused)", () -> fused.highlight(large));
+        add("large highlight (unfused)", () -> unfused.highlight(large));
+
+        Lexer lexer = Lexer.byName("c").build();
+        add("large lex (per token)", () -> count(lexer.lex(large)));
+        add("large tokens (batched)", () -> count(lexer.tokens(large)));
+
+        String python = repeat(readResource("test.py"), 50);
+        Lexer pythonEngine = Lexer.byName("python").build();
+        Lexer javaEngine = Lexer.byName("python")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        add("python lexAll (python engine)", () -> pythonEngine.lexAll(python));
+        add("python lexAll (java engine)", () -> javaEngine.lexAll(python));
+
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            for (Supplier<?> op : CASES.values()) {
+                time(op);
+            }
+        }
+        for (Map.Entry<String, Supplier<?>> c : CASES.entrySet()) {
+            System.out.printf("%-40s %10.1f us/op%n",
+                              c.getKey(),
+                              time(c.getValue()) / 1000.0 / ITERATIONS);
+        }
+    }
+}
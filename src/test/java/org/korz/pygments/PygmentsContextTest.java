@@ -1,17 +1,37 @@
 package org.korz.pygments;
 
 import com.google.common.io.Resources;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 public class PygmentsContextTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private static String readResource(String filename) {
         try {
             return Resources.toString(Resources.getResource(filename),
@@ -70,6 +90,504 @@ public class PygmentsContextTest {
         assertHighlight(p, "samples/main.c", "samples/main.c.html");
     }
 
+    @Test
+    public void fused() {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFused(true)
+            .build();
+        assertHighlight(p, "samples/main.c", "samples/main.c.html");
+    }
+
+    @Test
+    public void highlightAll() {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        List<String> results = p.highlightAll(
+            readResource("samples/main.c"),
+            Formatter.byName("html").build(),
+            Formatter.byName("html").setOption("linenos", "table").build(),
+            Formatter.byName("text").build());
+        assertThat(results, equalTo(Arrays.asList(
+            readResource("samples/main.c.html"),
+            readResource("samples/main.c.table.html"),
+            readResource("samples/main.c"))));
+    }
+
+    @Test
+    public void highlightAllParallel() {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<String> results = p.highlightAll(
+                readResource("samples/main.c"),
+                executor,
+                Formatter.byName("html").build(),
+                Formatter.byName("html").setOption("linenos", "table")
+                    .build());
+            assertThat(results, equalTo(Arrays.asList(
+                readResource("samples/main.c.html"),
+                readResource("samples/main.c.table.html"))));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void singleFlight() throws Exception {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setSingleFlight(true)
+            .build();
+        String input = readResource("samples/main.c");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                futures.add(executor.submit(() -> p.highlight(input)));
+            }
+            for (Future<String> f : futures) {
+                assertThat(f.get(),
+                           equalTo(readResource("samples/main.c.html")));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void highlightFile() throws IOException {
+        String text = "int main() { return 0; } // \u00e9\n";
+        Path file = tmp.newFile("main.c").toPath();
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        assertThat(p.highlight(file), equalTo(p.highlight(text)));
+    }
+
+    @Test
+    public void highlightBytes() throws IOException {
+        String text = "int main() { return 0; } // \u00e9\n";
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        String expected = p.highlight(text);
+        assertThat(p.highlight(text.getBytes(StandardCharsets.UTF_8),
+                               StandardCharsets.UTF_8),
+                   equalTo(expected.getBytes(StandardCharsets.UTF_8)));
+        assertThat(p.highlight(text.getBytes(StandardCharsets.ISO_8859_1),
+                               StandardCharsets.ISO_8859_1),
+                   equalTo(expected.getBytes(StandardCharsets.ISO_8859_1)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        p.highlight(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+                    StandardCharsets.UTF_8,
+                    Channels.newChannel(out));
+        assertThat(out.toByteArray(),
+                   equalTo(expected.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void highlightBytesEncodedFormatter() {
+        String text = "int main() { return 0; } // \u00e9\n";
+        String expected = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build()
+            .highlight(text);
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFormatterOption("outencoding", "utf-8")
+            .build();
+        // latin-1 in, utf-8 out
+        assertThat(p.highlight(text.getBytes(StandardCharsets.ISO_8859_1),
+                               StandardCharsets.ISO_8859_1),
+                   equalTo(expected.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void publish() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            sb.append("int f").append(i).append("() { return ")
+                .append(i).append("; } /* \u00e9 */\n");
+        }
+        String text = sb.toString();
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        List<String> chunks = IteratorPublisherTest.collect(p.publish(text));
+        assertThat(chunks.size() > 1, equalTo(true));
+        assertThat(String.join("", chunks), equalTo(p.highlight(text)));
+
+        // formatted in full before streaming
+        PygmentsContext table = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFormatterOption("linenos", "table")
+            .build();
+        assertThat(String.join("", IteratorPublisherTest.collect(
+                       table.publish(text))),
+                   equalTo(table.highlight(text)));
+    }
+
+    @Test
+    public void publishJavaEngine() throws Exception {
+        String text = "{\"a\": [1, \"\u00e9\", null]}\n";
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexer(Lexer.byName("json")
+                          .setEngine(Lexer.Engine.JAVA)
+                          .build())
+            .setFormatterName("html")
+            .setFormatterOption("linenos", "inline")
+            .build();
+        assertThat(String.join("", IteratorPublisherTest.collect(
+                       p.publish(text))),
+                   equalTo(p.highlight(text)));
+    }
+
+    private static int count(String s, String sub) {
+        int count = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + 1)) {
+            ++count;
+        }
+        return count;
+    }
+
+    @Test
+    public void highlightLines() {
+        String text = "/* a\n   <b> */\nint x;\n\nchar *s = \"\\\n\";\n";
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        List<String> lines = p.highlightLines(text);
+        assertThat(lines.size(), equalTo(6));
+        for (String line : lines) {
+            assertThat(count(line, "<span"), equalTo(count(line, "</span>")));
+            assertThat(line.endsWith("\n"), equalTo(true));
+        }
+        assertThat(lines.get(1), containsString("&lt;b&gt;"));
+        assertThat(lines.get(3), equalTo("\n"));
+        assertThat(p.highlight(text), containsString(String.join("", lines)));
+        assertThat(p.highlightLines(text, 1, 3),
+                   equalTo(lines.subList(1, 3)));
+        assertThat(p.highlightLines(text, 5, 100),
+                   equalTo(lines.subList(5, 6)));
+        assertThat(p.highlightLines(text, 7, 9).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void highlightLinesEngines() {
+        String text = "{\"a\": [1,\n  \"b\"],\n \"c\": null}\n";
+        List<String> python = PygmentsContext.newContext()
+            .setLexerName("json")
+            .setFormatterName("html")
+            .build()
+            .highlightLines(text, 1, 2);
+        List<String> java = PygmentsContext.newContext()
+            .setLexer(Lexer.byName("json")
+                          .setEngine(Lexer.Engine.JAVA)
+                          .build())
+            .setFormatterName("html")
+            .build()
+            .highlightLines(text, 1, 2);
+        assertThat(java, equalTo(python));
+        assertThat(python.size(), equalTo(1));
+    }
+
+    @Test
+    public void highlightLinesOtherFormatter() {
+        String text = "int x;\nint y;\n";
+        List<String> lines = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("text")
+            .build()
+            .highlightLines(text);
+        assertThat(lines, equalTo(Arrays.asList("int x;\n", "int y;\n")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void highlightLinesInvalidRange() {
+        PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build()
+            .highlightLines("", 2, 1);
+    }
+
+    @Test
+    public void highlightDiff() {
+        String oldText = "\n/* a\n b\n c */\nint x;\n";
+        String newText = "\n/* a\n b changed\n c */\nint x;\nint y;\n";
+        String diff = "--- a/f.c\n"
+            + "+++ b/f.c\n"
+            + "@@ -2,4 +2,5 @@\n"
+            + " /* a\n"
+            + "- b\n"
+            + "+ b changed\n"
+            + "  c */\n"
+            + " int x;\n"
+            + "+int y;\n";
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build();
+        List<DiffLine> lines = context.highlightDiff(oldText, newText, diff);
+        // the lexer strips the leading newline
+        List<String> oldLines = context.highlightLines(oldText);
+        List<String> newLines = context.highlightLines(newText);
+        assertThat(lines.size(), equalTo(9));
+        assertThat(lines.get(0).getHighlighted(), equalTo(null));
+        assertThat(lines.get(2).getHighlighted(), equalTo(null));
+        assertThat(lines.get(3).getHighlighted(), equalTo(newLines.get(0)));
+        assertThat(lines.get(4).getHighlighted(), equalTo(oldLines.get(1)));
+        assertThat(lines.get(5).getHighlighted(), equalTo(newLines.get(1)));
+        assertThat(lines.get(5).getHighlighted(),
+                   equalTo("<span class=\"cm\"> b changed</span>\n"));
+        assertThat(lines.get(8).getHighlighted(), equalTo(newLines.get(4)));
+    }
+
+    @Test
+    public void highlightDiffStrippedLine() {
+        String diff = "@@ -1,2 +1,2 @@\n"
+            + " \n"
+            + "-x = 1\n"
+            + "+x = 2\n";
+        List<DiffLine> lines = PygmentsContext.newContext()
+            .setLexerName("python")
+            .setFormatterName("text")
+            .build()
+            .highlightDiff("\nx = 1\n", "\nx = 2\n", diff);
+        assertThat(lines.get(1).getHighlighted(), equalTo("\n"));
+        assertThat(lines.get(2).getHighlighted(), equalTo("x = 1\n"));
+        assertThat(lines.get(3).getHighlighted(), equalTo("x = 2\n"));
+    }
+
+    private static PygmentsContext.Strategy[] strategies(
+            PygmentsContext context) {
+        List<PygmentsContext.Strategy> used = new ArrayList<>();
+        for (PygmentsContext.Strategy s : PygmentsContext.Strategy.values()) {
+            for (long i = context.getStrategyCount(s); i > 0; --i) {
+                used.add(s);
+            }
+        }
+        return used.toArray(new PygmentsContext.Strategy[0]);
+    }
+
+    @Test
+    public void adaptive() {
+        String text = readResource("samples/main.c");
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            // a configuration of its own, so that no other test shares
+            // the cost model
+            .setFormatterOption("cssclass", "adaptive")
+            .setAdaptive(true)
+            .build();
+        String expected = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFormatterOption("cssclass", "adaptive")
+            .build()
+            .highlight(text);
+        for (int i = 0; i < 12; ++i) {
+            assertThat(context.highlight(text), equalTo(expected));
+        }
+        // every strategy is tried before the model is trusted
+        CostModel model = context.getCostModel();
+        assertThat(model.getSamples(PygmentsContext.Strategy.FUSED),
+                   greaterThanOrEqualTo(3L));
+        assertThat(model.getSamples(PygmentsContext.Strategy.STREAMED),
+                   greaterThanOrEqualTo(3L));
+        assertThat(model.getSamples(PygmentsContext.Strategy.TOKEN_LIST),
+                   greaterThanOrEqualTo(3L));
+        assertThat(strategies(context).length, equalTo(12));
+        assertThat(context.chooseStrategy(text),
+                   not(equalTo(PygmentsContext.Strategy.PLAIN)));
+    }
+
+    @Test
+    public void adaptiveLongLine() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 6000; ++i) {
+            sb.append("a<b;");
+        }
+        String text = sb.append('\n').toString();
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setAdaptive(true)
+            .build();
+        assertThat(context.chooseStrategy(text),
+                   equalTo(PygmentsContext.Strategy.PLAIN));
+        assertThat(context.highlight(text),
+                   equalTo(PygmentsContext.newContext()
+                               .setLexerName("text")
+                               .setFormatterName("html")
+                               .build()
+                               .highlight(text)));
+        assertThat(strategies(context),
+                   equalTo(new PygmentsContext.Strategy[] {
+                       PygmentsContext.Strategy.PLAIN}));
+    }
+
+    @Test
+    public void adaptiveJavaEngine() {
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexer(Lexer.byName("json")
+                          .setEngine(Lexer.Engine.JAVA)
+                          .build())
+            .setFormatterName("html")
+            .setAdaptive(true)
+            .build();
+        context.highlight("{\"a\": 1}");
+        assertThat(strategies(context),
+                   equalTo(new PygmentsContext.Strategy[] {
+                       PygmentsContext.Strategy.TOKEN_LIST}));
+    }
+
+    @Test
+    public void adaptiveFallbackBudget() {
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setFormatterOption("cssclass", "budget")
+            .setAdaptive(true)
+            .setFallbackBudget(1, TimeUnit.NANOSECONDS)
+            .build();
+        for (int i = 0; i < 9; ++i) {
+            context.highlight("int x;\n");
+        }
+        assertThat(context.chooseStrategy("int x;\n"),
+                   equalTo(PygmentsContext.Strategy.PLAIN));
+    }
+
+    @Test
+    public void adaptivePlainNotCached() throws IOException {
+        String text = "int x;\n";
+        try (DiskCache cache = openCache()) {
+            PygmentsContext adaptive = PygmentsContext.newContext()
+                .setLexerName("c")
+                .setFormatterName("html")
+                .setAdaptive(true)
+                .setFallbackBudget(1, TimeUnit.NANOSECONDS)
+                .setCache(cache)
+                .build();
+            String plain = PygmentsContext.newContext()
+                .setLexerName("text")
+                .setFormatterName("html")
+                .build()
+                .highlight(text);
+            // distinct texts, so that the cache does not answer
+            for (int i = 0; i < 9; ++i) {
+                adaptive.highlight(text + i);
+            }
+            assertThat(adaptive.highlight(text), equalTo(plain));
+            // a context without the fallback does not get the plain text
+            assertThat(cachedContext(cache).highlight(text),
+                       not(equalTo(plain)));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void chooseStrategyNotAdaptive() {
+        PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .build()
+            .chooseStrategy("");
+    }
+
+    private DiskCache openCache() {
+        return DiskCache.newCache(tmp.getRoot().toPath())
+            .setSegmentSize(1 << 16)
+            .setMaxSize(1 << 20)
+            .build();
+    }
+
+    private static PygmentsContext cachedContext(DiskCache cache) {
+        return PygmentsContext.newContext()
+            .setLexerName("c")
+            .setFormatterName("html")
+            .setCache(cache)
+            .build();
+    }
+
+    @Test
+    public void cache() throws IOException {
+        try (DiskCache cache = openCache()) {
+            PygmentsContext p = cachedContext(cache);
+            assertHighlight(p, "samples/main.c", "samples/main.c.html");
+            assertThat(cache.size(), equalTo(1));
+            assertHighlight(p, "samples/main.c", "samples/main.c.html");
+            assertThat(cache.size(), equalTo(1));
+
+            PygmentsContext other = PygmentsContext.newContext()
+                .setLexerName("c")
+                .setFormatterName("html")
+                .setFormatterOption("linenos", "table")
+                .setCache(cache)
+                .build();
+            assertHighlight(other,
+                            "samples/main.c",
+                            "samples/main.c.table.html");
+            assertThat(cache.size(), equalTo(2));
+        }
+
+        // a restarted process sees the same entries
+        try (DiskCache cache = openCache()) {
+            assertThat(cache.size(), equalTo(2));
+            assertHighlight(cachedContext(cache),
+                            "samples/main.c",
+                            "samples/main.c.html");
+            assertThat(cache.size(), equalTo(2));
+        }
+    }
+
+    @Test
+    public void cacheTokenFilters() throws IOException {
+        String text = "int x;\n";
+        try (DiskCache cache = openCache()) {
+            PygmentsContext keyed = PygmentsContext.newContext()
+                .setLexerName("c")
+                .setFormatterName("html")
+                .addTokenFilter(TokenFilters.tokenMerge())
+                .setCache(cache)
+                .build();
+            keyed.highlight(text);
+            assertThat(cache.size(), equalTo(1));
+
+            // a lambda has no stable key, so its results are not cached
+            TokenFilter lambda = tokens -> tokens;
+            PygmentsContext unkeyed = PygmentsContext.newContext()
+                .setLexerName("c")
+                .setFormatterName("html")
+                .addTokenFilter(TokenFilters.tokenMerge())
+                .addTokenFilter(lambda)
+                .setCache(cache)
+                .build();
+            assertThat(unkeyed.highlight(text),
+                       equalTo(keyed.highlight(text)));
+            assertThat(cache.size(), equalTo(1));
+        }
+    }
+
     @Test(expected = NullPointerException.class)
     public void missingLexer() {
         PygmentsContext.newContext().setFormatterName("html").build();
@@ -80,7 +598,6 @@ public class PygmentsContextTest {
         PygmentsContext.newContext().setLexerName("c").build();
     }
 
-    // PygmentsContext doesn't use this directly any more
     @Test
     public void pygmentsHighlight() {
         String input = readResource("samples/main.c");
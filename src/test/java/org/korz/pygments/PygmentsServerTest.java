@@ -0,0 +1,261 @@
+package org.korz.pygments;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class PygmentsServerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private PygmentsServer server;
+
+    private static class Response {
+        final int status;
+        final String contentType;
+        final byte[] bytes;
+        final String body;
+
+        Response(int status, String contentType, byte[] bytes) {
+            this.status = status;
+            this.contentType = contentType;
+            this.bytes = bytes;
+            this.body = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Before
+    public void start() {
+        server = PygmentsServer.newServer()
+            .setThreads(2)
+            .setMaxContexts(2)
+            .build();
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    private Response request(String method, String path, String body)
+            throws IOException {
+        URL url = new URL("http://localhost:" + server.getPort() + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status < 400
+            ? conn.getInputStream()
+            : conn.getErrorStream();
+        try {
+            return new Response(status, conn.getContentType(),
+                                ByteStreams.toByteArray(in));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static String highlight(String lexer, String text) {
+        return PygmentsContext.newContext()
+            .setLexerName(lexer)
+            .setFormatterName("html")
+            .build()
+            .highlight(text);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static String frame(String... texts) {
+        StringBuilder sb = new StringBuilder();
+        for (String text : texts) {
+            sb.append(text.getBytes(StandardCharsets.UTF_8).length)
+                .append('\n')
+                .append(text);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void highlight() throws IOException {
+        String text = "int main() { return 0; } // \u00e9\n";
+        Response r = request("POST", "/highlight?lexer=c", text);
+        assertThat(r.status, equalTo(200));
+        assertThat(r.body, equalTo(highlight("c", text)));
+    }
+
+    @Test
+    public void encoding() throws IOException {
+        String text = "int main() { return 0; } // \u00e9\n";
+        Response r = request("POST",
+                             "/highlight?lexer=c&formatter.encoding=latin1",
+                             text);
+        assertThat(r.status, equalTo(200));
+        assertThat(r.contentType, equalTo("text/plain; charset=latin1"));
+        assertThat(r.bytes,
+                   equalTo(highlight("c", text)
+                           .getBytes(StandardCharsets.ISO_8859_1)));
+
+        r = request("POST", "/batch?lexer=c&formatter.encoding=latin1",
+                    frame(text));
+        assertThat(r.status, equalTo(200));
+        assertThat(r.contentType, equalTo("text/plain; charset=latin1"));
+        byte[] result = highlight("c", text)
+            .getBytes(StandardCharsets.ISO_8859_1);
+        assertThat(r.bytes,
+                   equalTo(concat((result.length + "\n")
+                                  .getBytes(StandardCharsets.US_ASCII),
+                                  result)));
+    }
+
+    @Test
+    public void options() throws IOException {
+        String text = "{\"a\": 1}";
+        Response r = request(
+            "POST",
+            "/highlight?lexer=json&engine=java&formatter=html"
+                + "&formatter.cssclass=x%20y",
+            text);
+        assertThat(r.status, equalTo(200));
+        assertThat(r.body, containsString("<div class=\"x y\">"));
+    }
+
+    @Test
+    public void typedOptions() throws IOException {
+        String text = "int x;\n";
+        Response r = request("POST",
+                             "/highlight?lexer=c&formatter.linenos=false",
+                             text);
+        assertThat(r.status, equalTo(200));
+        assertThat(r.body, equalTo(highlight("c", text)));
+        r = request("POST", "/highlight?lexer=c&formatter.linenos=table",
+                    text);
+        assertThat(r.body, containsString("linenos"));
+        assertThat(request("POST", "/highlight?lexer=c&lexer.stripnl=maybe",
+                           text).status,
+                   equalTo(400));
+        assertThat(request("POST", "/highlight?lexer=c&lexer.tabsize=x",
+                           text).status,
+                   equalTo(400));
+    }
+
+    @Test
+    public void unsafeOptions() throws IOException {
+        Path css = tmp.getRoot().toPath().resolve("x.css");
+        String query = "/highlight?lexer=c&formatter.full=true"
+            + "&formatter.cssfile="
+            + URLEncoder.encode(css.toString(), "UTF-8");
+        assertThat(request("POST", query, "int x;").status, equalTo(400));
+        assertThat(Files.exists(css), equalTo(false));
+        assertThat(request("POST",
+                           "/highlight?lexer=c&formatter.outencoding=utf-8",
+                           "").status,
+                   equalTo(400));
+        assertThat(request("POST",
+                           "/highlight?lexer=c&formatter.tagsfile=tags",
+                           "").status,
+                   equalTo(400));
+        assertThat(request("POST",
+                           "/highlight?lexer=c&lexer.filters=x",
+                           "").status,
+                   equalTo(400));
+    }
+
+    @Test
+    public void batch() throws IOException {
+        String a = "x = 1\n";
+        String b = "def f(): pass  # \u00e9\n";
+        String c = "";
+        Response r = request("POST", "/batch?lexer=python", frame(a, b, c));
+        assertThat(r.status, equalTo(200));
+        assertThat(r.body, equalTo(frame(highlight("python", a),
+                                         highlight("python", b),
+                                         highlight("python", c))));
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void tooLarge() throws IOException {
+        server.close();
+        server = PygmentsServer.newServer()
+            .setMaxBodySize(1000)
+            .setMaxItemSize(100)
+            .build();
+        assertThat(request("POST", "/highlight?lexer=c",
+                           repeat('x', 1000)).status,
+                   equalTo(200));
+        assertThat(request("POST", "/highlight?lexer=c",
+                           repeat('x', 1001)).status,
+                   equalTo(413));
+        assertThat(request("POST", "/batch?lexer=c",
+                           frame(repeat('x', 101))).status,
+                   equalTo(413));
+        // rejected before anything is allocated
+        assertThat(request("POST", "/batch?lexer=c", "999999999\nx").status,
+                   equalTo(413));
+        String[] items = new String[11];
+        Arrays.fill(items, repeat('x', 100));
+        assertThat(request("POST", "/batch?lexer=c", frame(items)).status,
+                   equalTo(413));
+    }
+
+    @Test
+    public void contexts() throws IOException {
+        request("POST", "/highlight?lexer=c", "");
+        request("POST", "/highlight?lexer=c", "");
+        assertThat(server.getContextCount(), equalTo(1));
+        request("POST", "/highlight?lexer=python", "");
+        request("POST", "/highlight?lexer=json", "");
+        assertThat(server.getContextCount(), equalTo(2));
+    }
+
+    @Test
+    public void errors() throws IOException {
+        assertThat(request("POST", "/highlight", "").status, equalTo(400));
+        assertThat(request("POST", "/highlight?lexer=nope", "").status,
+                   equalTo(400));
+        assertThat(request("POST", "/highlight?lexer=c&bogus=1", "").status,
+                   equalTo(400));
+        assertThat(request("POST", "/highlight?lexer=c&engine=x", "").status,
+                   equalTo(400));
+        assertThat(request("POST", "/batch?lexer=c", "5\nabc").status,
+                   equalTo(400));
+        assertThat(request("GET", "/highlight?lexer=c", null).status,
+                   equalTo(405));
+        assertThat(request("POST", "/other", "").status, equalTo(404));
+        assertThat(request("POST", "/highlight/x?lexer=c", "").status,
+                   equalTo(404));
+    }
+}
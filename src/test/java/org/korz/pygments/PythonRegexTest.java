@@ -0,0 +1,71 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class PythonRegexTest {
+    private static boolean matches(String regex, String flags, String text) {
+        return PythonRegex.compile(regex, flags).matcher(text).matches();
+    }
+
+    @Test
+    public void namedGroups() {
+        Matcher m = PythonRegex.compile("(?P<q>['\"])(.*?)(?P=q)", "")
+            .matcher("'a\"b'");
+        assertThat(m.matches(), equalTo(true));
+        assertThat(m.group(2), equalTo("a\"b"));
+    }
+
+    @Test
+    public void characterClasses() {
+        assertThat(matches("[[]+", "", "[["), equalTo(true));
+        assertThat(matches("[]a]+", "", "a]"), equalTo(true));
+        assertThat(matches("[a&&b]+", "", "a&b"), equalTo(true));
+        assertThat(matches("[\\b]", "", "\b"), equalTo(true));
+    }
+
+    @Test
+    public void braces() {
+        assertThat(matches("a{2}", "", "aa"), equalTo(true));
+        assertThat(matches("a{,2}", "", "aa"), equalTo(true));
+        assertThat(matches("\\${x}", "", "${x}"), equalTo(true));
+        assertThat(matches("{}", "", "{}"), equalTo(true));
+    }
+
+    @Test
+    public void escapes() {
+        assertThat(matches("a\\Z", "", "a"), equalTo(true));
+        assertThat(matches("a\\Z", "", "a\n"), equalTo(false));
+        assertThat(matches("\\v\\a\\x41\\101\\0", "", "\u000b\u0007AA\0"),
+                   equalTo(true));
+        assertThat(matches("\\h", "", "h"), equalTo(true));
+    }
+
+    @Test
+    public void wordBoundary() {
+        // \u00e9 is not a word character without the unicode flag
+        assertThat(matches(".\\b.", "", "\u00e9a"), equalTo(true));
+        assertThat(matches(".\\b.", "u", "\u00e9a"), equalTo(false));
+    }
+
+    @Test
+    public void verbose() {
+        assertThat(matches("a b # comment\n [ ]c", "x", "ab c"),
+                   equalTo(true));
+        assertThat(matches("(?x) a b", "", "ab"), equalTo(true));
+    }
+
+    @Test
+    public void comment() {
+        assertThat(matches("a(?#comment)b", "", "ab"), equalTo(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void conditional() {
+        PythonRegex.compile("(a)?(?(1)b|c)", "");
+    }
+}
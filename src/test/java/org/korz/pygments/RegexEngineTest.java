@@ -0,0 +1,165 @@
+package org.korz.pygments;
+
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RegexEngineTest {
+    private static String readResource(String filename) {
+        try {
+            return Resources.toString(Resources.getResource(filename),
+                                      StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Cannot read resource: " + filename, e);
+        }
+    }
+
+    private static List<Token> toList(Iterable<Token> tokens) {
+        List<Token> list = new ArrayList<>();
+        tokens.forEach(list::add);
+        return list;
+    }
+
+    private static void assertSameTokens(Lexer.Builder builder, String text) {
+        Lexer python = builder.setEngine(Lexer.Engine.PYTHON).build();
+        Lexer java = builder.setEngine(Lexer.Engine.JAVA).build();
+        assertThat(java.getEngine(), equalTo(Lexer.Engine.JAVA));
+        assertThat(toList(java.tokens(text)),
+                   equalTo(toList(python.tokens(text))));
+    }
+
+    @Test
+    public void json() {
+        assertSameTokens(Lexer.byName("json"),
+                         "{\"a\": [1, 2.5e3, true, null], \"b\": \"x\\\"y\"}");
+    }
+
+    @Test
+    public void ini() {
+        assertSameTokens(Lexer.byName("ini"),
+                         "; comment\n[section]\nkey = value\n\tother=1\n");
+    }
+
+    @Test
+    public void python() {
+        assertSameTokens(Lexer.byName("python"),
+                         "import os\n"
+                         + "@decorator\n"
+                         + "def f(x, *a, **kw):\n"
+                         + "    \"\"\"Doc\n    string.\"\"\"\n"
+                         + "    return u'%s' % x + 0x1f + 1.5j  # done\n"
+                         + "class C(object): pass\n");
+    }
+
+    @Test
+    public void diff() {
+        assertSameTokens(Lexer.byName("diff"),
+                         "--- a\n+++ b\n@@ -1 +1 @@\n-old\n+new\n same\n");
+    }
+
+    @Test
+    public void css() {
+        assertSameTokens(Lexer.byName("css"),
+                         "a:hover, #id > .c { color: #fff; margin: 0 1em; }"
+                         + "\n@media screen { p { font: 12px/1.5 serif } }");
+    }
+
+    @Test
+    public void javascript() {
+        assertSameTokens(Lexer.byName("js"),
+                         "var re = /ab+c/gi; // comment\n"
+                         + "function f(a) { return a === 1 ? 'x' : \"y\"; }"
+                         + "\n/* block */");
+    }
+
+    @Test
+    public void xml() {
+        assertSameTokens(Lexer.byName("xml"),
+                         "<?xml version=\"1.0\"?>\n<a><!-- c -->\n"
+                         + "<b x='1'>Hi &amp; <![CDATA[bye]]></b></a>");
+    }
+
+    @Test
+    public void sql() {
+        assertSameTokens(Lexer.byName("sql"),
+                         "SELECT a, COUNT(*) FROM t WHERE b = 'x' -- c\n"
+                         + "GROUP BY a;");
+    }
+
+    @Test
+    public void bash() {
+        assertSameTokens(Lexer.byName("bash"),
+                         "#!/bin/sh\nfor f in *.c; do echo \"$f ${x}\"; done"
+                         + " | grep -v foo > out\n");
+    }
+
+    @Test
+    public void go() {
+        assertSameTokens(Lexer.byName("go"),
+                         "package main\nimport \"fmt\"\n"
+                         + "func main() { fmt.Println(`raw`, 'c', 1e9) }\n");
+    }
+
+    @Test
+    public void options() {
+        assertSameTokens(Lexer.byName("python")
+                             .setOption("stripall", true)
+                             .setOption("tabsize", 4),
+                         "\n\n  \tx = 1\r\n\tif x:\r\n\t\tpass  \n\n");
+        assertSameTokens(Lexer.byName("python")
+                             .setOption("stripnl", false)
+                             .setOption("ensurenl", false),
+                         "\n\nx = 1");
+    }
+
+    @Test
+    public void errors() {
+        assertSameTokens(Lexer.byName("json"), "{\"a\": ~~~ \u00e9\n}");
+    }
+
+    @Test
+    public void unicode() {
+        assertSameTokens(Lexer.byName("python"),
+                         "s = u'\u00e9\uD83D\uDE00'\nna\u00efve = 1\n");
+    }
+
+    @Test
+    public void fallback() {
+        // CLexer overrides get_tokens_unprocessed
+        Lexer lexer = Lexer.byName("c")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        assertThat(lexer.getEngine(), equalTo(Lexer.Engine.PYTHON));
+
+        // HtmlLexer uses using() for embedded scripts
+        lexer = Lexer.byName("html")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        assertThat(lexer.getEngine(), equalTo(Lexer.Engine.PYTHON));
+    }
+
+    @Test
+    public void highlight() {
+        PygmentsContext p = PygmentsContext.newContext()
+            .setLexer(Lexer.byName("python")
+                          .setEngine(Lexer.Engine.JAVA)
+                          .build())
+            .setFormatterName("html")
+            .build();
+        PygmentsContext expected = PygmentsContext.newContext()
+            .setLexerName("python")
+            .setFormatterName("html")
+            .build();
+        String text = readResource("test.py");
+        assertThat(p.highlight(text), equalTo(expected.highlight(text)));
+    }
+}
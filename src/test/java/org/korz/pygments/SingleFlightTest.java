@@ -0,0 +1,122 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    private static final int THREADS = 8;
+
+    // starts THREADS calls for the same key while the first one is blocked
+    private static List<Future<Object>> concurrent(
+            ExecutorService executor,
+            SingleFlight<String, Object> flight,
+            AtomicInteger calls,
+            Object result) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> flight.run("key", k -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            if (result instanceof RuntimeException) {
+                throw (RuntimeException) result;
+            }
+            return result;
+        })));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < THREADS; ++i) {
+            futures.add(executor.submit(() -> flight.run("key", k -> {
+                calls.incrementAndGet();
+                return new Object();
+            })));
+        }
+        // release the first call only once every other call waits for it
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (flight.waiters() < THREADS - 1) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.yield();
+        }
+        release.countDown();
+        return futures;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void shared() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            SingleFlight<String, Object> flight = new SingleFlight<>();
+            AtomicInteger calls = new AtomicInteger();
+            Object result = new Object();
+            for (Future<Object> f : concurrent(executor, flight, calls,
+                                               result)) {
+                assertThat(f.get(), sameInstance(result));
+            }
+            assertThat(calls.get(), equalTo(1));
+            assertThat(flight.size(), equalTo(0));
+            assertThat(flight.waiters(), equalTo(0));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedException() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            SingleFlight<String, Object> flight = new SingleFlight<>();
+            AtomicInteger calls = new AtomicInteger();
+            RuntimeException error = new IllegalStateException("boom");
+            for (Future<Object> f : concurrent(executor, flight, calls,
+                                               error)) {
+                try {
+                    f.get();
+                    fail("Expected exception");
+                }
+                catch (ExecutionException e) {
+                    assertThat(e.getCause(), sameInstance(error));
+                }
+            }
+            assertThat(calls.get(), equalTo(1));
+            assertThat(flight.size(), equalTo(0));
+            assertThat(flight.waiters(), equalTo(0));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sequential() {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        Object a = flight.run("key", k -> new Object());
+        Object b = flight.run("key", k -> new Object());
+        assertThat(b, not(sameInstance(a)));
+    }
+}
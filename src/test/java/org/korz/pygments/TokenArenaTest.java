@@ -0,0 +1,131 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TokenArenaTest {
+    private static final String TEXT =
+        "int main() {\n    return 0; /* \u00e9 \ud83d\ude00 */\n}\n";
+
+    @Test
+    public void lexPython() {
+        Lexer lexer = Lexer.byName("c").build();
+        try (TokenArena tokens = lexer.lexArena(TEXT)) {
+            assertThat(tokens.toTokenList(), equalTo(lexer.lexAll(TEXT)));
+            List<Token> list = new ArrayList<>();
+            tokens.forEach(list::add);
+            List<Token> expected = new ArrayList<>();
+            lexer.lexAll(TEXT).forEach(expected::add);
+            assertThat(list, equalTo(expected));
+        }
+    }
+
+    @Test
+    public void lexJava() {
+        Lexer lexer = Lexer.byName("json")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        String text = "{\"a\": [1, \"\u00e9\ud83d\ude00\", null]}\n";
+        try (TokenArena tokens = lexer.lexArena(text)) {
+            assertThat(tokens.toTokenList(), equalTo(lexer.lexAll(text)));
+        }
+    }
+
+    @Test
+    public void format() {
+        Lexer lexer = Lexer.byName("c").build();
+        Formatter formatter = Formatter.byName("html").build();
+        try (TokenArena tokens = lexer.lexArena(TEXT)) {
+            assertThat(formatter.format(tokens),
+                       equalTo(formatter.format(lexer.lexAll(TEXT))));
+            assertThat(formatter.format((Iterable<?>) tokens),
+                       equalTo(formatter.format(lexer.lexAll(TEXT))));
+        }
+    }
+
+    @Test
+    public void formatLines() {
+        Lexer lexer = Lexer.byName("c").build();
+        Formatter formatter = Formatter.byName("html").build();
+        try (TokenArena tokens = lexer.lexArena(TEXT)) {
+            assertThat(formatter.formatLines(tokens),
+                       equalTo(formatter.formatLines(lexer.lexAll(TEXT))));
+            assertThat(formatter.formatLines(tokens, 1, 2),
+                       equalTo(formatter.formatLines(lexer.lexAll(TEXT),
+                                                     1, 2)));
+        }
+    }
+
+    @Test
+    public void manyChunks() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 50000; ++i) {
+            sb.append(i).append(',');
+        }
+        String text = sb.append("0]\n").toString();
+        Lexer lexer = Lexer.byName("json")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        Formatter formatter = Formatter.byName("html").build();
+        try (TokenArena tokens = lexer.lexArena(text)) {
+            TokenList expected = lexer.lexAll(text);
+            assertThat(tokens.size(), equalTo(expected.size()));
+            assertThat(tokens.toTokenList(), equalTo(expected));
+            assertThat(formatter.format(tokens),
+                       equalTo(formatter.format(expected)));
+        }
+    }
+
+    @Test
+    public void slice() {
+        Lexer lexer = Lexer.byName("c").build();
+        try (TokenArena tokens = lexer.lexArena(TEXT)) {
+            TokenArena slice = tokens.slice(2, 5);
+            assertThat(slice.size(), equalTo(3));
+            for (int i = 0; i < 3; ++i) {
+                assertThat(slice.get(i), equalTo(tokens.get(i + 2)));
+                assertThat(slice.getStart(i), equalTo(tokens.getStart(i + 2)));
+            }
+            TokenList copy = slice.toTokenList();
+            assertThat(copy.getText(),
+                       equalTo(TEXT.substring(tokens.getStart(2),
+                                              tokens.getEnd(4))));
+            assertThat(copy.get(2), equalTo(tokens.get(4)));
+            assertThat(tokens.slice(3, 3).toTokenList().size(), equalTo(0));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void invalidSlice() {
+        try (TokenArena tokens = Lexer.byName("c").build().lexArena(TEXT)) {
+            tokens.slice(2, tokens.size() + 1);
+        }
+    }
+
+    @Test
+    public void closed() {
+        TokenArena tokens = Lexer.byName("c").build().lexArena(TEXT);
+        TokenArena slice = tokens.slice(0, 2);
+        tokens.close();
+        tokens.close();
+        try {
+            tokens.get(0);
+            throw new AssertionError("arena still usable");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            slice.get(0);
+            throw new AssertionError("slice still usable");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
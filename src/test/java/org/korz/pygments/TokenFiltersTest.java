@@ -0,0 +1,108 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.core.PyString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TokenFiltersTest {
+    private static final String PASCAL =
+        "Program Hello;\n\tBEGIN\n  WriteLn('a  b'); \r\nEnd.\n";
+
+    private static List<Token> tokens(Iterable<Token> tokens) {
+        List<Token> list = new ArrayList<>();
+        for (Token token : tokens) {
+            list.add(token);
+        }
+        return list;
+    }
+
+    // lexes with the Pygments filter
+    private static List<Token> pygments(String text,
+                                        String filter,
+                                        String[] options,
+                                        PyObject... values) {
+        Lexer lexer = Lexer.byName("pascal")
+            .setOption("stripnl", false)
+            .build();
+        PyObject addFilter = lexer.getDelegate().__getattr__("add_filter");
+        PyObject[] args = new PyObject[values.length + 1];
+        args[0] = new PyString(filter);
+        System.arraycopy(values, 0, args, 1, values.length);
+        addFilter.__call__(args, options);
+        return tokens(lexer.lexAll(text));
+    }
+
+    private static List<Token> java(String text, TokenFilter filter) {
+        Lexer lexer = Lexer.byName("pascal")
+            .setOption("stripnl", false)
+            .build();
+        return tokens(filter.filter(lexer.lexAll(text)));
+    }
+
+    @Test
+    public void tokenMerge() {
+        assertThat(java(PASCAL, TokenFilters.tokenMerge()),
+                   equalTo(pygments(PASCAL, "tokenmerge", new String[0])));
+        TokenList merged = TokenFilters.tokenMerge()
+            .filter(Lexer.byName("pascal").build().lexAll(PASCAL));
+        assertThat(TokenFilters.tokenMerge().filter(merged),
+                   sameInstance(merged));
+    }
+
+    @Test
+    public void keywordCase() {
+        for (String c : new String[] {"lower", "upper", "capitalize"}) {
+            assertThat(java(PASCAL, TokenFilters.keywordCase(c)),
+                       equalTo(pygments(PASCAL, "keywordcase",
+                                        new String[] {"case"},
+                                        new PyString(c))));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keywordCaseUnknown() {
+        TokenFilters.keywordCase("title");
+    }
+
+    @Test
+    public void visibleWhitespace() {
+        assertThat(java(PASCAL,
+                        TokenFilters.visibleWhitespace(true, true, true)),
+                   equalTo(pygments(PASCAL, "whitespace",
+                                    new String[] {"spaces", "tabs",
+                                                  "newlines"},
+                                    Py.True, Py.True, Py.True)));
+        List<Token> spaces = java(
+            PASCAL, TokenFilters.visibleWhitespace(true, false, false));
+        assertThat(spaces,
+                   equalTo(pygments(PASCAL, "whitespace",
+                                    new String[] {"spaces"}, Py.True)));
+    }
+
+    @Test
+    public void context() {
+        TokenFilter filter = TokenFilters.keywordCase("upper");
+        PygmentsContext context = PygmentsContext.newContext()
+            .setLexerName("pascal")
+            .setFormatterName("html")
+            .addTokenFilter(filter)
+            .addTokenFilter(TokenFilters.tokenMerge())
+            .build();
+        Lexer lexer = Lexer.byName("pascal").build();
+        Formatter formatter = Formatter.byName("html").build();
+        String expected = formatter.format(TokenFilters.tokenMerge().filter(
+            filter.filter(lexer.lexAll(PASCAL))));
+        assertThat(context.highlight(PASCAL), equalTo(expected));
+        assertThat(String.join("", context.highlightLines(PASCAL)),
+                   equalTo(String.join("", formatter.formatLines(
+                       filter.filter(lexer.lexAll(PASCAL))))));
+    }
+}
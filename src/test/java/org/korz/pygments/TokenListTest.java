@@ -0,0 +1,107 @@
+package org.korz.pygments;
+
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TokenListTest {
+    private static String readResource(String filename) {
+        try {
+            return Resources.toString(Resources.getResource(filename),
+                                      StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Cannot read resource: " + filename, e);
+        }
+    }
+
+    @Test
+    public void lexAll() {
+        Lexer lexer = Lexer.byName("c").build();
+        String text = readResource("samples/main.c");
+        TokenList tokens = lexer.lexAll(text);
+
+        List<Token> expected = new ArrayList<>();
+        lexer.tokens(text).forEach(expected::add);
+        List<Token> actual = new ArrayList<>();
+        tokens.forEach(actual::add);
+        assertThat(actual, equalTo(expected));
+        assertThat(tokens.getText(), equalTo(text));
+    }
+
+    @Test
+    public void format() {
+        TokenList tokens = Lexer.byName("c").build()
+            .lexAll(readResource("samples/main.c"));
+        Formatter formatter = Formatter.byName("html").build();
+        assertThat(formatter.format(tokens),
+                   equalTo(readResource("samples/main.c.html")));
+    }
+
+    @Test
+    public void roundTrip() {
+        TokenList tokens = Lexer.byName("c").build()
+            .lexAll(readResource("samples/main.c"));
+        TokenList copy = TokenList.fromByteArray(tokens.toByteArray());
+        assertThat(copy, equalTo(tokens));
+
+        Formatter formatter = Formatter.byName("html").build();
+        assertThat(formatter.format(copy),
+                   equalTo(readResource("samples/main.c.html")));
+    }
+
+    @Test
+    public void roundTripSupplementary() {
+        TokenList tokens = Lexer.byName("python").build()
+            .lexAll("x = '\uD83D\uDE00'");
+        TokenList copy = TokenList.fromByteArray(tokens.toByteArray());
+        assertThat(copy, equalTo(tokens));
+
+        Formatter formatter = Formatter.byName("text").build();
+        assertThat(formatter.format(copy),
+                   equalTo("x = '\uD83D\uDE00'\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromByteArrayMalformed() {
+        TokenList.fromByteArray(new byte[] {'P', 'Y', 'G', 'X', 1});
+    }
+
+    @Test
+    public void readFromHugeCounts() {
+        // a type count, a token count and a text length of 2^31 - 1
+        byte[][] inputs = {
+            {'P', 'Y', 'G', 'T', 1, -1, -1, -1, -1, 7},
+            {'P', 'Y', 'G', 'T', 1, 0, -1, -1, -1, -1, 7},
+            {'P', 'Y', 'G', 'T', 1, 0, 0, -1, -1, -1, -1, 7},
+        };
+        for (byte[] input : inputs) {
+            try {
+                TokenList.readFrom(new ByteArrayInputStream(input));
+                fail("Expected IOException");
+            }
+            catch (IOException e) {
+                // expected, without allocating 2^31 elements first
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromByteArrayTruncated() {
+        byte[] data = Lexer.byName("c").build().lexAll("int x;")
+            .toByteArray();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        TokenList.fromByteArray(truncated);
+    }
+}
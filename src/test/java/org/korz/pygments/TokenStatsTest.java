@@ -0,0 +1,112 @@
+package org.korz.pygments;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TokenStatsTest {
+    private static final String C = "#include <stdio.h>\n"
+        + "\n"
+        + "/* a comment\n"
+        + "   over lines */\n"
+        + "int main() { // trailing\n"
+        + "    \n"
+        + "    return puts(\"\u00e9\ud83d\ude00\");\n"
+        + "}";
+
+    private static void assertMatchesTokens(Lexer lexer, String text) {
+        TokenStats stats = lexer.stats(text);
+        Map<String, Long> tokens = new HashMap<>();
+        Map<String, Long> chars = new HashMap<>();
+        for (Token token : lexer.lexAll(text)) {
+            tokens.merge(token.getType(), 1L, Long::sum);
+            chars.merge(token.getType(),
+                        (long) token.getValue().codePointCount(
+                            0, token.getValue().length()),
+                        Long::sum);
+        }
+        assertThat(stats.getTypes().size(), equalTo(tokens.size()));
+        for (String type : stats.getTypes()) {
+            assertThat(stats.getTokenCount(type), equalTo(tokens.get(type)));
+            assertThat(stats.getCharCount(type), equalTo(chars.get(type)));
+        }
+    }
+
+    @Test
+    public void lines() {
+        TokenStats stats = Lexer.byName("c").build().stats(C);
+        assertThat(stats.getCodeLines(), equalTo(4L));
+        assertThat(stats.getCommentLines(), equalTo(2L));
+        assertThat(stats.getBlankLines(), equalTo(2L));
+        assertThat(stats.getLines(), equalTo(8L));
+        assertThat(stats.getTokenCount("Token.Comment.Multiline"),
+                   equalTo(1L));
+        assertThat(stats.getTokenCount("Token.Nope"), equalTo(0L));
+        // the surrogate pair is one char
+        assertThat(stats.getCharCount(),
+                   equalTo((long) C.codePointCount(0, C.length()) + 1));
+    }
+
+    @Test
+    public void noTrailingNewline() {
+        TokenStats stats = Lexer.byName("c")
+            .setOption("ensurenl", false)
+            .build()
+            .stats("int x;\n/* y */");
+        assertThat(stats.getCodeLines(), equalTo(1L));
+        assertThat(stats.getCommentLines(), equalTo(1L));
+        assertThat(stats.getBlankLines(), equalTo(0L));
+    }
+
+    @Test
+    public void counts() {
+        assertMatchesTokens(Lexer.byName("c").build(), C);
+        assertMatchesTokens(Lexer.byName("python").build(),
+                            "def f():\n    '''doc'''\n    return 1  # x\n");
+    }
+
+    @Test
+    public void javaEngine() {
+        String text = "{\"a\": [1, 2.5, \"\u00e9\"],\n\n \"b\": null}";
+        Lexer python = Lexer.byName("json").build();
+        Lexer java = Lexer.byName("json")
+            .setEngine(Lexer.Engine.JAVA)
+            .build();
+        assertThat(java.getEngine(), equalTo(Lexer.Engine.JAVA));
+        TokenStats expected = python.stats(text);
+        TokenStats actual = java.stats(text);
+        assertThat(actual.getTypes(), equalTo(expected.getTypes()));
+        for (String type : expected.getTypes()) {
+            assertThat(actual.getTokenCount(type),
+                       equalTo(expected.getTokenCount(type)));
+            assertThat(actual.getCharCount(type),
+                       equalTo(expected.getCharCount(type)));
+        }
+        assertThat(actual.getCodeLines(), equalTo(expected.getCodeLines()));
+        assertThat(actual.getBlankLines(), equalTo(1L));
+        assertMatchesTokens(java, text);
+    }
+
+    @Test
+    public void plus() {
+        Lexer lexer = Lexer.byName("c").build();
+        TokenStats a = lexer.stats(C);
+        TokenStats b = lexer.stats("int y; /* z */\n");
+        TokenStats sum = a.plus(b);
+        assertThat(sum.getCodeLines(), equalTo(5L));
+        assertThat(sum.getCommentLines(), equalTo(2L));
+        assertThat(sum.getTokenCount(),
+                   equalTo(a.getTokenCount() + b.getTokenCount()));
+        assertThat(sum.getTokenCount("Token.Comment.Multiline"),
+                   equalTo(2L));
+        assertThat(sum.getTypes().containsAll(
+                       Arrays.asList("Token.Keyword.Type",
+                                     "Token.Comment.Preproc")),
+                   equalTo(true));
+    }
+}